@@ -14,7 +14,6 @@ import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -29,11 +28,24 @@ public interface AppRTCClient {
     public final String roomUrl;
     public final String roomId;
     public final boolean loopback;
+    // Local ICE candidates produced within this window are sent in one
+    // message. 0 sends every candidate on its own.
+    public final int iceCandidateBatchMs;
+    // An offer or answer POST without a response within this delay is sent
+    // again in parallel. 0 disables hedging.
+    public final int sdpHedgeDelayMs;
     public RoomConnectionParameters(
         String roomUrl, String roomId, boolean loopback) {
+      this(roomUrl, roomId, loopback, 0, 0);
+    }
+    public RoomConnectionParameters(
+        String roomUrl, String roomId, boolean loopback, int iceCandidateBatchMs,
+        int sdpHedgeDelayMs) {
       this.roomUrl = roomUrl;
       this.roomId = roomId;
       this.loopback = loopback;
+      this.iceCandidateBatchMs = iceCandidateBatchMs;
+      this.sdpHedgeDelayMs = sdpHedgeDelayMs;
     }
   }
 
@@ -94,11 +106,7 @@ public interface AppRTCClient {
             SessionDescription offerSdp, List<IceCandidate> iceCandidates) {
       //PeerConnection.IceServer iceServer=new PeerConnection.IceServer("stun:stun.l.google.com:19302");
       //PeerConnection.IceServer iceServer=new PeerConnection.IceServer("stun:192.168.1.157:19302");
-      PeerConnection.IceServer iceServer0=new PeerConnection.IceServer("stun:123.57.24.8:19302");
-      this.iceServers =new LinkedList<PeerConnection.IceServer>();
-      PeerConnection.IceServer iceServer1=new PeerConnection.IceServer("turn:123.57.24.8:3478","root","geekon");
-      this.iceServers.add(iceServer0);
-      this.iceServers.add(iceServer1);
+      this.iceServers = IceServerProvider.getInstance().getIceServers();
       this.initiator = false;
       this.clientId = clientId;
       this.wssUrl = null;
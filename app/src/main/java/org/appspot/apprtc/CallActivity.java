@@ -42,6 +42,7 @@ import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.SurfaceViewRenderer;
 
 import java.nio.ByteBuffer;
+import java.util.LinkedList;
 
 /**
  * Activity for peer connection call setup, call waiting
@@ -68,6 +69,34 @@ public class CallActivity extends Activity
       "org.appsopt.apprtc.VIDEO_CAPTUREQUALITYSLIDER";
   public static final String EXTRA_VIDEO_BITRATE =
       "org.appspot.apprtc.VIDEO_BITRATE";
+  public static final String EXTRA_VIDEO_MIN_BITRATE =
+      "org.appspot.apprtc.VIDEO_MIN_BITRATE";
+  public static final String EXTRA_VIDEO_MAX_BITRATE =
+      "org.appspot.apprtc.VIDEO_MAX_BITRATE";
+  public static final String EXTRA_SESSION_BANDWIDTH =
+      "org.appspot.apprtc.SESSION_BANDWIDTH";
+  public static final String EXTRA_AUDIO_BANDWIDTH =
+      "org.appspot.apprtc.AUDIO_BANDWIDTH";
+  public static final String EXTRA_VIDEO_BANDWIDTH =
+      "org.appspot.apprtc.VIDEO_BANDWIDTH";
+  public static final String EXTRA_MINIMIZE_SDP =
+      "org.appspot.apprtc.MINIMIZE_SDP";
+  public static final String EXTRA_SDP_REDUNDANCY =
+      "org.appspot.apprtc.SDP_REDUNDANCY";
+  public static final String EXTRA_NON_TRICKLE_ICE =
+      "org.appspot.apprtc.NON_TRICKLE_ICE";
+  public static final String EXTRA_ICE_GATHERING_TIMEOUT =
+      "org.appspot.apprtc.ICE_GATHERING_TIMEOUT";
+  public static final String EXTRA_MAX_ICE_SERVERS =
+      "org.appspot.apprtc.MAX_ICE_SERVERS";
+  public static final String EXTRA_ICE_CANDIDATE_BATCH =
+      "org.appspot.apprtc.ICE_CANDIDATE_BATCH";
+  public static final String EXTRA_SDP_HEDGE_DELAY =
+      "org.appspot.apprtc.SDP_HEDGE_DELAY";
+  public static final String EXTRA_SPECULATIVE_SETUP =
+      "org.appspot.apprtc.SPECULATIVE_SETUP";
+  public static final String EXTRA_FACTORY_IDLE_TIMEOUT =
+      "org.appspot.apprtc.FACTORY_IDLE_TIMEOUT";
   public static final String EXTRA_VIDEOCODEC =
       "org.appspot.apprtc.VIDEOCODEC";
   public static final String EXTRA_HWCODEC_ENABLED =
@@ -84,6 +113,8 @@ public class CallActivity extends Activity
       "org.appspot.apprtc.AECDUMP";
   public static final String EXTRA_OPENSLES_ENABLED =
       "org.appspot.apprtc.OPENSLES";
+  public static final String EXTRA_KEEP_AUDIO_WARM =
+      "org.appspot.apprtc.KEEP_AUDIO_WARM";
   public static final String EXTRA_DISPLAY_HUD =
       "org.appspot.apprtc.DISPLAY_HUD";
   public static final String EXTRA_TRACING = "org.appspot.apprtc.TRACING";
@@ -135,7 +166,10 @@ public class CallActivity extends Activity
   private PeerConnectionParameters peerConnectionParameters;
   private boolean iceConnected;
   private boolean isError;
+  // Set while a speculatively created peer connection waits for signaling.
+  private boolean speculativePeerConnection;
   private boolean callControlFragmentVisible = true;
+  private boolean displayHud;
   private long callStartedTimeMs = 0;
 
   private int count;
@@ -243,14 +277,30 @@ public class CallActivity extends Activity
         intent.getStringExtra(EXTRA_AUDIOCODEC),
         intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
         intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
-        intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false));
+        intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
+        intent.getIntExtra(EXTRA_VIDEO_MIN_BITRATE, 0),
+        intent.getIntExtra(EXTRA_VIDEO_MAX_BITRATE, 0),
+        intent.getIntExtra(EXTRA_SESSION_BANDWIDTH, 0),
+        intent.getIntExtra(EXTRA_AUDIO_BANDWIDTH, 0),
+        intent.getIntExtra(EXTRA_VIDEO_BANDWIDTH, 0),
+        intent.getBooleanExtra(EXTRA_MINIMIZE_SDP, false),
+        intent.getBooleanExtra(EXTRA_SDP_REDUNDANCY, false),
+        intent.getBooleanExtra(EXTRA_NON_TRICKLE_ICE, false),
+        intent.getIntExtra(EXTRA_ICE_GATHERING_TIMEOUT,
+            Integer.parseInt(getString(R.string.pref_icegatheringtimeout_default))),
+        intent.getIntExtra(EXTRA_MAX_ICE_SERVERS, 0),
+        intent.getIntExtra(EXTRA_FACTORY_IDLE_TIMEOUT, 0),
+        intent.getBooleanExtra(EXTRA_KEEP_AUDIO_WARM, false));
     commandLineRun = intent.getBooleanExtra(EXTRA_CMDLINE, false);
+    displayHud = intent.getBooleanExtra(EXTRA_DISPLAY_HUD, false);
     runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
 
     // Create connection client and connection parameters.
     appRtcClient = new WebSocketRTCClient(this, new LooperExecutor());
     roomConnectionParameters = new RoomConnectionParameters(
-        roomUri.toString(), roomId, loopback);
+        roomUri.toString(), roomId, loopback,
+        intent.getIntExtra(EXTRA_ICE_CANDIDATE_BATCH, 0),
+        intent.getIntExtra(EXTRA_SDP_HEDGE_DELAY, 0));
 
     // Send intent arguments to fragments.
     callFragment.setArguments(intent.getExtras());
@@ -280,6 +330,14 @@ public class CallActivity extends Activity
     }
     peerConnectionClient.createPeerConnectionFactory(
         CallActivity.this, peerConnectionParameters, CallActivity.this);
+    if (intent.getBooleanExtra(EXTRA_SPECULATIVE_SETUP, false) && !loopback) {
+      // ICE servers do not depend on the room response, so the peer
+      // connection, camera and ICE gathering can start right away.
+      speculativePeerConnection = true;
+      peerConnectionClient.createPeerConnectionSpeculatively(
+          rootEglBase.getEglBaseContext(), localRender, remoteRender,
+          new SignalingParameters(null, null, new LinkedList<IceCandidate>()));
+    }
   }
 
   // Activity interfaces
@@ -290,6 +348,7 @@ public class CallActivity extends Activity
     activityRunning = false;
     if (peerConnectionClient != null) {
       peerConnectionClient.stopVideoSource();
+      peerConnectionClient.setStatsInForeground(false);
     }
   }
 
@@ -300,6 +359,7 @@ public class CallActivity extends Activity
     activityRunning = true;
     if (peerConnectionClient != null) {
       peerConnectionClient.startVideoSource();
+      peerConnectionClient.setStatsInForeground(true);
     }
   }
 
@@ -366,6 +426,14 @@ public class CallActivity extends Activity
     }
     ft.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
     ft.commit();
+    updateStatsDemand();
+  }
+
+  // Stats are requested often only while the HUD displays them.
+  private void updateStatsDemand() {
+    if (peerConnectionClient != null) {
+      peerConnectionClient.setStatsHudVisible(displayHud && callControlFragmentVisible);
+    }
   }
 
   private void updateVideoView() {
@@ -432,6 +500,7 @@ public class CallActivity extends Activity
     updateVideoView();
     // Enable statistics callback.
     peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+    updateStatsDemand();
   }
 
   private void onAudioManagerChangedState() {
@@ -524,15 +593,26 @@ public class CallActivity extends Activity
     final long delta = System.currentTimeMillis() - callStartedTimeMs;
 
     signalingParameters = params;
-    logAndToast("Creating peer connection, delay=" + delta + "ms");
-    peerConnectionClient.createPeerConnection(rootEglBase.getEglBaseContext(),
-        localRender, remoteRender, signalingParameters);
+    boolean offerCreated = false;
+    if (speculativePeerConnection) {
+      speculativePeerConnection = false;
+      logAndToast("Adopting speculative peer connection, delay=" + delta + "ms");
+      peerConnectionClient.adoptSpeculativePeerConnection(signalingParameters);
+      // As initiator the speculative offer is sent as it is.
+      offerCreated = signalingParameters.initiator;
+    } else {
+      logAndToast("Creating peer connection, delay=" + delta + "ms");
+      peerConnectionClient.createPeerConnection(rootEglBase.getEglBaseContext(),
+          localRender, remoteRender, signalingParameters);
+    }
 
     if (signalingParameters.initiator) {
-      logAndToast("Creating OFFER...");
-      // Create offer. Offer SDP will be sent to answering client in
-      // PeerConnectionEvents.onLocalDescription event.
-      peerConnectionClient.createOffer();
+      if (!offerCreated) {
+        logAndToast("Creating OFFER...");
+        // Create offer. Offer SDP will be sent to answering client in
+        // PeerConnectionEvents.onLocalDescription event.
+        peerConnectionClient.createOffer();
+      }
     } else {
       if (params.offerSdp != null) {
         peerConnectionClient.setRemoteDescription(params.offerSdp);
@@ -61,6 +61,21 @@ public class ConnectActivity extends Activity {
   private String keyprefCaptureQualitySlider;
   private String keyprefVideoBitrateType;
   private String keyprefVideoBitrateValue;
+  private String keyprefVideoMinBitrate;
+  private String keyprefVideoMaxBitrate;
+  private String keyprefSessionBandwidth;
+  private String keyprefMinimizeSdp;
+  private String keyprefSdpRedundancy;
+  private String keyprefNonTrickleIce;
+  private String keyprefIceGatheringTimeout;
+  private String keyprefMaxIceServers;
+  private String keyprefIceCandidateBatch;
+  private String keyprefSdpHedgeDelay;
+  private String keyprefEarlySignIn;
+  private String keyprefSpeculativeSetup;
+  private String keyprefFactoryIdleTimeout;
+  private String keyprefAudioBandwidth;
+  private String keyprefVideoBandwidth;
   private String keyprefVideoCodec;
   private String keyprefAudioBitrateType;
   private String keyprefAudioBitrateValue;
@@ -70,9 +85,11 @@ public class ConnectActivity extends Activity {
   private String keyprefNoAudioProcessingPipeline;
   private String keyprefAecDump;
   private String keyprefOpenSLES;
+  private String keyprefKeepAudioWarm;
   private String keyprefDisplayHud;
   private String keyprefTracing;
   private String keyprefRoomServerUrl;
+  private String keyprefIceConfigUrl;
   private String keyprefRoom;
   private String keyprefRoomList;
   private ArrayList<String> roomList;
@@ -91,6 +108,21 @@ public class ConnectActivity extends Activity {
     keyprefCaptureQualitySlider = getString(R.string.pref_capturequalityslider_key);
     keyprefVideoBitrateType = getString(R.string.pref_startvideobitrate_key);
     keyprefVideoBitrateValue = getString(R.string.pref_startvideobitratevalue_key);
+    keyprefVideoMinBitrate = getString(R.string.pref_minvideobitratevalue_key);
+    keyprefVideoMaxBitrate = getString(R.string.pref_maxvideobitratevalue_key);
+    keyprefSessionBandwidth = getString(R.string.pref_sessionbandwidth_key);
+    keyprefMinimizeSdp = getString(R.string.pref_minimizesdp_key);
+    keyprefSdpRedundancy = getString(R.string.pref_sdpredundancy_key);
+    keyprefNonTrickleIce = getString(R.string.pref_nontrickleice_key);
+    keyprefIceGatheringTimeout = getString(R.string.pref_icegatheringtimeout_key);
+    keyprefMaxIceServers = getString(R.string.pref_maxiceservers_key);
+    keyprefIceCandidateBatch = getString(R.string.pref_icecandidatebatch_key);
+    keyprefSdpHedgeDelay = getString(R.string.pref_sdphedgedelay_key);
+    keyprefEarlySignIn = getString(R.string.pref_earlysignin_key);
+    keyprefSpeculativeSetup = getString(R.string.pref_speculativesetup_key);
+    keyprefFactoryIdleTimeout = getString(R.string.pref_factoryidletimeout_key);
+    keyprefAudioBandwidth = getString(R.string.pref_audiobandwidth_key);
+    keyprefVideoBandwidth = getString(R.string.pref_videobandwidth_key);
     keyprefVideoCodec = getString(R.string.pref_videocodec_key);
     keyprefHwCodecAcceleration = getString(R.string.pref_hwcodec_key);
     keyprefCaptureToTexture = getString(R.string.pref_capturetotexture_key);
@@ -100,9 +132,11 @@ public class ConnectActivity extends Activity {
     keyprefNoAudioProcessingPipeline = getString(R.string.pref_noaudioprocessing_key);
     keyprefAecDump = getString(R.string.pref_aecdump_key);
     keyprefOpenSLES = getString(R.string.pref_opensles_key);
+    keyprefKeepAudioWarm = getString(R.string.pref_keepaudiowarm_key);
     keyprefDisplayHud = getString(R.string.pref_displayhud_key);
     keyprefTracing = getString(R.string.pref_tracing_key);
     keyprefRoomServerUrl = getString(R.string.pref_room_server_url_key);
+    keyprefIceConfigUrl = getString(R.string.pref_ice_config_url_key);
     keyprefRoom = getString(R.string.pref_room_key);
     keyprefRoomList = getString(R.string.pref_room_list_key);
 
@@ -209,6 +243,30 @@ public class ConnectActivity extends Activity {
       roomListView.requestFocus();
       roomListView.setItemChecked(0, true);
     }
+    IceServerProvider.getInstance().start(this, sharedPref.getString(
+        keyprefIceConfigUrl, getString(R.string.pref_ice_config_url_default)));
+    // Rank the servers now, so the call can use the nearest ones at once.
+    IceServerRanker.getInstance().start(this);
+    IceServerRanker.getInstance().probe(IceServerProvider.getInstance().getIceServers());
+    warmUpSignaling();
+  }
+
+  // Resolves and pre-connects to the room server, and signs in to the
+  // selected room if enabled, so the call does not start cold.
+  private void warmUpSignaling() {
+    String roomUrl = sharedPref.getString(
+        keyprefRoomServerUrl,
+        getString(R.string.pref_room_server_url_default));
+    if (!URLUtil.isHttpsUrl(roomUrl) && !URLUtil.isHttpUrl(roomUrl)) {
+      return;
+    }
+    boolean earlySignIn = sharedPref.getBoolean(keyprefEarlySignIn,
+        Boolean.valueOf(getString(R.string.pref_earlysignin_default)));
+    String roomId = getSelectedItem();
+    if (roomId == null) {
+      roomId = roomEditText.getText().toString();
+    }
+    SignalingWarmup.getInstance().warmUp(roomUrl, roomId, earlySignIn);
   }
 
   @Override
@@ -285,6 +343,11 @@ public class ConnectActivity extends Activity {
         keyprefOpenSLES,
         Boolean.valueOf(getString(R.string.pref_opensles_default)));
 
+    // Check whether the audio source is kept between calls.
+    boolean keepAudioWarm = sharedPref.getBoolean(
+        keyprefKeepAudioWarm,
+        Boolean.valueOf(getString(R.string.pref_keepaudiowarm_default)));
+
     // Get video resolution from settings.
     int videoWidth = 0;
     int videoHeight = 0;
@@ -340,6 +403,40 @@ public class ConnectActivity extends Activity {
       audioStartBitrate = Integer.parseInt(bitrateValue);
     }
 
+    // Get video encoder bitrate limits and bandwidth caps. 0 means not set.
+    int videoMinBitrate = getIntPreference(keyprefVideoMinBitrate,
+        R.string.pref_minvideobitratevalue_default);
+    int videoMaxBitrate = getIntPreference(keyprefVideoMaxBitrate,
+        R.string.pref_maxvideobitratevalue_default);
+    int sessionBandwidth = getIntPreference(keyprefSessionBandwidth,
+        R.string.pref_sessionbandwidth_default);
+    int audioBandwidth = getIntPreference(keyprefAudioBandwidth,
+        R.string.pref_audiobandwidth_default);
+    int videoBandwidth = getIntPreference(keyprefVideoBandwidth,
+        R.string.pref_videobandwidth_default);
+
+    // Check SDP minimization flags.
+    boolean minimizeSdp = sharedPref.getBoolean(keyprefMinimizeSdp,
+        Boolean.valueOf(getString(R.string.pref_minimizesdp_default)));
+    boolean sdpRedundancy = sharedPref.getBoolean(keyprefSdpRedundancy,
+        Boolean.valueOf(getString(R.string.pref_sdpredundancy_default)));
+
+    // Check non-trickle ICE mode and its gathering timeout.
+    boolean nonTrickleIce = sharedPref.getBoolean(keyprefNonTrickleIce,
+        Boolean.valueOf(getString(R.string.pref_nontrickleice_default)));
+    int iceGatheringTimeout = getIntPreference(keyprefIceGatheringTimeout,
+        R.string.pref_icegatheringtimeout_default);
+    int maxIceServers = getIntPreference(keyprefMaxIceServers,
+        R.string.pref_maxiceservers_default);
+    int iceCandidateBatch = getIntPreference(keyprefIceCandidateBatch,
+        R.string.pref_icecandidatebatch_default);
+    int sdpHedgeDelay = getIntPreference(keyprefSdpHedgeDelay,
+        R.string.pref_sdphedgedelay_default);
+    boolean speculativeSetup = sharedPref.getBoolean(keyprefSpeculativeSetup,
+        Boolean.valueOf(getString(R.string.pref_speculativesetup_default)));
+    int factoryIdleTimeout = getIntPreference(keyprefFactoryIdleTimeout,
+        R.string.pref_factoryidletimeout_default);
+
     // Check statistics display option.
     boolean displayHud = sharedPref.getBoolean(keyprefDisplayHud,
         Boolean.valueOf(getString(R.string.pref_displayhud_default)));
@@ -362,6 +459,20 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED,
           captureQualitySlider);
       intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
+      intent.putExtra(CallActivity.EXTRA_VIDEO_MIN_BITRATE, videoMinBitrate);
+      intent.putExtra(CallActivity.EXTRA_VIDEO_MAX_BITRATE, videoMaxBitrate);
+      intent.putExtra(CallActivity.EXTRA_SESSION_BANDWIDTH, sessionBandwidth);
+      intent.putExtra(CallActivity.EXTRA_AUDIO_BANDWIDTH, audioBandwidth);
+      intent.putExtra(CallActivity.EXTRA_VIDEO_BANDWIDTH, videoBandwidth);
+      intent.putExtra(CallActivity.EXTRA_MINIMIZE_SDP, minimizeSdp);
+      intent.putExtra(CallActivity.EXTRA_SDP_REDUNDANCY, sdpRedundancy);
+      intent.putExtra(CallActivity.EXTRA_NON_TRICKLE_ICE, nonTrickleIce);
+      intent.putExtra(CallActivity.EXTRA_ICE_GATHERING_TIMEOUT, iceGatheringTimeout);
+      intent.putExtra(CallActivity.EXTRA_MAX_ICE_SERVERS, maxIceServers);
+      intent.putExtra(CallActivity.EXTRA_ICE_CANDIDATE_BATCH, iceCandidateBatch);
+      intent.putExtra(CallActivity.EXTRA_SDP_HEDGE_DELAY, sdpHedgeDelay);
+      intent.putExtra(CallActivity.EXTRA_SPECULATIVE_SETUP, speculativeSetup);
+      intent.putExtra(CallActivity.EXTRA_FACTORY_IDLE_TIMEOUT, factoryIdleTimeout * 1000);
       intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
       intent.putExtra(CallActivity.EXTRA_HWCODEC_ENABLED, hwCodec);
       intent.putExtra(CallActivity.EXTRA_CAPTURETOTEXTURE_ENABLED, captureToTexture);
@@ -369,6 +480,7 @@ public class ConnectActivity extends Activity {
           noAudioProcessing);
       intent.putExtra(CallActivity.EXTRA_AECDUMP_ENABLED, aecDump);
       intent.putExtra(CallActivity.EXTRA_OPENSLES_ENABLED, useOpenSLES);
+      intent.putExtra(CallActivity.EXTRA_KEEP_AUDIO_WARM, keepAudioWarm);
       intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE, audioStartBitrate);
       intent.putExtra(CallActivity.EXTRA_AUDIOCODEC, audioCodec);
       intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
@@ -380,6 +492,17 @@ public class ConnectActivity extends Activity {
     }
   }
 
+  // Reads an integer preference stored as a string, 0 if it is not a number.
+  private int getIntPreference(String key, int defaultResId) {
+    String value = sharedPref.getString(key, getString(defaultResId));
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      Log.e(TAG, "Wrong " + key + " setting: " + value);
+      return 0;
+    }
+  }
+
   private boolean validateUrl(String url) {
     Logout.verbose(TAG,"=====================");
     if (URLUtil.isHttpsUrl(url) || URLUtil.isHttpUrl(url)) {
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.OrderedSendQueue;
+import org.appspot.apprtc.util.OrderedSendQueue.SendQueueEvents;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends peer messages as HTTP POSTs to /message, one OrderedSendQueue per
+ * destination. Incoming messages arrive on the hanging GET (/wait), which
+ * WebSocketRTCClient runs for peer presence anyway.
+ */
+public class HttpSignalingTransport implements SignalingTransport {
+  private static final String TAG = "HttpSignalingTransport";
+  private static final String ROOM_MESSAGE = "message";
+  private final String roomUrl;
+  private final int myId;
+  private final SignalingTransportEvents events;
+  private final Map<Integer, OrderedSendQueue> sendQueues =
+      new HashMap<Integer, OrderedSendQueue>();
+  private boolean closed;
+
+  public HttpSignalingTransport(String roomUrl, int myId, SignalingTransportEvents events) {
+    this.roomUrl = roomUrl;
+    this.myId = myId;
+    this.events = events;
+  }
+
+  // Returns the URL that posts a message from |fromId| to |toId|.
+  static String getMessageUrl(String roomUrl, int fromId, int toId) {
+    return roomUrl + "/" + ROOM_MESSAGE + "?peer_id=" + fromId + "&to=" + toId;
+  }
+
+  @Override
+  public boolean isReady() {
+    return !closed;
+  }
+
+  @Override
+  public void send(int peerId, String message, int hedgeDelayMs, Runnable onSent) {
+    if (closed) {
+      Log.w(TAG, "Dropping message to " + peerId + " after close.");
+      return;
+    }
+    OrderedSendQueue queue = sendQueues.get(peerId);
+    if (queue == null) {
+      queue = new OrderedSendQueue(getMessageUrl(roomUrl, myId, peerId),
+          OrderedSendQueue.DEFAULT_MAX_IN_FLIGHT, new SendQueueEvents() {
+            @Override
+            public void onSendError(String errorMessage) {
+              events.onTransportError("GAE POST error: " + errorMessage);
+            }
+          });
+      sendQueues.put(peerId, queue);
+    }
+    Log.d(TAG, "C->GAE: " + peerId + ". Message: " + message);
+    queue.send(message, hedgeDelayMs, onSent);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    for (OrderedSendQueue queue : sendQueues.values()) {
+      queue.close();
+    }
+    sendQueues.clear();
+  }
+}
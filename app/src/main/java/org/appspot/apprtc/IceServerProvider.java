@@ -0,0 +1,319 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.appspot.apprtc.util.ResponseBodyReader;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the ICE server list, including short-lived TURN credentials, ready
+ * before a call needs it.
+ *
+ * <p>start() loads the servers cached on disk by an earlier run and fetches
+ * fresh ones from the configuration URL in the background. The servers are
+ * kept in memory and on disk until their TTL expires, and refreshed ahead of
+ * that, so getIceServers() never blocks on the network. Without a
+ * configuration URL, or without a valid response yet, the built-in servers
+ * are returned.
+ *
+ * <p>Two response formats are understood: a TURN REST response
+ * {"username", "password", "ttl", "uris": [...]}, and a peer connection
+ * configuration {"iceServers": [{"urls", "username", "credential"}]}.
+ */
+public class IceServerProvider {
+  private static final String TAG = "IceServerProvider";
+  private static final int HTTP_TIMEOUT_MS = 5000;
+  // Used when the response carries no TTL.
+  private static final long DEFAULT_TTL_MS = 3600 * 1000;
+  // Servers are refreshed once this fraction of their TTL has passed.
+  private static final double REFRESH_FRACTION = 0.75;
+  private static final long MIN_REFRESH_DELAY_MS = 30000;
+  private static final long RETRY_DELAY_MS = 30000;
+  private static final String PREFS_NAME = "ice_servers";
+  private static final String PREF_URL = "url";
+  private static final String PREF_RESPONSE = "response";
+  private static final String PREF_FETCHED_MS = "fetched_ms";
+  private static final String PREF_EXPIRES_MS = "expires_ms";
+  private static final IceServerProvider instance = new IceServerProvider();
+  private final ScheduledThreadPoolExecutor executor;
+  // Guarded by this.
+  private SharedPreferences cache;
+  private String configUrl;
+  private List<PeerConnection.IceServer> iceServers;
+  private long expiresMs;
+  private boolean fetching;
+  private ScheduledFuture<?> refresh;
+
+  private IceServerProvider() {
+    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public static IceServerProvider getInstance() {
+    return instance;
+  }
+
+  /**
+   * Servers used until a configuration URL delivers others.
+   */
+  public static List<PeerConnection.IceServer> getDefaultIceServers() {
+    List<PeerConnection.IceServer> servers = new LinkedList<PeerConnection.IceServer>();
+    servers.add(new PeerConnection.IceServer("stun:123.57.24.8:19302"));
+    servers.add(new PeerConnection.IceServer("turn:123.57.24.8:3478", "root", "geekon"));
+    return servers;
+  }
+
+  /**
+   * Starts providing the servers of |url|, an empty url selects the built-in
+   * servers. Loads the disk cache and fetches in the background; calling it
+   * again with the same url only fetches if the servers are due a refresh.
+   */
+  public void start(Context context, String url) {
+    final String newUrl = url == null ? "" : url.trim();
+    synchronized (this) {
+      if (cache == null) {
+        cache = context.getApplicationContext().getSharedPreferences(
+            PREFS_NAME, Context.MODE_PRIVATE);
+      }
+      if (!newUrl.equals(configUrl)) {
+        configUrl = newUrl;
+        iceServers = null;
+        expiresMs = 0;
+        cancelRefresh();
+      } else if (iceServers != null || fetching) {
+        if (!isRefreshDue(System.currentTimeMillis())) {
+          return;
+        }
+      }
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!loadCache(newUrl) || isRefreshDue(System.currentTimeMillis())) {
+          fetch(newUrl);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the current servers without blocking. Expired servers are not
+   * returned; a refresh is started and the built-in servers are used instead.
+   */
+  public List<PeerConnection.IceServer> getIceServers() {
+    synchronized (this) {
+      if (iceServers != null && System.currentTimeMillis() < expiresMs) {
+        return new LinkedList<PeerConnection.IceServer>(iceServers);
+      }
+      if (iceServers != null) {
+        Log.w(TAG, "ICE servers of " + configUrl + " expired.");
+        iceServers = null;
+        scheduleFetch(configUrl, 0);
+      }
+    }
+    return getDefaultIceServers();
+  }
+
+  private synchronized boolean isRefreshDue(long nowMs) {
+    if (configUrl == null || configUrl.length() == 0) {
+      return false;
+    }
+    if (iceServers == null) {
+      return !fetching;
+    }
+    return refresh == null && !fetching;
+  }
+
+  // Runs on the provider thread. Returns true if valid servers of |url| were
+  // found in memory or on disk.
+  private boolean loadCache(String url) {
+    SharedPreferences prefs;
+    synchronized (this) {
+      if (!url.equals(configUrl)) {
+        return true;
+      }
+      if (url.length() == 0 || iceServers != null) {
+        return true;
+      }
+      prefs = cache;
+    }
+    long nowMs = System.currentTimeMillis();
+    long fetchedMs = prefs.getLong(PREF_FETCHED_MS, 0);
+    long cachedExpiresMs = prefs.getLong(PREF_EXPIRES_MS, 0);
+    String response = prefs.getString(PREF_RESPONSE, null);
+    if (!url.equals(prefs.getString(PREF_URL, null)) || response == null
+        || cachedExpiresMs <= nowMs) {
+      return false;
+    }
+    try {
+      List<PeerConnection.IceServer> servers = parseIceServers(new JSONObject(response));
+      Log.d(TAG, "Loaded " + servers.size() + " cached ICE servers, valid for "
+          + (cachedExpiresMs - nowMs) / 1000 + " s.");
+      onIceServers(url, servers, fetchedMs, cachedExpiresMs);
+      return true;
+    } catch (JSONException e) {
+      Log.w(TAG, "Dropping unreadable ICE server cache: " + e.getMessage());
+      prefs.edit().clear().apply();
+      return false;
+    }
+  }
+
+  // Runs on the provider thread.
+  private void fetch(String url) {
+    synchronized (this) {
+      if (!url.equals(configUrl) || fetching) {
+        return;
+      }
+      fetching = true;
+      refresh = null;
+    }
+    long startTimeMs = System.currentTimeMillis();
+    boolean success = false;
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setConnectTimeout(HTTP_TIMEOUT_MS);
+      connection.setReadTimeout(HTTP_TIMEOUT_MS);
+      connection.setUseCaches(false);
+      int responseCode = connection.getResponseCode();
+      if (responseCode != 200) {
+        connection.disconnect();
+        throw new IOException("Non-200 response: " + responseCode);
+      }
+      InputStream responseStream = connection.getInputStream();
+      String response = ResponseBodyReader.read(
+          responseStream, connection.getContentLength());
+      responseStream.close();
+      JSONObject responseJSON = new JSONObject(response);
+      List<PeerConnection.IceServer> servers = parseIceServers(responseJSON);
+      if (servers.isEmpty()) {
+        throw new JSONException("No ICE servers");
+      }
+      long nowMs = System.currentTimeMillis();
+      long ttlMs = responseJSON.optLong("ttl", DEFAULT_TTL_MS / 1000) * 1000;
+      long newExpiresMs = nowMs + ttlMs;
+      Log.d(TAG, "Fetched " + servers.size() + " ICE servers in "
+          + (nowMs - startTimeMs) + " ms, valid for " + ttlMs / 1000 + " s.");
+      SharedPreferences prefs;
+      synchronized (this) {
+        prefs = cache;
+      }
+      prefs.edit()
+          .putString(PREF_URL, url)
+          .putString(PREF_RESPONSE, response)
+          .putLong(PREF_FETCHED_MS, nowMs)
+          .putLong(PREF_EXPIRES_MS, newExpiresMs)
+          .apply();
+      synchronized (this) {
+        fetching = false;
+      }
+      onIceServers(url, servers, nowMs, newExpiresMs);
+      success = true;
+    } catch (IOException e) {
+      Log.w(TAG, "ICE server request to " + url + " failed: " + e.getMessage());
+    } catch (JSONException e) {
+      Log.w(TAG, "ICE server response of " + url + " not valid: " + e.getMessage());
+    } finally {
+      if (!success) {
+        synchronized (this) {
+          fetching = false;
+          scheduleFetch(url, RETRY_DELAY_MS);
+        }
+      }
+    }
+  }
+
+  // Installs |servers| and schedules their refresh.
+  private synchronized void onIceServers(String url, List<PeerConnection.IceServer> servers,
+      long fetchedMs, long newExpiresMs) {
+    if (!url.equals(configUrl)) {
+      return;
+    }
+    iceServers = servers;
+    expiresMs = newExpiresMs;
+    long refreshAtMs = fetchedMs + (long) ((newExpiresMs - fetchedMs) * REFRESH_FRACTION);
+    scheduleFetch(url, Math.max(MIN_REFRESH_DELAY_MS,
+        refreshAtMs - System.currentTimeMillis()));
+  }
+
+  private synchronized void scheduleFetch(final String url, long delayMs) {
+    if (url == null || url.length() == 0 || !url.equals(configUrl)) {
+      return;
+    }
+    cancelRefresh();
+    refresh = executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        fetch(url);
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void cancelRefresh() {
+    if (refresh != null) {
+      refresh.cancel(false);
+      refresh = null;
+    }
+  }
+
+  private static List<PeerConnection.IceServer> parseIceServers(JSONObject json)
+      throws JSONException {
+    List<PeerConnection.IceServer> servers = new LinkedList<PeerConnection.IceServer>();
+    if (json.has("iceServers")) {
+      JSONArray entries = json.getJSONArray("iceServers");
+      for (int i = 0; i < entries.length(); ++i) {
+        JSONObject entry = entries.getJSONObject(i);
+        String username = entry.optString("username", "");
+        String credential = entry.optString("credential", "");
+        JSONArray urls = entry.optJSONArray("urls");
+        if (urls == null) {
+          servers.add(new PeerConnection.IceServer(
+              entry.getString("urls"), username, credential));
+          continue;
+        }
+        for (int j = 0; j < urls.length(); ++j) {
+          servers.add(new PeerConnection.IceServer(urls.getString(j), username, credential));
+        }
+      }
+    } else {
+      String username = json.getString("username");
+      String password = json.getString("password");
+      JSONArray uris = json.getJSONArray("uris");
+      for (int i = 0; i < uris.length(); ++i) {
+        servers.add(new PeerConnection.IceServer(uris.getString(i), username, password));
+      }
+    }
+    return servers;
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import org.appspot.apprtc.util.StunProbe;
+import org.webrtc.PeerConnection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Orders ICE servers by their measured round trip time.
+ *
+ * <p>probe() sends STUN binding requests to all UDP STUN and TURN servers in
+ * parallel, see StunProbe, and keeps the RTTs per network, so switching
+ * between WiFi and mobile data does not reuse a ranking measured elsewhere.
+ * select() never blocks: it orders the servers by what is known for the
+ * current network and starts a new probe in the background when servers are
+ * unmeasured or the ranking is older than RANKING_TTL_MS.
+ */
+public class IceServerRanker {
+  private static final String TAG = "IceServerRanker";
+  private static final int PROBE_TIMEOUT_MS = 1500;
+  private static final long RANKING_TTL_MS = 10 * 60 * 1000;
+  private static final int DEFAULT_STUN_PORT = 3478;
+  private static final IceServerRanker instance = new IceServerRanker();
+  private final ExecutorService executor;
+  // Guarded by this.
+  private Context context;
+  private final Map<String, Ranking> rankings = new HashMap<String, Ranking>();
+  private boolean probing;
+
+  /**
+   * RTTs measured on one network, by server "host:port".
+   */
+  private static class Ranking {
+    final Map<String, Long> rttMs = new HashMap<String, Long>();
+    long probedMs;
+  }
+
+  private IceServerRanker() {
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public static IceServerRanker getInstance() {
+    return instance;
+  }
+
+  /**
+   * Sets the context used to tell networks apart. Without it all
+   * measurements share one ranking.
+   */
+  public synchronized void start(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /**
+   * Measures |servers| on the current network in the background, unless a
+   * fresh ranking covers them all or a probe is running.
+   */
+  public void probe(List<PeerConnection.IceServer> servers) {
+    final String networkKey = getNetworkKey();
+    final List<String> targets = new ArrayList<String>();
+    final boolean stale;
+    synchronized (this) {
+      if (probing) {
+        return;
+      }
+      Ranking ranking = rankings.get(networkKey);
+      stale = ranking == null
+          || System.currentTimeMillis() - ranking.probedMs > RANKING_TTL_MS;
+      for (PeerConnection.IceServer server : servers) {
+        String target = getProbeTarget(server.uri);
+        if (target != null && !targets.contains(target)
+            && (stale || !ranking.rttMs.containsKey(target))) {
+          targets.add(target);
+        }
+      }
+      if (targets.isEmpty()) {
+        return;
+      }
+      probing = true;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          probeInternal(networkKey, targets, stale);
+        } finally {
+          synchronized (IceServerRanker.this) {
+            probing = false;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns |servers| with the fastest first, cut to |maxServers| if that is
+   * above 0. Servers that cannot be probed, or are not measured yet, follow
+   * the measured ones in their original order; unreachable servers go last.
+   * The cut always keeps a TURN server if there is one, since calls behind a
+   * symmetric NAT need a relay however fast the STUN servers are.
+   */
+  public List<PeerConnection.IceServer> select(
+      List<PeerConnection.IceServer> servers, int maxServers) {
+    String networkKey = getNetworkKey();
+    Map<String, Long> rttMs;
+    synchronized (this) {
+      Ranking ranking = rankings.get(networkKey);
+      rttMs = ranking == null
+          ? new HashMap<String, Long>() : new HashMap<String, Long>(ranking.rttMs);
+    }
+    probe(servers);
+    List<PeerConnection.IceServer> selected = rank(servers, rttMs, maxServers);
+    if (selected.size() < servers.size() || !rttMs.isEmpty()) {
+      StringBuilder log = new StringBuilder("Selected ICE servers on " + networkKey + ":");
+      for (PeerConnection.IceServer server : selected) {
+        Long rtt = rttMs.get(getProbeTarget(server.uri));
+        log.append(" ").append(server.uri).append(rtt == null ? "" : " (" + rtt + " ms)");
+      }
+      Log.d(TAG, log.toString());
+    }
+    return selected;
+  }
+
+  // Orders |servers| by |rttMs| and cuts the list to |maxServers|, keeping
+  // the fastest relay.
+  static List<PeerConnection.IceServer> rank(List<PeerConnection.IceServer> servers,
+      final Map<String, Long> rttMs, int maxServers) {
+    List<PeerConnection.IceServer> ranked = new ArrayList<PeerConnection.IceServer>(servers);
+    // Stable sort, so equal classes keep the configured order.
+    Collections.sort(ranked, new Comparator<PeerConnection.IceServer>() {
+      @Override
+      public int compare(PeerConnection.IceServer lhs, PeerConnection.IceServer rhs) {
+        long lhsKey = getSortKey(rttMs.get(getProbeTarget(lhs.uri)));
+        long rhsKey = getSortKey(rttMs.get(getProbeTarget(rhs.uri)));
+        return lhsKey < rhsKey ? -1 : (lhsKey == rhsKey ? 0 : 1);
+      }
+    });
+    if (maxServers <= 0 || ranked.size() <= maxServers) {
+      return new LinkedList<PeerConnection.IceServer>(ranked);
+    }
+    LinkedList<PeerConnection.IceServer> selected =
+        new LinkedList<PeerConnection.IceServer>(ranked.subList(0, maxServers));
+    boolean hasRelay = false;
+    for (PeerConnection.IceServer server : selected) {
+      hasRelay |= isRelay(server.uri);
+    }
+    if (!hasRelay) {
+      for (PeerConnection.IceServer server : ranked.subList(maxServers, ranked.size())) {
+        if (isRelay(server.uri)) {
+          // Replaces the slowest server that made the cut.
+          selected.removeLast();
+          selected.addLast(server);
+          break;
+        }
+      }
+    }
+    return selected;
+  }
+
+  // Returns true for turn: and turns: uris.
+  static boolean isRelay(String uri) {
+    return uri.toLowerCase().startsWith("turn");
+  }
+
+  private static long getSortKey(Long rttMs) {
+    if (rttMs == null) {
+      return Long.MAX_VALUE - 1;
+    }
+    return rttMs == StunProbe.UNREACHABLE ? Long.MAX_VALUE : rttMs;
+  }
+
+  /**
+   * Returns "host:port" of a UDP stun: or turn: uri, or null for servers a
+   * UDP binding request does not reach (turns:, transport=tcp).
+   */
+  static String getProbeTarget(String uri) {
+    int schemeEnd = uri.indexOf(':');
+    if (schemeEnd < 0) {
+      return null;
+    }
+    String scheme = uri.substring(0, schemeEnd).toLowerCase();
+    String rest = uri.substring(schemeEnd + 1);
+    int queryStart = rest.indexOf('?');
+    if (queryStart >= 0) {
+      if (rest.substring(queryStart + 1).toLowerCase().contains("transport=tcp")) {
+        return null;
+      }
+      rest = rest.substring(0, queryStart);
+    }
+    if (!scheme.equals("stun") && !scheme.equals("turn")) {
+      return null;
+    }
+    // Drop user info of turn:user@host uris.
+    rest = rest.substring(rest.lastIndexOf('@') + 1);
+    int portStart = rest.lastIndexOf(':');
+    if (portStart < 0 || rest.endsWith("]")) {
+      return rest.length() == 0 ? null : rest + ":" + DEFAULT_STUN_PORT;
+    }
+    try {
+      int port = Integer.parseInt(rest.substring(portStart + 1));
+      return port > 0 && port < 65536 && portStart > 0 ? rest : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // Runs on the ranker thread. |complete| is set if |targets| are all
+  // servers, so the ranking counts as fresh afterwards.
+  private void probeInternal(String networkKey, List<String> targets, boolean complete) {
+    List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+    for (String target : targets) {
+      int portStart = target.lastIndexOf(':');
+      String host = target.substring(0, portStart);
+      if (host.startsWith("[") && host.endsWith("]")) {
+        host = host.substring(1, host.length() - 1);
+      }
+      addresses.add(InetSocketAddress.createUnresolved(
+          host, Integer.parseInt(target.substring(portStart + 1))));
+    }
+    long startTimeMs = System.currentTimeMillis();
+    long[] rttMs;
+    try {
+      rttMs = StunProbe.probe(addresses, PROBE_TIMEOUT_MS);
+    } catch (IOException e) {
+      Log.w(TAG, "STUN probe failed: " + e.getMessage());
+      return;
+    }
+    StringBuilder log = new StringBuilder("Probed on " + networkKey + " in "
+        + (System.currentTimeMillis() - startTimeMs) + " ms:");
+    synchronized (this) {
+      Ranking ranking = rankings.get(networkKey);
+      if (ranking == null) {
+        ranking = new Ranking();
+        rankings.put(networkKey, ranking);
+      }
+      for (int i = 0; i < targets.size(); i++) {
+        ranking.rttMs.put(targets.get(i), rttMs[i]);
+        log.append(" ").append(targets.get(i)).append("=").append(
+            rttMs[i] == StunProbe.UNREACHABLE ? "unreachable" : rttMs[i] + "ms");
+      }
+      if (complete) {
+        ranking.probedMs = System.currentTimeMillis();
+      }
+    }
+    Log.d(TAG, log.toString());
+  }
+
+  // Identifies the active network: its type, and for WiFi the SSID.
+  private String getNetworkKey() {
+    Context appContext;
+    synchronized (this) {
+      appContext = context;
+    }
+    if (appContext == null) {
+      return "default";
+    }
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo networkInfo =
+        connectivityManager == null ? null : connectivityManager.getActiveNetworkInfo();
+    if (networkInfo == null) {
+      return "none";
+    }
+    return networkInfo.getTypeName() + "/" + networkInfo.getExtraInfo();
+  }
+}
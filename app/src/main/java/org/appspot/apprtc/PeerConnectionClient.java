@@ -19,6 +19,7 @@ import android.util.Log;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.util.Logout;
 import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.LooperExecutor.Priority;
 import org.webrtc.CameraEnumerationAndroid;
 import org.webrtc.DataChannel;
 import org.webrtc.EglBase;
@@ -39,17 +40,17 @@ import org.webrtc.VideoCapturerAndroid;
 import org.webrtc.VideoRenderer;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
-import org.webrtc.voiceengine.WebRtcAudioManager;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Peer connection client implementation.
@@ -57,20 +58,27 @@ import java.util.regex.Pattern;
  * <p>All public methods are routed to local looper thread.
  * All PeerConnectionEvents callbacks are invoked from the same looper thread.
  * This class is a singleton.
+ *
+ * <p>For mesh calls addPeer() opens one peer connection per remote peer. They
+ * share the factory, the camera and the local stream, and each reports its
+ * events and stats to the PeerConnectionEvents given for its peer. The single
+ * peer methods act on the peer DEFAULT_PEER_ID.
  */
 public class PeerConnectionClient {
   public static final String VIDEO_TRACK_ID = "ARDAMSv0";
   public static final String AUDIO_TRACK_ID = "ARDAMSa0";
   private static final String TAG = "PCRTCClient";
-  private static final String FIELD_TRIAL_AUTOMATIC_RESIZE =
-      "WebRTC-MediaCodecVideoEncoder-AutomaticResize/Enabled/";
-  private static final String VIDEO_CODEC_VP8 = "VP8";
-  private static final String VIDEO_CODEC_VP9 = "VP9";
-  private static final String VIDEO_CODEC_H264 = "H264";
+  static final String VIDEO_CODEC_VP8 = "VP8";
+  static final String VIDEO_CODEC_VP9 = "VP9";
+  static final String VIDEO_CODEC_H264 = "H264";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
   private static final String VIDEO_CODEC_PARAM_START_BITRATE =
       "x-google-start-bitrate";
+  private static final String VIDEO_CODEC_PARAM_MIN_BITRATE =
+      "x-google-min-bitrate";
+  private static final String VIDEO_CODEC_PARAM_MAX_BITRATE =
+      "x-google-max-bitrate";
   private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT= "googAutoGainControl";
@@ -90,49 +98,292 @@ public class PeerConnectionClient {
   private static final int MAX_VIDEO_FPS = 30;
 
   private static final PeerConnectionClient instance = new PeerConnectionClient();
-  private final PCObserver pcObserver = new PCObserver();
-  private final SDPObserver sdpObserver = new SDPObserver();
+  // Peer behind the single peer methods, such as createPeerConnection() and
+  // createOffer(). Its events go to the factory wide PeerConnectionEvents.
+  public static final String DEFAULT_PEER_ID = "default";
   private final LooperExecutor executor;
+  private final PeerConnectionFactoryManager factoryManager;
+  private final StatsScheduler statsScheduler;
 
   private PeerConnectionFactory factory;
-  private PeerConnection peerConnection;
-  private DataChannel dataChannel;
-  private DataChannel receiveChannel;
-  private DcObserver dcObserver;
   PeerConnectionFactory.Options options = null;
   private VideoSource videoSource;
   private boolean videoCallEnabled;
   private boolean preferIsac;
-  private String preferredVideoCodec;
+  private List<String> preferredVideoCodecs;
+  private SdpMunger sdpMunger;
   private boolean videoSourceStopped;
   private boolean isError;
-  private Timer statsTimer;
   private VideoRenderer.Callbacks localRender;
-  private VideoRenderer.Callbacks remoteRender;
-  private SignalingParameters signalingParameters;
   private MediaConstraints pcConstraints;
   private MediaConstraints videoConstraints;
   private MediaConstraints audioConstraints;
   private ParcelFileDescriptor aecDumpFileDescriptor;
   private MediaConstraints sdpMediaConstraints;
   private PeerConnectionParameters peerConnectionParameters;
-  // Queued remote ICE candidates are consumed only after both local and
-  // remote descriptions are set. Similarly local ICE candidates are sent to
-  // remote peer after both local and remote description are set.
-  private LinkedList<IceCandidate> queuedRemoteCandidates;
   private PeerConnectionEvents events;
-  private boolean isInitiator;
-  private SessionDescription localSdp; // either offer or answer SDP
+  // Peer connections by peer id, in creation order. Only used on the looper
+  // thread.
+  private final Map<String, PeerSession> sessions = new LinkedHashMap<String, PeerSession>();
+  // Data channel of the default peer, read by the UI thread.
+  private volatile DataChannel defaultDataChannel;
+  // Camera and local stream, shared by all peer connections.
   private MediaStream mediaStream;
   private int numberOfCameras;
   private VideoCapturerAndroid videoCapturer;
   // enableVideo is set to true if video should be rendered and sent.
   private boolean renderVideo;
   private VideoTrack localVideoTrack;
-  private VideoTrack remoteVideoTrack;
 
+  /**
+   * Peer connection to one remote peer with its negotiation state. Only
+   * used on the looper thread, except where noted.
+   */
+  private class PeerSession {
+    final String peerId;
+    final PeerConnectionEvents events;
+    final VideoRenderer.Callbacks remoteRender;
+    SignalingParameters signalingParameters;
+    PeerConnection peerConnection;
+    DataChannel dataChannel;
+    DataChannel receiveChannel;
+    // Replaced with the peer connection, so late events of a disposed one
+    // can be told apart. Read on native threads.
+    volatile PCObserver pcObserver;
+    volatile SDPObserver sdpObserver;
+    // Queued remote ICE candidates are consumed only after both local and
+    // remote descriptions are set. Similarly local ICE candidates are sent to
+    // remote peer after both local and remote description are set.
+    LinkedList<IceCandidate> queuedRemoteCandidates;
+    boolean isInitiator;
+    SessionDescription localSdp; // either offer or answer SDP
+    // Non-trickle ICE state: local SDP waits for gathering, and local
+    // candidates are only trickled once the SDP has been sent.
+    boolean localSdpPending;
+    boolean localSdpSent;
+    boolean iceGatheringComplete;
+    // Speculative setup: the peer connection is built and a speculative offer
+    // set, which starts ICE gathering, before signaling knows the remote peer.
+    // The offer and local candidates are held until the call is adopted.
+    boolean speculative;
+    boolean speculativeSdpSet;
+    LinkedList<IceCandidate> heldLocalCandidates;
+    VideoTrack remoteVideoTrack;
+    boolean isError;
+
+    PeerSession(String peerId, VideoRenderer.Callbacks remoteRender,
+        SignalingParameters signalingParameters, PeerConnectionEvents events) {
+      this.peerId = peerId;
+      this.remoteRender = remoteRender;
+      this.signalingParameters = signalingParameters;
+      this.events = events;
+    }
+
+    boolean isActive() {
+      return peerConnection != null && !isError && !PeerConnectionClient.this.isError;
+    }
+
+    void createRtcPeerConnection() {
+      PeerConnection.RTCConfiguration rtcConfig =
+          new PeerConnection.RTCConfiguration(IceServerRanker.getInstance().select(
+              signalingParameters.iceServers, peerConnectionParameters.maxIceServers));
+      // TCP candidates are only useful when connecting to a server that supports
+      // ICE-TCP.
+      rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+      rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+      rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+      // Use ECDSA encryption.
+      rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+
+      pcObserver = new PCObserver(this);
+      sdpObserver = new SDPObserver(this);
+      queuedRemoteCandidates = new LinkedList<IceCandidate>();
+      peerConnection = factory.createPeerConnection(
+          rtcConfig, pcConstraints, pcObserver);
+      isInitiator = false;
+      createDataChannel();
+    }
+
+    private void createDataChannel() {
+      dataChannel = peerConnection.createDataChannel("dataChannel", new DataChannel.Init());
+      dataChannel.registerObserver(new DcObserver(this, dataChannel));
+      if (peerId.equals(DEFAULT_PEER_ID)) {
+        defaultDataChannel = dataChannel;
+      }
+    }
+
+    void createOffer() {
+      Log.d(TAG, "PC Create OFFER for " + peerId);
+      isInitiator = true;
+      peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
+    }
+
+    void createAnswer() {
+      Log.d(TAG, "PC create ANSWER for " + peerId);
+      isInitiator = false;
+      peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+    }
+
+    void addRemoteIceCandidate(IceCandidate candidate) {
+      if (queuedRemoteCandidates != null) {
+        queuedRemoteCandidates.add(candidate);
+      } else {
+        peerConnection.addIceCandidate(candidate);
+      }
+    }
+
+    void setRemoteDescription(SessionDescription sdp) {
+      Log.d(TAG, "Set remote SDP of " + peerId + ".");
+      SessionDescription sdpRemote = new SessionDescription(
+          sdp.type, sdpMunger.mungeRemoteDescription(sdp.description));
+      peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+    }
+
+    boolean getStats(final Runnable onComplete) {
+      if (!isActive()) {
+        return false;
+      }
+      boolean success = peerConnection.getStats(new StatsObserver() {
+        @Override
+        public void onComplete(final StatsReport[] reports) {
+          events.onPeerConnectionStatsReady(reports);
+          onComplete.run();
+        }
+      }, null);
+      if (!success) {
+        Log.e(TAG, "getStats() of " + peerId + " returns false!");
+      }
+      return success;
+    }
+
+    void drainCandidates() {
+      if (queuedRemoteCandidates != null) {
+        Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates of " + peerId);
+        for (IceCandidate candidate : queuedRemoteCandidates) {
+          peerConnection.addIceCandidate(candidate);
+        }
+        queuedRemoteCandidates = null;
+      }
+    }
+
+    // Called on the executor thread once the local description is set. In
+    // trickle mode it is sent right away; in non-trickle mode it is held until
+    // ICE gathering completes or the gathering timeout fires.
+    void onLocalDescriptionSet() {
+      if (speculative) {
+        // Sent once the call adopts the speculative offer.
+        speculativeSdpSet = true;
+        return;
+      }
+      if (!peerConnectionParameters.nonTrickleIce || iceGatheringComplete) {
+        sendLocalDescription();
+        return;
+      }
+      Log.d(TAG, "Waiting up to " + peerConnectionParameters.iceGatheringTimeoutMs
+          + " ms for ICE gathering.");
+      localSdpPending = true;
+      executor.executeDelayed(new Runnable() {
+        @Override
+        public void run() {
+          if (localSdpPending) {
+            Log.w(TAG, "ICE gathering timed out, sending partial candidates.");
+            sendLocalDescription();
+          }
+        }
+      }, peerConnectionParameters.iceGatheringTimeoutMs);
+    }
+
+    void sendLocalDescription() {
+      localSdpPending = false;
+      if (!isActive()) {
+        return;
+      }
+      SessionDescription sdp = localSdp;
+      if (peerConnectionParameters.nonTrickleIce) {
+        // The current local description carries the gathered candidates.
+        SessionDescription gathered = peerConnection.getLocalDescription();
+        if (gathered != null) {
+          sdp = new SessionDescription(localSdp.type, gathered.description);
+        }
+      }
+      localSdpSent = true;
+      events.onLocalDescription(sdp);
+    }
+
+    void adoptSpeculative(boolean initiator) {
+      if (!speculative || !isActive()) {
+        return;
+      }
+      speculative = false;
+      if (initiator) {
+        Log.d(TAG, "Adopting speculative offer with " + heldLocalCandidates.size()
+            + " gathered candidates.");
+        if (speculativeSdpSet) {
+          onLocalDescriptionSet();
+        }
+        for (IceCandidate candidate : heldLocalCandidates) {
+          events.onIceCandidate(candidate);
+        }
+        heldLocalCandidates = null;
+        return;
+      }
+      Log.d(TAG, "Remote peer offers, replacing the speculative peer connection.");
+      heldLocalCandidates = null;
+      speculativeSdpSet = false;
+      localSdp = null;
+      localSdpPending = false;
+      localSdpSent = false;
+      iceGatheringComplete = false;
+      close();
+      createRtcPeerConnection();
+      peerConnection.addStream(mediaStream);
+    }
+
+    void close() {
+      if (peerConnection == null) {
+        return;
+      }
+      // dispose() would also free the local stream the peers share.
+      if (mediaStream != null) {
+        peerConnection.removeStream(mediaStream);
+      }
+      peerConnection.dispose();
+      peerConnection = null;
+      dataChannel = null;
+      receiveChannel = null;
+      remoteVideoTrack = null;
+      if (peerId.equals(DEFAULT_PEER_ID)) {
+        defaultDataChannel = null;
+      }
+    }
+
+    void reportError(final String errorMessage) {
+      Log.e(TAG, "Peerconnection error of " + peerId + ": " + errorMessage);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (isError) {
+            return;
+          }
+          isError = true;
+          if (peerId.equals(DEFAULT_PEER_ID)) {
+            // A single peer call fails as a whole.
+            PeerConnectionClient.this.isError = true;
+          }
+          events.onPeerConnectionError(errorMessage);
+        }
+      });
+    }
+  }
 
   private class DcObserver implements DataChannel.Observer {
+    private final PeerSession session;
+    private final DataChannel channel;
+
+    DcObserver(PeerSession session, DataChannel channel) {
+      this.session = session;
+      this.channel = channel;
+    }
 
     @Override
     public void onMessage(final DataChannel.Buffer buffer) {
@@ -143,9 +394,10 @@ public class PeerConnectionClient {
       data.get(bytes);
       final String command = new String(bytes);
 
-      executor.execute(new Runnable() {
+      // The BULK lane is unbounded, application messages are never dropped.
+      executor.execute(Priority.BULK, new Runnable() {
         public void run() {
-          events.onReceivedData(command);
+          session.events.onReceivedData(command);
         }
       });
 
@@ -153,7 +405,7 @@ public class PeerConnectionClient {
 
     @Override
     public void onStateChange() {
-      Log.d(TAG, "DataChannel: onStateChange: " + dataChannel.state());
+      Log.d(TAG, "DataChannel of " + session.peerId + ": onStateChange: " + channel.state());
     }
 
     @Override
@@ -166,7 +418,7 @@ public class PeerConnectionClient {
 
   public DataChannel  getPCDataChannel()
   {
-    return  dataChannel;
+    return  defaultDataChannel;
   }
   /**
    * Peer connection parameters.
@@ -187,13 +439,42 @@ public class PeerConnectionClient {
     public final boolean noAudioProcessing;
     public final boolean aecDump;
     public final boolean useOpenSLES;
+    // Video encoder bitrate limits in kbps, 0 if not set.
+    public final int videoMinBitrate;
+    public final int videoMaxBitrate;
+    // Bandwidth caps in kbps for the session and for each audio and video
+    // m-section, 0 if not set.
+    public final int sessionMaxBandwidth;
+    public final int audioMaxBandwidth;
+    public final int videoMaxBandwidth;
+    // Strip codecs other than the preferred ones from the local description
+    // before it is signaled, optionally keeping RED/FEC payloads.
+    public final boolean minimizeSdp;
+    public final boolean keepRedundancyCodecs;
+    // Non-trickle ICE: send the local description only after ICE gathering
+    // completes, or after |iceGatheringTimeoutMs|, with candidates inlined.
+    public final boolean nonTrickleIce;
+    public final int iceGatheringTimeoutMs;
+    // Only the |maxIceServers| servers with the lowest measured RTT are
+    // used, see IceServerRanker. 0 uses all servers.
+    public final int maxIceServers;
+    // The factory is kept for |factoryIdleTimeoutMs| after the call, so the
+    // next call skips its initialization; with |keepAudioWarm| the audio
+    // source is kept as well. See PeerConnectionFactoryManager.
+    public final int factoryIdleTimeoutMs;
+    public final boolean keepAudioWarm;
 
     public PeerConnectionParameters(
         boolean videoCallEnabled, boolean loopback, boolean tracing,
         int videoWidth, int videoHeight, int videoFps, int videoStartBitrate,
         String videoCodec, boolean videoCodecHwAcceleration, boolean captureToTexture,
         int audioStartBitrate, String audioCodec,
-        boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES) {
+        boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES,
+        int videoMinBitrate, int videoMaxBitrate, int sessionMaxBandwidth,
+        int audioMaxBandwidth, int videoMaxBandwidth,
+        boolean minimizeSdp, boolean keepRedundancyCodecs,
+        boolean nonTrickleIce, int iceGatheringTimeoutMs, int maxIceServers,
+        int factoryIdleTimeoutMs, boolean keepAudioWarm) {
       this.videoCallEnabled = videoCallEnabled;
       this.loopback = loopback;
       this.tracing = tracing;
@@ -209,6 +490,18 @@ public class PeerConnectionClient {
       this.noAudioProcessing = noAudioProcessing;
       this.aecDump = aecDump;
       this.useOpenSLES = useOpenSLES;
+      this.videoMinBitrate = videoMinBitrate;
+      this.videoMaxBitrate = videoMaxBitrate;
+      this.sessionMaxBandwidth = sessionMaxBandwidth;
+      this.audioMaxBandwidth = audioMaxBandwidth;
+      this.videoMaxBandwidth = videoMaxBandwidth;
+      this.minimizeSdp = minimizeSdp;
+      this.keepRedundancyCodecs = keepRedundancyCodecs;
+      this.nonTrickleIce = nonTrickleIce;
+      this.iceGatheringTimeoutMs = iceGatheringTimeoutMs;
+      this.maxIceServers = maxIceServers;
+      this.factoryIdleTimeoutMs = factoryIdleTimeoutMs;
+      this.keepAudioWarm = keepAudioWarm;
     }
   }
 
@@ -263,6 +556,13 @@ public class PeerConnectionClient {
     // peer connection API calls to ensure new peer connection factory is
     // created on the same thread as previously destroyed factory.
     executor.requestStart();
+    factoryManager = new PeerConnectionFactoryManager(executor);
+    statsScheduler = new StatsScheduler(executor, new StatsScheduler.StatsRequester() {
+      @Override
+      public boolean requestStats(Runnable onComplete) {
+        return getStats(onComplete);
+      }
+    });
   }
 
   public static PeerConnectionClient getInstance() {
@@ -285,22 +585,20 @@ public class PeerConnectionClient {
     videoCallEnabled = peerConnectionParameters.videoCallEnabled;
     // Reset variables to initial states.
     factory = null;
-    peerConnection = null;
     preferIsac = false;
+    sdpMunger = null;
     videoSourceStopped = false;
     isError = false;
-    queuedRemoteCandidates = null;
-    localSdp = null; // either offer or answer SDP
+    pcConstraints = null;
     mediaStream = null;
     videoCapturer = null;
     renderVideo = true;
     localVideoTrack = null;
-    remoteVideoTrack = null;
-    statsTimer = new Timer();
 
     executor.execute(new Runnable() {
       @Override
       public void run() {
+        sessions.clear();
         createPeerConnectionFactoryInternal(context);
       }
     });
@@ -312,18 +610,100 @@ public class PeerConnectionClient {
       final VideoRenderer.Callbacks remoteRender,
       final SignalingParameters signalingParameters) {
     Logout.verbose(TAG,"=====================");
+    addPeer(DEFAULT_PEER_ID, renderEGLContext, localRender, remoteRender,
+        signalingParameters, events);
+  }
+
+  /**
+   * Adds a peer connection to |peerId| for a mesh call. All peer connections
+   * share the factory, the camera and the local stream, which are set up
+   * with the first one. Events of this peer connection, including its stats,
+   * go to |peerEvents|. |remoteRender| may be null.
+   */
+  public void addPeer(
+      final String peerId,
+      final EglBase.Context renderEGLContext,
+      final VideoRenderer.Callbacks localRender,
+      final VideoRenderer.Callbacks remoteRender,
+      final SignalingParameters signalingParameters,
+      final PeerConnectionEvents peerEvents) {
+    if (peerConnectionParameters == null) {
+      Log.e(TAG, "Creating peer connection without initializing factory.");
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        addPeerInternal(peerId, renderEGLContext, localRender, remoteRender,
+            signalingParameters, peerEvents);
+      }
+    });
+  }
+
+  /**
+   * Closes the peer connection to |peerId|; the local stream stays open for
+   * the other peers. onPeerConnectionClosed() of its events follows.
+   */
+  public void removePeer(final String peerId) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        PeerSession session = sessions.remove(peerId);
+        if (session == null) {
+          return;
+        }
+        Log.d(TAG, "Closing peer connection to " + peerId + ", "
+            + sessions.size() + " left.");
+        session.close();
+        session.events.onPeerConnectionClosed();
+      }
+    });
+  }
+
+  /**
+   * Creates the peer connection, opens the camera and starts ICE gathering
+   * with a speculative offer before the remote peer is known. Nothing is
+   * sent until adoptSpeculativePeerConnection() is called.
+   */
+  public void createPeerConnectionSpeculatively(
+      final EglBase.Context renderEGLContext,
+      final VideoRenderer.Callbacks localRender,
+      final VideoRenderer.Callbacks remoteRender,
+      final SignalingParameters signalingParameters) {
     if (peerConnectionParameters == null) {
       Log.e(TAG, "Creating peer connection without initializing factory.");
       return;
     }
-    this.localRender = localRender;
-    this.remoteRender = remoteRender;
-    this.signalingParameters = signalingParameters;
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        createMediaConstraintsInternal();
-        createPeerConnectionInternal(renderEGLContext);
+        PeerSession session = addPeerInternal(DEFAULT_PEER_ID, renderEGLContext,
+            localRender, remoteRender, signalingParameters, events);
+        if (session != null && session.isActive()) {
+          Log.d(TAG, "PC create speculative OFFER");
+          session.speculative = true;
+          session.heldLocalCandidates = new LinkedList<IceCandidate>();
+          session.createOffer();
+        }
+      }
+    });
+  }
+
+  /**
+   * Hands the speculative peer connection over to the call once signaling
+   * completed. As initiator the held offer and candidates are sent. As
+   * answerer the offer cannot be rolled back, so the peer connection is
+   * replaced, keeping the camera and local stream.
+   */
+  public void adoptSpeculativePeerConnection(final SignalingParameters signalingParameters) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        PeerSession session = getSession(DEFAULT_PEER_ID);
+        if (session != null) {
+          session.signalingParameters = signalingParameters;
+          session.adoptSpeculative(signalingParameters.initiator);
+        }
       }
     });
   }
@@ -345,29 +725,18 @@ public class PeerConnectionClient {
 
   private void createPeerConnectionFactoryInternal(Context context) {
     Logout.verbose(TAG,"=====================");
-      PeerConnectionFactory.initializeInternalTracer();
-      if (peerConnectionParameters.tracing) {
-          PeerConnectionFactory.startInternalTracingCapture(
-                  Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-                  + "webrtc-trace.txt");
-      }
     Log.d(TAG, "Create peer connection factory. Use video: " +
         peerConnectionParameters.videoCallEnabled);
     isError = false;
 
-    // Initialize field trials.
-    PeerConnectionFactory.initializeFieldTrials(FIELD_TRIAL_AUTOMATIC_RESIZE);
-
-    // Check preferred video codec.
-    preferredVideoCodec = VIDEO_CODEC_VP8;
+    // Resolve preferred video codec list against available HW encoders.
+    String videoCodecPreference = VIDEO_CODEC_VP8;
     if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
-      if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_VP9)) {
-        preferredVideoCodec = VIDEO_CODEC_VP9;
-      } else if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_H264)) {
-        preferredVideoCodec = VIDEO_CODEC_H264;
-      }
+      videoCodecPreference = peerConnectionParameters.videoCodec;
     }
-    Log.d(TAG, "Pereferred video codec: " + preferredVideoCodec);
+    preferredVideoCodecs = VideoCodecPreference.parse(videoCodecPreference)
+        .resolve(peerConnectionParameters.videoCodecHwAcceleration);
+    Log.d(TAG, "Pereferred video codecs: " + preferredVideoCodecs);
 
     // Check if ISAC is used by default.
     preferIsac = false;
@@ -376,25 +745,86 @@ public class PeerConnectionClient {
       preferIsac = true;
     }
 
-    // Enable/disable OpenSL ES playback.
-    if (!peerConnectionParameters.useOpenSLES) {
-      Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
-      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
-    } else {
-      Log.d(TAG, "Allow OpenSL ES audio if device supports it");
-      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
-    }
+    // Compile SDP munging rules once for both local and remote descriptions.
+    sdpMunger = createSdpMunger();
 
-    // Create peer connection factory.
-    if (!PeerConnectionFactory.initializeAndroidGlobals(context, true, true,
-        peerConnectionParameters.videoCodecHwAcceleration)) {
+    // Reuse the factory of the previous call if it is still warm.
+    factory = factoryManager.acquire(context, peerConnectionParameters, options);
+    if (factory == null) {
       events.onPeerConnectionError("Failed to initializeAndroidGlobals");
+      return;
+    }
+    if (peerConnectionParameters.tracing) {
+      PeerConnectionFactory.startInternalTracingCapture(
+          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+          + "webrtc-trace.txt");
+    }
+  }
+
+  // Builds SDP munging rules from |peerConnectionParameters|. Codec
+  // preferences and bandwidth caps are applied to both descriptions so both
+  // directions are bounded; encoder bitrate parameters only go into the
+  // remote description, where they configure our own encoder.
+  private SdpMunger createSdpMunger() {
+    Logout.verbose(TAG,"=====================");
+    SdpMunger.Builder builder = new SdpMunger.Builder();
+    if (preferIsac) {
+      builder.addRule(SdpMunger.preferCodec(SdpMunger.MEDIA_AUDIO, AUDIO_CODEC_ISAC));
+    }
+    if (videoCallEnabled) {
+      builder.addRule(SdpMunger.preferCodecs(SdpMunger.MEDIA_VIDEO, preferredVideoCodecs));
+      addVideoBitrateRules(builder, VIDEO_CODEC_PARAM_START_BITRATE,
+          peerConnectionParameters.videoStartBitrate);
+      addVideoBitrateRules(builder, VIDEO_CODEC_PARAM_MIN_BITRATE,
+          peerConnectionParameters.videoMinBitrate);
+      addVideoBitrateRules(builder, VIDEO_CODEC_PARAM_MAX_BITRATE,
+          peerConnectionParameters.videoMaxBitrate);
+    }
+    if (peerConnectionParameters.audioStartBitrate > 0) {
+      builder.addRemoteRule(SdpMunger.setFmtpParameter(SdpMunger.MEDIA_AUDIO,
+          AUDIO_CODEC_OPUS, AUDIO_CODEC_PARAM_BITRATE,
+          Integer.toString(peerConnectionParameters.audioStartBitrate * 1000)));
+    }
+    if (peerConnectionParameters.sessionMaxBandwidth > 0) {
+      builder.addRule(SdpMunger.setMaxBandwidth(
+          null, peerConnectionParameters.sessionMaxBandwidth));
+    }
+    if (peerConnectionParameters.audioMaxBandwidth > 0) {
+      builder.addRule(SdpMunger.setMaxBandwidth(
+          SdpMunger.MEDIA_AUDIO, peerConnectionParameters.audioMaxBandwidth));
     }
-    if (options != null) {
-      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
+    if (videoCallEnabled && peerConnectionParameters.videoMaxBandwidth > 0) {
+      builder.addRule(SdpMunger.setMaxBandwidth(
+          SdpMunger.MEDIA_VIDEO, peerConnectionParameters.videoMaxBandwidth));
+    }
+    if (peerConnectionParameters.minimizeSdp) {
+      // Only the local description is minimized: it is what gets signaled,
+      // and the remote side already answers with a subset of our offer.
+      boolean keepRedundancy = peerConnectionParameters.keepRedundancyCodecs;
+      builder.addLocalRule(SdpMunger.retainCodecs(SdpMunger.MEDIA_AUDIO,
+          Collections.singletonList(preferIsac ? AUDIO_CODEC_ISAC : AUDIO_CODEC_OPUS),
+          keepRedundancy));
+      if (videoCallEnabled) {
+        builder.addLocalRule(SdpMunger.retainCodecs(SdpMunger.MEDIA_VIDEO,
+            preferredVideoCodecs, keepRedundancy));
+      }
+    }
+    return builder.build();
+  }
+
+  // Adds |param|=|bitrateKbps| to the fmtp lines of all video codecs of the
+  // remote description. Nothing is added if |bitrateKbps| is not positive.
+  private static void addVideoBitrateRules(
+      SdpMunger.Builder builder, String param, int bitrateKbps) {
+    if (bitrateKbps <= 0) {
+      return;
+    }
+    String bitrate = Integer.toString(bitrateKbps);
+    for (String codec : new String[] {
+        VIDEO_CODEC_VP8, VIDEO_CODEC_VP9, VIDEO_CODEC_H264 }) {
+      builder.addRemoteRule(SdpMunger.setFmtpParameter(
+          SdpMunger.MEDIA_VIDEO, codec, param, bitrate));
     }
-    factory = new PeerConnectionFactory(options);
-    Log.d(TAG, "Peer connection factory created.");
   }
 
   private void createMediaConstraintsInternal() {
@@ -415,6 +845,7 @@ public class PeerConnectionClient {
     if (numberOfCameras == 0) {
       Log.w(TAG, "No camera on device. Switch to audio only call.");
       videoCallEnabled = false;
+      sdpMunger = createSdpMunger();
     }
     // Create video constraints if video call is enabled.
     if (videoCallEnabled) {
@@ -483,39 +914,51 @@ public class PeerConnectionClient {
     }
   }
 
-  private void createPeerConnectionInternal(EglBase.Context renderEGLContext) {
+  private PeerSession addPeerInternal(String peerId, EglBase.Context renderEGLContext,
+      VideoRenderer.Callbacks localRender, VideoRenderer.Callbacks remoteRender,
+      SignalingParameters signalingParameters, PeerConnectionEvents peerEvents) {
     Logout.verbose(TAG,"=====================");
     if (factory == null || isError) {
       Log.e(TAG, "Peerconnection factory is not created");
-      return;
+      return null;
+    }
+    if (sessions.containsKey(peerId)) {
+      Log.e(TAG, "Peer connection to " + peerId + " exists already.");
+      return null;
     }
-    Log.d(TAG, "Create peer connection.");
+    if (pcConstraints == null) {
+      createMediaConstraintsInternal();
+    }
+    if (mediaStream == null) {
+      this.localRender = localRender;
+      createLocalMediaInternal(renderEGLContext);
+      if (mediaStream == null) {
+        return null;
+      }
+    }
+    Log.d(TAG, "Create peer connection to " + peerId + ".");
+    PeerSession session = new PeerSession(peerId, remoteRender, signalingParameters, peerEvents);
+    sessions.put(peerId, session);
+    session.createRtcPeerConnection();
+    session.peerConnection.addStream(mediaStream);
+    Log.d(TAG, "Peer connection created, " + sessions.size() + " in total.");
+    return session;
+  }
 
+  // Opens the camera and microphone into the local stream all peer
+  // connections send.
+  private void createLocalMediaInternal(EglBase.Context renderEGLContext) {
+    Logout.verbose(TAG,"=====================");
     Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
     if (videoConstraints != null) {
       Log.d(TAG, "VideoConstraints: " + videoConstraints.toString());
     }
-    queuedRemoteCandidates = new LinkedList<IceCandidate>();
 
     if (videoCallEnabled) {
       Log.d(TAG, "EGLContext: " + renderEGLContext);
       factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
     }
 
-    PeerConnection.RTCConfiguration rtcConfig =
-        new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
-    // TCP candidates are only useful when connecting to a server that supports
-    // ICE-TCP.
-    rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
-    rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-    rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-    // Use ECDSA encryption.
-    rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
-
-    peerConnection = factory.createPeerConnection(
-        rtcConfig, pcConstraints, pcObserver);
-    isInitiator = false;
-    createDataChannel(peerConnection);
     // Set default WebRTC tracing and INFO libjingle logging.
     // NOTE: this _must_ happen while |factory| is alive!
     Logging.enableTracing(
@@ -523,7 +966,7 @@ public class PeerConnectionClient {
         EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT),
         Logging.Severity.LS_INFO);
 
-    mediaStream = factory.createLocalMediaStream("ARDAMS");
+    MediaStream stream = factory.createLocalMediaStream("ARDAMS");
     if (videoCallEnabled) {
       String cameraDeviceName = CameraEnumerationAndroid.getDeviceName(0);
       String frontCameraDeviceName =
@@ -535,16 +978,17 @@ public class PeerConnectionClient {
       videoCapturer = VideoCapturerAndroid.create(cameraDeviceName, null,
           peerConnectionParameters.captureToTexture ? renderEGLContext : null);
       if (videoCapturer == null) {
+        stream.dispose();
         reportError("Failed to open camera");
         return;
       }
-      mediaStream.addTrack(createVideoTrack(videoCapturer));
+      stream.addTrack(createVideoTrack(videoCapturer));
     }
 
-    mediaStream.addTrack(factory.createAudioTrack(
+    stream.addTrack(factory.createAudioTrack(
         AUDIO_TRACK_ID,
-        factory.createAudioSource(audioConstraints)));
-    peerConnection.addStream(mediaStream);
+        factoryManager.createAudioSource(audioConstraints)));
+    mediaStream = stream;
 
     if (peerConnectionParameters.aecDump) {
       try {
@@ -558,15 +1002,15 @@ public class PeerConnectionClient {
         Log.e(TAG, "Can not open aecdump file", e);
       }
     }
-
-    Log.d(TAG, "Peer connection created.");
   }
 
-  private void createDataChannel(PeerConnection pc)
-  {
-    dataChannel=pc.createDataChannel("dataChannel",new DataChannel.Init());
-    dcObserver=new DcObserver();
-    dataChannel.registerObserver(dcObserver);
+  // Returns the peer connection to |peerId|, or null if there is none.
+  private PeerSession getSession(String peerId) {
+    PeerSession session = sessions.get(peerId);
+    if (session == null) {
+      Log.w(TAG, "No peer connection to " + peerId);
+    }
+    return session;
   }
 
   private void closeInternal() {
@@ -574,27 +1018,36 @@ public class PeerConnectionClient {
     if (factory != null && peerConnectionParameters.aecDump) {
       factory.stopAecDump();
     }
-    Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
-    if (peerConnection != null) {
-      peerConnection.dispose();
-      peerConnection = null;
+    Log.d(TAG, "Closing " + sessions.size() + " peer connections.");
+    Log.d(TAG, "Looper during call: " + executor.getStatsString());
+    statsScheduler.stop();
+    for (PeerSession session : sessions.values()) {
+      session.close();
+    }
+    sessions.clear();
+    if (mediaStream != null) {
+      mediaStream.dispose();
+      mediaStream = null;
     }
     Log.d(TAG, "Closing video source.");
     if (videoSource != null) {
       videoSource.dispose();
       videoSource = null;
     }
-    Log.d(TAG, "Closing peer connection factory.");
-    if (factory != null) {
-      factory.dispose();
-      factory = null;
+    // close() runs on the CONTROL lane and can overtake MEDIA tasks queued
+    // before it; they check these and skip the disposed capturer and track.
+    videoCapturer = null;
+    localVideoTrack = null;
+    if (peerConnectionParameters.tracing) {
+      PeerConnectionFactory.stopInternalTracingCapture();
     }
+    // The factory is disposed once it has been idle for a while.
+    factoryManager.release(peerConnectionParameters.factoryIdleTimeoutMs,
+        peerConnectionParameters.keepAudioWarm);
+    factory = null;
     options = null;
     Log.d(TAG, "Closing peer connection done.");
     events.onPeerConnectionClosed();
-    PeerConnectionFactory.stopInternalTracingCapture();
-    PeerConnectionFactory.shutdownInternalTracer();
   }
 
   public boolean isHDVideo() {
@@ -626,143 +1079,167 @@ public class PeerConnectionClient {
     }
   }
 
-  private void getStats() {
+  // Requests the stats of every peer connection, each reported to the
+  // events of its peer. |onComplete| runs once all reports arrived. Returns
+  // false if nothing was requested.
+  private boolean getStats(final Runnable onComplete) {
     Logout.verbose(TAG,"=====================");
-    if (peerConnection == null || isError) {
-      return;
+    if (isError) {
+      return false;
     }
-    boolean success = peerConnection.getStats(new StatsObserver() {
+    // One count per request, and one held until all requests are made.
+    final AtomicInteger pendingReports = new AtomicInteger(1);
+    Runnable onReportsReady = new Runnable() {
       @Override
-      public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports);
+      public void run() {
+        if (pendingReports.decrementAndGet() == 0) {
+          onComplete.run();
+        }
       }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
+    };
+    boolean requested = false;
+    for (PeerSession session : sessions.values()) {
+      pendingReports.incrementAndGet();
+      if (session.getStats(onReportsReady)) {
+        requested = true;
+      } else {
+        pendingReports.decrementAndGet();
+      }
+    }
+    if (requested) {
+      onReportsReady.run();
     }
+    return requested;
   }
 
-  public void enableStatsEvents(boolean enable, int periodMs) {
+  /**
+   * Starts or stops stats events. While enabled, stats are reported every
+   * |periodMs| while they are on screen and less often otherwise, see
+   * setStatsHudVisible() and setStatsInForeground().
+   */
+  public void enableStatsEvents(final boolean enable, final int periodMs) {
     Logout.verbose(TAG,"=====================");
-    if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                getStats();
-              }
-            });
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (enable) {
+          statsScheduler.start(periodMs);
+        } else {
+          statsScheduler.stop();
+        }
       }
-    } else {
-      statsTimer.cancel();
-    }
+    });
+  }
+
+  // Stats are reported every stats period while the HUD shows them.
+  public void setStatsHudVisible(final boolean visible) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        statsScheduler.setHudVisible(visible);
+      }
+    });
+  }
+
+  // Stats are reported rarely while the app is in the background.
+  public void setStatsInForeground(final boolean inForeground) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        statsScheduler.setInForeground(inForeground);
+      }
+    });
   }
 
   public void setVideoEnabled(final boolean enable) {
     Logout.verbose(TAG,"=====================");
-    executor.execute(new Runnable() {
+    executor.execute(Priority.MEDIA, new Runnable() {
       @Override
       public void run() {
         renderVideo = enable;
         if (localVideoTrack != null) {
           localVideoTrack.setEnabled(renderVideo);
         }
-        if (remoteVideoTrack != null) {
-          remoteVideoTrack.setEnabled(renderVideo);
+        for (PeerSession session : sessions.values()) {
+          if (session.remoteVideoTrack != null) {
+            session.remoteVideoTrack.setEnabled(renderVideo);
+          }
         }
       }
     });
   }
 
   public void createOffer() {
+    createOffer(DEFAULT_PEER_ID);
+  }
+
+  public void createOffer(final String peerId) {
     Logout.verbose(TAG,"=====================");
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        if (peerConnection != null && !isError) {
-          Log.d(TAG, "PC Create OFFER");
-          isInitiator = true;
-          peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
+        PeerSession session = getSession(peerId);
+        if (session != null && session.isActive()) {
+          session.createOffer();
         }
       }
     });
   }
 
   public void createAnswer() {
+    createAnswer(DEFAULT_PEER_ID);
+  }
+
+  public void createAnswer(final String peerId) {
     Logout.verbose(TAG,"=====================");
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        if (peerConnection != null && !isError) {
-          Log.d(TAG, "PC create ANSWER");
-          isInitiator = false;
-          peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+        PeerSession session = getSession(peerId);
+        if (session != null && session.isActive()) {
+          session.createAnswer();
         }
       }
     });
   }
 
   public void addRemoteIceCandidate(final IceCandidate candidate) {
+    addRemoteIceCandidate(DEFAULT_PEER_ID, candidate);
+  }
+
+  public void addRemoteIceCandidate(final String peerId, final IceCandidate candidate) {
     Logout.verbose(TAG,"=====================");
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        if (peerConnection != null && !isError) {
-          if (queuedRemoteCandidates != null) {
-            queuedRemoteCandidates.add(candidate);
-          } else {
-            peerConnection.addIceCandidate(candidate);
-          }
+        PeerSession session = getSession(peerId);
+        if (session != null && session.isActive()) {
+          session.addRemoteIceCandidate(candidate);
         }
       }
     });
   }
 
   public void setRemoteDescription(final SessionDescription sdp) {
+    setRemoteDescription(DEFAULT_PEER_ID, sdp);
+  }
+
+  public void setRemoteDescription(final String peerId, final SessionDescription sdp) {
     Logout.verbose(TAG,"=====================");
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        if (peerConnection == null || isError) {
-          return;
-        }
-        String sdpDescription = sdp.description;
-        if (preferIsac) {
-          sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-        }
-        if (videoCallEnabled) {
-          sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-        }
-        if (videoCallEnabled && peerConnectionParameters.videoStartBitrate > 0) {
-          sdpDescription = setStartBitrate(VIDEO_CODEC_VP8, true,
-              sdpDescription, peerConnectionParameters.videoStartBitrate);
-          sdpDescription = setStartBitrate(VIDEO_CODEC_VP9, true,
-              sdpDescription, peerConnectionParameters.videoStartBitrate);
-          sdpDescription = setStartBitrate(VIDEO_CODEC_H264, true,
-              sdpDescription, peerConnectionParameters.videoStartBitrate);
-        }
-        if (peerConnectionParameters.audioStartBitrate > 0) {
-          sdpDescription = setStartBitrate(AUDIO_CODEC_OPUS, false,
-              sdpDescription, peerConnectionParameters.audioStartBitrate);
+        PeerSession session = getSession(peerId);
+        if (session != null && session.isActive()) {
+          session.setRemoteDescription(sdp);
         }
-        Log.d(TAG, "Set remote SDP.");
-        SessionDescription sdpRemote = new SessionDescription(
-            sdp.type, sdpDescription);
-        peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
       }
     });
   }
 
   public void stopVideoSource() {
     Logout.verbose(TAG,"=====================");
-    executor.execute(new Runnable() {
+    executor.execute(Priority.MEDIA, new Runnable() {
       @Override
       public void run() {
         if (videoSource != null && !videoSourceStopped) {
@@ -776,7 +1253,7 @@ public class PeerConnectionClient {
 
   public void startVideoSource() {
     Logout.verbose(TAG,"=====================");
-    executor.execute(new Runnable() {
+    executor.execute(Priority.MEDIA, new Runnable() {
       @Override
       public void run() {
         if (videoSource != null && videoSourceStopped) {
@@ -812,146 +1289,6 @@ public class PeerConnectionClient {
     return localVideoTrack;
   }
 
-  private static String setStartBitrate(String codec, boolean isVideoCodec,
-      String sdpDescription, int bitrateKbps) {
-    Logout.verbose(TAG,"=====================");
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " +  codec + " rtpmap " + codecRtpMap
-        + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " +  codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE
-              + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE
-              + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " "
-              + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " "
-              + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
-
-    }
-    return newSdpDescription.toString();
-  }
-
-  private static String preferCodec(
-      String sdpDescription, String codec, boolean isAudio) {
-    Logout.verbose(TAG,"=====================");
-    String[] lines = sdpDescription.split("\r\n");
-    int mLineIndex = -1;
-    String codecRtpMap = null;
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    String mediaDescription = "m=video ";
-    if (isAudio) {
-      mediaDescription = "m=audio ";
-    }
-    for (int i = 0; (i < lines.length)
-        && (mLineIndex == -1 || codecRtpMap == null); i++) {
-      if (lines[i].startsWith(mediaDescription)) {
-        mLineIndex = i;
-        continue;
-      }
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        continue;
-      }
-    }
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec);
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " +  codec + " rtpmap " + codecRtpMap + ", prefer at "
-        + lines[mLineIndex]);
-    String[] origMLineParts = lines[mLineIndex].split(" ");
-    if (origMLineParts.length > 3) {
-      StringBuilder newMLine = new StringBuilder();
-      int origPartIndex = 0;
-      // Format is: m=<media> <port> <proto> <fmt> ...
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(codecRtpMap);
-      for (; origPartIndex < origMLineParts.length; origPartIndex++) {
-        if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
-          newMLine.append(" ").append(origMLineParts[origPartIndex]);
-        }
-      }
-      lines[mLineIndex] = newMLine.toString();
-      Log.d(TAG, "Change media description: " + lines[mLineIndex]);
-    } else {
-      Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
-    }
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (String line : lines) {
-      newSdpDescription.append(line).append("\r\n");
-    }
-    return newSdpDescription.toString();
-  }
-
-  private void drainCandidates() {
-    Logout.verbose(TAG,"=====================");
-    if (queuedRemoteCandidates != null) {
-      Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-      for (IceCandidate candidate : queuedRemoteCandidates) {
-        peerConnection.addIceCandidate(candidate);
-      }
-      queuedRemoteCandidates = null;
-    }
-  }
-
   private void switchCameraInternal() {
     Logout.verbose(TAG,"=====================");
     if (!videoCallEnabled || numberOfCameras < 2 || isError || videoCapturer == null) {
@@ -965,7 +1302,7 @@ public class PeerConnectionClient {
 
   public void switchCamera() {
     Logout.verbose(TAG,"=====================");
-    executor.execute(new Runnable() {
+    executor.execute(Priority.MEDIA, new Runnable() {
       @Override
       public void run() {
         switchCameraInternal();
@@ -975,7 +1312,7 @@ public class PeerConnectionClient {
 
   public void changeCaptureFormat(final int width, final int height, final int framerate) {
     Logout.verbose(TAG,"=====================");
-    executor.execute(new Runnable() {
+    executor.execute(Priority.MEDIA, new Runnable() {
       @Override
       public void run() {
         changeCaptureFormatInternal(width, height, framerate);
@@ -995,12 +1332,30 @@ public class PeerConnectionClient {
 
   // Implementation detail: observe ICE & stream changes and react accordingly.
   private class PCObserver implements PeerConnection.Observer {
+    private final PeerSession session;
+
+    PCObserver(PeerSession session) {
+      this.session = session;
+    }
+
     @Override
     public void onIceCandidate(final IceCandidate candidate){
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          events.onIceCandidate(candidate);
+          if (PCObserver.this != session.pcObserver) {
+            // Late event of a replaced speculative peer connection.
+            return;
+          }
+          if (peerConnectionParameters.nonTrickleIce && !session.localSdpSent) {
+            // Will be inlined into the local description.
+            return;
+          }
+          if (session.speculative) {
+            session.heldLocalCandidates.add(candidate);
+            return;
+          }
+          session.events.onIceCandidate(candidate);
         }
       });
     }
@@ -1017,13 +1372,17 @@ public class PeerConnectionClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          Log.d(TAG, "IceConnectionState: " + newState);
+          if (PCObserver.this != session.pcObserver) {
+            return;
+          }
+          Log.d(TAG, "IceConnectionState of " + session.peerId + ": " + newState);
           if (newState == IceConnectionState.CONNECTED) {
-            events.onIceConnected();
+            Log.d(TAG, "Looper during call setup: " + executor.getStatsString());
+            session.events.onIceConnected();
           } else if (newState == IceConnectionState.DISCONNECTED) {
-            events.onIceDisconnected();
+            session.events.onIceDisconnected();
           } else if (newState == IceConnectionState.FAILED) {
-            reportError("ICE connection failed.");
+            session.reportError("ICE connection failed.");
           }
         }
       });
@@ -1031,8 +1390,23 @@ public class PeerConnectionClient {
 
     @Override
     public void onIceGatheringChange(
-      PeerConnection.IceGatheringState newState) {
+      final PeerConnection.IceGatheringState newState) {
       Log.d(TAG, "IceGatheringState: " + newState);
+      if (newState != PeerConnection.IceGatheringState.COMPLETE) {
+        return;
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (PCObserver.this != session.pcObserver) {
+            return;
+          }
+          session.iceGatheringComplete = true;
+          if (session.localSdpPending) {
+            session.sendLocalDescription();
+          }
+        }
+      });
     }
 
     @Override
@@ -1042,20 +1416,22 @@ public class PeerConnectionClient {
 
     @Override
     public void onAddStream(final MediaStream stream){
-      executor.execute(new Runnable() {
+      executor.execute(Priority.MEDIA, new Runnable() {
         @Override
         public void run() {
-          if (peerConnection == null || isError) {
+          if (PCObserver.this != session.pcObserver || !session.isActive()) {
             return;
           }
           if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
-            reportError("Weird-looking stream: " + stream);
+            session.reportError("Weird-looking stream: " + stream);
             return;
           }
           if (stream.videoTracks.size() == 1) {
-            remoteVideoTrack = stream.videoTracks.get(0);
-            remoteVideoTrack.setEnabled(renderVideo);
-            remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+            session.remoteVideoTrack = stream.videoTracks.get(0);
+            session.remoteVideoTrack.setEnabled(renderVideo);
+            if (session.remoteRender != null) {
+              session.remoteVideoTrack.addRenderer(new VideoRenderer(session.remoteRender));
+            }
           }
         }
       });
@@ -1063,10 +1439,12 @@ public class PeerConnectionClient {
 
     @Override
     public void onRemoveStream(final MediaStream stream){
-      executor.execute(new Runnable() {
+      executor.execute(Priority.MEDIA, new Runnable() {
         @Override
         public void run() {
-          remoteVideoTrack = null;
+          if (PCObserver.this == session.pcObserver) {
+            session.remoteVideoTrack = null;
+          }
         }
       });
     }
@@ -1074,8 +1452,8 @@ public class PeerConnectionClient {
     @Override
     public void onDataChannel(final DataChannel dc) {
       Log.d(TAG,dc.label()+"-----dataChannel-------");
-      receiveChannel=dc;
-      receiveChannel.registerObserver(new DcObserver());
+      session.receiveChannel = dc;
+      dc.registerObserver(new DcObserver(session, dc));
 //      reportError("AppRTC doesn't use data channels, but got: " + dc.label()
 //          + " anyway!");
 
@@ -1091,28 +1469,31 @@ public class PeerConnectionClient {
   // Implementation detail: handle offer creation/signaling and answer setting,
   // as well as adding remote ICE candidates once the answer SDP is set.
   private class SDPObserver implements SdpObserver {
+    private final PeerSession session;
+
+    SDPObserver(PeerSession session) {
+      this.session = session;
+    }
+
     @Override
     public void onCreateSuccess(final SessionDescription origSdp) {
-      if (localSdp != null) {
-        reportError("Multiple SDP create.");
+      if (this != session.sdpObserver) {
+        // Offer of a replaced speculative peer connection.
         return;
       }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (videoCallEnabled) {
-        sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
+      if (session.localSdp != null) {
+        session.reportError("Multiple SDP create.");
+        return;
       }
       final SessionDescription sdp = new SessionDescription(
-          origSdp.type, sdpDescription);
-      localSdp = sdp;
+          origSdp.type, sdpMunger.mungeLocalDescription(origSdp.description));
+      session.localSdp = sdp;
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          if (peerConnection != null && !isError) {
-            Log.d(TAG, "Set local SDP from " + sdp.type);
-            peerConnection.setLocalDescription(sdpObserver, sdp);
+          if (SDPObserver.this == session.sdpObserver && session.isActive()) {
+            Log.d(TAG, "Set local SDP of " + session.peerId + " from " + sdp.type);
+            session.peerConnection.setLocalDescription(SDPObserver.this, sdp);
           }
         }
       });
@@ -1123,21 +1504,22 @@ public class PeerConnectionClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          if (peerConnection == null || isError) {
+          if (SDPObserver.this != session.sdpObserver || !session.isActive()) {
             return;
           }
-          if (isInitiator) {
+          PeerConnection peerConnection = session.peerConnection;
+          if (session.isInitiator) {
             // For offering peer connection we first create offer and set
             // local SDP, then after receiving answer set remote SDP.
             if (peerConnection.getRemoteDescription() == null) {
               // We've just set our local SDP so time to send it.
               Log.d(TAG, "Local SDP set succesfully");
-              events.onLocalDescription(localSdp);
+              session.onLocalDescriptionSet();
             } else {
               // We've just set remote description, so drain remote
               // and send local ICE candidates.
               Log.d(TAG, "Remote SDP set succesfully");
-              drainCandidates();
+              session.drainCandidates();
             }
           } else {
             // For answering peer connection we set remote SDP and then
@@ -1146,8 +1528,8 @@ public class PeerConnectionClient {
               // We've just set our local SDP so time to send it, drain
               // remote and send local ICE candidates.
               Log.d(TAG, "Local SDP set succesfully");
-              events.onLocalDescription(localSdp);
-              drainCandidates();
+              session.onLocalDescriptionSet();
+              session.drainCandidates();
             } else {
               // We've just set remote SDP - do nothing for now -
               // answer will be created soon.
@@ -1162,12 +1544,18 @@ public class PeerConnectionClient {
 
     @Override
     public void onCreateFailure(final String error) {
-      reportError("createSDP error: " + error);
+      if (this != session.sdpObserver) {
+        return;
+      }
+      session.reportError("createSDP error: " + error);
     }
 
     @Override
     public void onSetFailure(final String error) {
-      reportError("setSDP error: " + error);
+      if (this != session.sdpObserver) {
+        return;
+      }
+      session.reportError("setSDP error: " + error);
     }
   }
-}
+}
\ No newline at end of file
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
+import org.appspot.apprtc.util.LooperExecutor;
+import org.webrtc.AudioSource;
+import org.webrtc.MediaConstraints;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.voiceengine.WebRtcAudioManager;
+
+/**
+ * Keeps the PeerConnectionFactory warm between calls.
+ *
+ * <p>A new factory initializes field trials, the Android globals, its
+ * native threads and the audio device module. release() keeps the factory
+ * for an idle period instead of disposing it, so a call starting meanwhile
+ * gets it back from acquire() at once. The factory is only reused if it was
+ * created with the same hardware codec and OpenSL ES settings, which are
+ * read when it is created. Optionally the local AudioSource is kept as well.
+ *
+ * <p>Only used on the looper thread of |executor|: the factory has to be
+ * disposed on the thread that created it.
+ */
+class PeerConnectionFactoryManager {
+  private static final String TAG = "PCFactoryManager";
+  private static final String FIELD_TRIAL_AUTOMATIC_RESIZE =
+      "WebRTC-MediaCodecVideoEncoder-AutomaticResize/Enabled/";
+  private final LooperExecutor executor;
+  private PeerConnectionFactory factory;
+  private String factoryKey;
+  private AudioSource audioSource;
+  private String audioSourceKey;
+  // Globals are process wide, so they are only set again when they change.
+  private boolean fieldTrialsInitialized;
+  private Boolean globalsHwAcceleration;
+  private boolean inUse;
+  // Incremented by every acquire(), so the idle timeout of an earlier
+  // release() knows it is outdated.
+  private int generation;
+
+  PeerConnectionFactoryManager(LooperExecutor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the warm factory if it matches |parameters|, or else a new one.
+   * Returns null if the Android globals cannot be initialized.
+   */
+  PeerConnectionFactory acquire(Context context, PeerConnectionParameters parameters,
+      PeerConnectionFactory.Options options) {
+    generation++;
+    inUse = true;
+    String key = "hw=" + parameters.videoCodecHwAcceleration
+        + " opensles=" + parameters.useOpenSLES;
+    if (factory != null && key.equals(factoryKey)) {
+      Log.d(TAG, "Reusing warm peer connection factory.");
+      factory.setOptions(options != null ? options : new PeerConnectionFactory.Options());
+      return factory;
+    }
+    dispose();
+
+    PeerConnectionFactory.initializeInternalTracer();
+    if (!fieldTrialsInitialized) {
+      PeerConnectionFactory.initializeFieldTrials(FIELD_TRIAL_AUTOMATIC_RESIZE);
+      fieldTrialsInitialized = true;
+    }
+
+    // Enable/disable OpenSL ES playback.
+    if (!parameters.useOpenSLES) {
+      Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
+      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
+    } else {
+      Log.d(TAG, "Allow OpenSL ES audio if device supports it");
+      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
+    }
+
+    if (globalsHwAcceleration == null
+        || globalsHwAcceleration != parameters.videoCodecHwAcceleration) {
+      if (!PeerConnectionFactory.initializeAndroidGlobals(context, true, true,
+          parameters.videoCodecHwAcceleration)) {
+        PeerConnectionFactory.shutdownInternalTracer();
+        return null;
+      }
+      globalsHwAcceleration = parameters.videoCodecHwAcceleration;
+    }
+    if (options != null) {
+      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
+    }
+    factory = new PeerConnectionFactory(options);
+    factoryKey = key;
+    Log.d(TAG, "Peer connection factory created.");
+    return factory;
+  }
+
+  /**
+   * Returns the audio source for |constraints|. An audio source kept warm by
+   * release() is reused if it was created with the same constraints.
+   */
+  AudioSource createAudioSource(MediaConstraints constraints) {
+    String key = constraints.toString();
+    if (audioSource != null && key.equals(audioSourceKey)) {
+      Log.d(TAG, "Reusing warm audio source.");
+      return audioSource;
+    }
+    disposeAudioSource();
+    audioSource = factory.createAudioSource(constraints);
+    audioSourceKey = key;
+    return audioSource;
+  }
+
+  /**
+   * Ends the use of the factory by a call. It is disposed after
+   * |idleTimeoutMs|, or at once if that is 0. The audio source is kept with
+   * it if |keepAudioWarm| is set.
+   */
+  void release(int idleTimeoutMs, boolean keepAudioWarm) {
+    inUse = false;
+    if (!keepAudioWarm) {
+      disposeAudioSource();
+    }
+    if (factory == null || idleTimeoutMs <= 0) {
+      dispose();
+      return;
+    }
+    Log.d(TAG, "Keeping peer connection factory warm for " + idleTimeoutMs + " ms.");
+    final int releasedGeneration = generation;
+    executor.executeDelayed(new Runnable() {
+      @Override
+      public void run() {
+        if (!inUse && generation == releasedGeneration) {
+          Log.d(TAG, "Peer connection factory idle timeout.");
+          dispose();
+        }
+      }
+    }, idleTimeoutMs);
+  }
+
+  private void disposeAudioSource() {
+    if (audioSource != null) {
+      audioSource.dispose();
+      audioSource = null;
+      audioSourceKey = null;
+    }
+  }
+
+  private void dispose() {
+    disposeAudioSource();
+    if (factory == null) {
+      return;
+    }
+    Log.d(TAG, "Closing peer connection factory.");
+    factory.dispose();
+    factory = null;
+    factoryKey = null;
+    PeerConnectionFactory.shutdownInternalTracer();
+  }
+}
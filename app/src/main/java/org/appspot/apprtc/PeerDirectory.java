@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Peers currently signed in to the signaling server.
+ *
+ * <p>The directory is updated incrementally from the peer lines of the
+ * sign_in response and of /wait notifications, "name,id,connected", where
+ * connected 1 adds the peer and 0 removes it. Lookups by id and by name are
+ * O(1) and lock free. Lines are parsed from the right, so a name may contain
+ * ','; parse() exposes the same parser to callers that handle their own
+ * entry.
+ */
+public class PeerDirectory {
+  private static final String TAG = "PeerDirectory";
+  private static final PeerDirectory instance = new PeerDirectory();
+  private final ConcurrentHashMap<Integer, Peer> peersById =
+      new ConcurrentHashMap<Integer, Peer>();
+  private final ConcurrentHashMap<String, Peer> peersByName =
+      new ConcurrentHashMap<String, Peer>();
+
+  /**
+   * Signed in peer.
+   */
+  public static class Peer {
+    public final int id;
+    public final String name;
+
+    public Peer(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name + "(" + id + ")";
+    }
+  }
+
+  /**
+   * Parsed "name,id,connected" line.
+   */
+  public static class PeerLine {
+    public final Peer peer;
+    public final boolean connected;
+
+    PeerLine(Peer peer, boolean connected) {
+      this.peer = peer;
+      this.connected = connected;
+    }
+  }
+
+  public static PeerDirectory getInstance() {
+    return instance;
+  }
+
+  public Peer getPeer(int id) {
+    return peersById.get(id);
+  }
+
+  // If several peers share a name, returns the one that signed in last.
+  public Peer getPeerByName(String name) {
+    return peersByName.get(name);
+  }
+
+  public int size() {
+    return peersById.size();
+  }
+
+  public List<Peer> getPeers() {
+    return new ArrayList<Peer>(peersById.values());
+  }
+
+  /**
+   * Parses one "name,id,connected" line. Returns null if it is malformed.
+   */
+  public static PeerLine parse(String line) {
+    // Parse from the right, so names containing ',' still work.
+    int connectedSeparator = line.lastIndexOf(',');
+    int idSeparator = connectedSeparator > 0
+        ? line.lastIndexOf(',', connectedSeparator - 1) : -1;
+    if (idSeparator < 0) {
+      return null;
+    }
+    String name = line.substring(0, idSeparator);
+    int id;
+    try {
+      id = Integer.parseInt(line.substring(idSeparator + 1, connectedSeparator).trim());
+    } catch (NumberFormatException e) {
+      Log.w(TAG, "Malformed peer line: " + line);
+      return null;
+    }
+    boolean connected = line.substring(connectedSeparator + 1).trim().equals("1");
+    return new PeerLine(new Peer(id, name), connected);
+  }
+
+  /**
+   * Applies one "name,id,connected" line. Returns the peer that was added,
+   * or null if the line removed a peer, changed nothing or is malformed.
+   */
+  public Peer update(String line) {
+    PeerLine parsed = parse(line);
+    return parsed == null ? null : update(parsed);
+  }
+
+  // Applies a parsed line, see update(String).
+  public Peer update(PeerLine line) {
+    if (line.connected) {
+      return add(line.peer);
+    }
+    remove(line.peer.id);
+    return null;
+  }
+
+  // Adds |peer| and returns it, or returns null if it was already known.
+  public Peer add(Peer peer) {
+    Peer previous = peersById.put(peer.id, peer);
+    peersByName.put(peer.name, peer);
+    if (previous != null && previous.name.equals(peer.name)) {
+      return null;
+    }
+    if (previous != null) {
+      peersByName.remove(previous.name, previous);
+    }
+    Log.d(TAG, "Peer added: " + peer + ". Peers: " + peersById.size());
+    return peer;
+  }
+
+  public void remove(int id) {
+    Peer peer = peersById.remove(id);
+    if (peer == null) {
+      return;
+    }
+    peersByName.remove(peer.name, peer);
+    Log.d(TAG, "Peer removed: " + peer + ". Peers: " + peersById.size());
+  }
+
+  // Forgets all peers, e.g. on a new sign in.
+  public void clear() {
+    peersById.clear();
+    peersByName.clear();
+  }
+}
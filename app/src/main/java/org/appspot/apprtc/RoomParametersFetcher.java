@@ -11,32 +11,29 @@
 package org.appspot.apprtc;
 
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
-import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
 
 import android.animation.IntArrayEvaluator;
 import android.util.Log;
 
 import org.appspot.apprtc.util.Logout;
+import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.MessageReorderBuffer;
+import org.appspot.apprtc.util.RetryingHttpRequest;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
-import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Dictionary;
-import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -57,12 +54,29 @@ public class RoomParametersFetcher {
   }
 
   private static final String TAG = "RoomRTCClient";
-  private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+  private static final String SDP_CANDIDATE = "a=candidate:";
+  // Number of recent message ids remembered to drop retried duplicates.
+  private static final int MAX_RECEIVED_MESSAGE_IDS = 256;
+  // Limits for holding back messages that arrived ahead of a gap.
+  private static final int MAX_REORDER_BUFFERED = 32;
+  private static final long MAX_REORDER_GAP_MS = 3000;
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
-  private AsyncHttpURLConnection httpConnection;
-  private static Map<Integer,String> peers;
+  private RetryingHttpRequest httpConnection;
+  private final Set<String> receivedMessageIds = Collections.newSetFromMap(
+      new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_RECEIVED_MESSAGE_IDS;
+        }
+      });
+  private final MessageReorderBuffer reorderBuffer =
+      new MessageReorderBuffer(MAX_REORDER_BUFFERED, MAX_REORDER_GAP_MS);
+  // Streams with a gap timer pending. Only touched on |executor|.
+  private final Set<String> gapTimerStreams = new HashSet<String>();
+  private LooperExecutor executor;
+  private static final PeerDirectory peers = PeerDirectory.getInstance();
   private List<String>logs;
   private static int myId;
   private static String myName;
@@ -104,112 +118,163 @@ public class RoomParametersFetcher {
 
 
 
-  public void onHangGetConnnect()
-  {
-    Logout.verbose(TAG,"======+++++++++++++++=======");
-    Log.d(TAG, "Room Get: " + roomUrl);
-    httpConnection = new AsyncHttpURLConnection(
-            "GET", roomUrl, roomMessage,
-            new AsyncHttpEvents() {
-              @Override
-              public void onHttpError(String errorMessage) {
-                Log.e(TAG, "Room onHang error: " + errorMessage);
-                //events.onSignalingParametersError(errorMessage);
-              }
-
-              @Override
-              public void onHttpComplete(String response,int peerId) {
-                onHangGetRead(response,peerId);
-              }
-            });
-    httpConnection.send();
-  }
-
-  private void onHangGetRead(String response,int peerId) {
+  // Parses one hanging GET (/wait) response. The next /wait is issued by
+  // LongPollChannel before this runs.
+  void onHangGetRead(String response,int peerId) {
     Logout.verbose(TAG, "=======read======"+response);
     Log.d(TAG, "Room response: " + response+"======");
     try {
       if(peerId==myId)
       {
+        // Presence notification: one or more "name,id,connected" lines.
         String[]items= response.split("\n");
         for (String item :
                 items) {
-          String[] values = item.split(",");
-          if(values.length==3) {
-            if(Integer.parseInt(values[2])==1) {
-              peers.put(Integer.parseInt(values[1]), values[0]);
-              events.onPeerConnected(Integer.parseInt(values[1]));
-            }
+          PeerDirectory.Peer added = peers.update(item);
+          if (added != null) {
+            events.onPeerConnected(added.id);
           }
         }
       }else {
 
         JSONObject message = new JSONObject(response);
-        if ( message.has("type")) {
-          String messageType = message.getString("type");
-          if(messageType.equals("offer")) {
-            offerSdp = new SessionDescription(
-                    SessionDescription.Type.fromCanonicalForm(messageType),
-                    message.getString("sdp"));
-            //PeerConnection.IceServer turnServers=new PeerConnection.IceServer("stun:git.geekon.cn:12345");
-
-          }else
-          {
-            answerSdp=new SessionDescription(
-                    SessionDescription.Type.fromCanonicalForm(messageType),
-                    message.getString("sdp"));
-            SignalingParameters params= new SignalingParameters(String.valueOf(peerId),
-                    answerSdp, iceCandidates);
-            events.onRemoteDescription(answerSdp);
-          }
-        } else {
-          //add ice candiate
-
-          IceCandidate candidate = new IceCandidate(
-                  message.getString("sdpMid"),
-                  message.getInt("sdpMLineIndex"),
-                  message.getString("candidate"));
-          iceCandidates.add(candidate);
-
-          //Log.d(TAG,"++++++++++++++++++++++++++++++++++++iceCandidate size:"+iceCandidates.size());
-          /*
-          if(isinit)
-          {
-            events.onRemoteIceCandidate(candidate);
-          }else if (hasTriggerSingnalReady&&offerSdp!=null) {
-            events.onRemoteIceCandidate(candidate);
-          }
-          */
-          if (iceCandidates.size()>1&&!isinit){
-            events.onRemoteIceCandidate(candidate);
-          }else if(isinit)
-            events.onRemoteIceCandidate(candidate);
+        // Retried and hedged sends repeat the message id.
+        String messageId = message.optString(WebSocketRTCClient.MESSAGE_ID);
+        if (messageId.length() > 0 && !receivedMessageIds.add(messageId)) {
+          Log.d(TAG, "Dropping duplicate message " + messageId);
+          return;
+        }
+        int sequence = message.optInt(WebSocketRTCClient.MESSAGE_SEQUENCE, 0);
+        if (sequence <= 0) {
+          onPeerMessage(peerId, message);
+          return;
+        }
+        // Pipelined sends can overtake each other, restore the send order.
+        String streamId = messageId.substring(0, Math.max(0, messageId.lastIndexOf('-')));
+        for (String ordered : reorderBuffer.add(streamId, sequence, response)) {
+          onPeerMessage(peerId, new JSONObject(ordered));
         }
+        scheduleGapFlush(streamId, peerId);
+      }
+    }catch (Exception e) {
+
+    }
+  }
+
+  // Sets the looper onHangGetRead() is called on. With it, a gap in the
+  // message order is skipped once it expires, even if no later message
+  // arrives to trigger the check.
+  void setExecutor(LooperExecutor executor) {
+    this.executor = executor;
+  }
 
-        //if(offerSdp!=null&&iceCandidates.size()==1&&!hasTriggerSingnalReady)
-        if(offerSdp!=null&&iceCandidates.size()==1)
-        {
-          //hasTriggerSingnalReady=true;
-          Log.d(TAG,"Room iceCandidates size:"+iceCandidates.size());
-          SignalingParameters params= new SignalingParameters(String.valueOf(peerId),
-                    offerSdp, iceCandidates);
-            events.onSignalingParametersReady(params);
+  // Arms one timer per stream for the deadline of its current gap. The
+  // timer re-arms itself while messages still wait behind a gap.
+  private void scheduleGapFlush(final String streamId, final int peerId) {
+    if (executor == null || gapTimerStreams.contains(streamId)) {
+      return;
+    }
+    long deadlineMs = reorderBuffer.getGapDeadlineMs(streamId);
+    if (deadlineMs == 0) {
+      return;
+    }
+    gapTimerStreams.add(streamId);
+    executor.executeDelayed(new Runnable() {
+      @Override
+      public void run() {
+        gapTimerStreams.remove(streamId);
+        try {
+          for (String ordered : reorderBuffer.flushExpired(streamId)) {
+            onPeerMessage(peerId, new JSONObject(ordered));
+          }
+        } catch (JSONException e) {
+          Log.e(TAG, "Reordered message JSON error: " + e.getMessage());
         }
+        scheduleGapFlush(streamId, peerId);
+      }
+    }, Math.max(0, deadlineMs - System.currentTimeMillis()));
+  }
 
+  // Handles one offer, answer or candidate message from |peerId|.
+  private void onPeerMessage(int peerId, JSONObject message) throws JSONException {
+    if ( message.has("type")) {
+      String messageType = message.getString("type");
+      if(messageType.equals("offer")) {
+        offerSdp = new SessionDescription(
+                SessionDescription.Type.fromCanonicalForm(messageType),
+                message.getString("sdp"));
+        //PeerConnection.IceServer turnServers=new PeerConnection.IceServer("stun:git.geekon.cn:12345");
+
+      }else
+      {
+        answerSdp=new SessionDescription(
+                SessionDescription.Type.fromCanonicalForm(messageType),
+                message.getString("sdp"));
+        SignalingParameters params= new SignalingParameters(String.valueOf(peerId),
+                answerSdp, iceCandidates);
+        events.onRemoteDescription(answerSdp);
       }
-    }catch (Exception e) {
+      //if(offerSdp!=null&&iceCandidates.size()==1&&!hasTriggerSingnalReady)
+      checkSignalingParametersReady(peerId);
+    } else if (message.has(WebSocketRTCClient.ICE_CANDIDATES)) {
+      // Batched candidates, see WebSocketRTCClient.flushIceCandidates().
+      JSONArray candidates = message.getJSONArray(WebSocketRTCClient.ICE_CANDIDATES);
+      for (int i = 0; i < candidates.length(); i++) {
+        onRemoteCandidate(peerId, toJavaCandidate(candidates.getJSONObject(i)));
+      }
+    } else {
+      //add ice candiate
+      onRemoteCandidate(peerId, toJavaCandidate(message));
+    }
+  }
+
+  private void onRemoteCandidate(int peerId, IceCandidate candidate) {
+    iceCandidates.add(candidate);
+
+    //Log.d(TAG,"++++++++++++++++++++++++++++++++++++iceCandidate size:"+iceCandidates.size());
+    /*
+    if(isinit)
+    {
+      events.onRemoteIceCandidate(candidate);
+    }else if (hasTriggerSingnalReady&&offerSdp!=null) {
+      events.onRemoteIceCandidate(candidate);
+    }
+    */
+    if (iceCandidates.size()>1&&!isinit){
+      events.onRemoteIceCandidate(candidate);
+    }else if(isinit)
+      events.onRemoteIceCandidate(candidate);
+    checkSignalingParametersReady(peerId);
+  }
 
+  // Signaling parameters are ready once an offer and the first remote
+  // candidate have arrived. A non-trickle offer already carries its
+  // candidates and is ready by itself.
+  private void checkSignalingParametersReady(int peerId) {
+    if (offerSdp == null) {
+      return;
+    }
+    boolean inlineCandidates = offerSdp.description.contains(SDP_CANDIDATE);
+    if(iceCandidates.size()==(inlineCandidates ? 0 : 1))
+    {
+      //hasTriggerSingnalReady=true;
+      Log.d(TAG,"Room iceCandidates size:"+iceCandidates.size());
+      SignalingParameters params= new SignalingParameters(String.valueOf(peerId),
+                offerSdp, iceCandidates);
+      events.onSignalingParametersReady(params);
     }
-    events.startHangingGet(myId);
+  }
+
+  // Converts a JSON candidate to a Java object.
+  private static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
+    return new IceCandidate(json.getString("sdpMid"),
+        json.getInt("sdpMLineIndex"),
+        json.getString("candidate"));
   }
 
   public RoomParametersFetcher(String roomUrl, String roomMessage,
                                final RoomParametersFetcherEvents events) {
     Logout.verbose(TAG,"=====================");
-    if(peers==null)
-    {
-      peers=new Hashtable<Integer, String>();
-    }
     if(iceCandidates==null) {
       iceCandidates = new LinkedList<IceCandidate>();
       answerSdp=null;
@@ -222,12 +287,10 @@ public class RoomParametersFetcher {
 
   public void makeRequest() {
     Logout.verbose(TAG,"=====================");
-    if(iceCandidates!=null)
-      if (iceCandidates.size()>0)
-        iceCandidates.clear();
+    resetSignInState();
 
     Log.d(TAG, "Room Get: " + roomUrl);
-    httpConnection = new AsyncHttpURLConnection(
+    httpConnection = new RetryingHttpRequest(
             "GET", roomUrl, roomMessage,
             new AsyncHttpEvents() {
               @Override
@@ -241,14 +304,38 @@ public class RoomParametersFetcher {
                 roomHttpResponseParse(response,peerId);
               }
             });
+    // Every sign_in the server receives registers a new peer id.
+    httpConnection.setIdempotent(false);
     httpConnection.send();
   }
 
 
+  // Takes over a session signed in early by SignalingWarmup instead of
+  // signing in again. |response| is its sign_in response.
+  public void adoptSignIn(String response, int peerId) {
+    Logout.verbose(TAG,"=====================");
+    resetSignInState();
+    roomHttpResponseParse(response, peerId);
+  }
+
+  private void resetSignInState() {
+    if(iceCandidates!=null)
+      if (iceCandidates.size()>0)
+        iceCandidates.clear();
+    // A new sign in gets the full peer list again.
+    peers.clear();
+  }
+
   public void postRequest() {
+    postRequest(0);
+  }
+
+  // Posts the message, sending a hedged duplicate after |hedgeDelayMs| if
+  // it is still unanswered. 0 disables hedging.
+  public void postRequest(int hedgeDelayMs) {
     Logout.verbose(TAG,"=====================");
     Log.d(TAG, "Room Post: " + roomUrl);
-    httpConnection = new AsyncHttpURLConnection(
+    httpConnection = new RetryingHttpRequest(
             "POST", roomUrl, roomMessage,
             new AsyncHttpEvents() {
               @Override
@@ -262,6 +349,7 @@ public class RoomParametersFetcher {
                 //roomHttpResponseParse(response,peerId);
               }
             });
+    httpConnection.setHedgeDelayMs(hedgeDelayMs);
     httpConnection.send();
   }
 
@@ -272,26 +360,21 @@ public class RoomParametersFetcher {
       String[]items= response.split("\n");
       for (String item :
               items) {
-        String[] values = item.split(",");
-        if(values.length==3) {
-          if (Integer.parseInt(values[1])==peerId)
+        PeerDirectory.PeerLine line = PeerDirectory.parse(item);
+        if(line!=null) {
+          if (line.peer.id==peerId)
           {
-            myName=values[0];
+            myName=line.peer.name;
             myId=peerId;
-            if(values[2].equals("1"))
+            if(line.connected)
               state=State.CONNECTED;
             events.startHangingGet(myId);
           }
           else
           {
-            if(peers==null)
-            {
-              peers=new HashMap<Integer, String>();
-            }
-            if(Integer.parseInt(values[2])==1) {
-              peers.put(Integer.parseInt(values[1]), values[0]);
-              if(isinit)
-                events.onPeerConnected(Integer.parseInt(values[1]));
+            PeerDirectory.Peer added = peers.update(line);
+            if (added != null && isinit) {
+              events.onPeerConnected(added.id);
             }
           }
         }
@@ -303,61 +386,4 @@ public class RoomParametersFetcher {
     }
   }
 
-  // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-  // off the main thread!
-  private LinkedList<PeerConnection.IceServer> requestTurnServers(String url)
-          throws IOException, JSONException {
-    Logout.verbose(TAG,"=====================");
-    LinkedList<PeerConnection.IceServer> turnServers =
-            new LinkedList<PeerConnection.IceServer>();
-    Log.d(TAG, "Request TURN from: " + url);
-    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-    connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-    connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-    int responseCode = connection.getResponseCode();
-    if (responseCode != 200) {
-      throw new IOException("Non-200 response when requesting TURN server from "
-              + url + " : " + connection.getHeaderField(null));
-    }
-    InputStream responseStream = connection.getInputStream();
-    String response = drainStream(responseStream);
-    connection.disconnect();
-    Log.d(TAG, "TURN response: " + response);
-    JSONObject responseJSON = new JSONObject(response);
-    String username = responseJSON.getString("username");
-    String password = responseJSON.getString("password");
-    JSONArray turnUris = responseJSON.getJSONArray("uris");
-    for (int i = 0; i < turnUris.length(); i++) {
-      String uri = turnUris.getString(i);
-      turnServers.add(new PeerConnection.IceServer(uri, username, password));
-    }
-    return turnServers;
-  }
-
-  // Return the list of ICE servers described by a WebRTCPeerConnection
-  // configuration string.
-  private LinkedList<PeerConnection.IceServer> iceServersFromPCConfigJSON(
-          String pcConfig) throws JSONException {
-    Logout.verbose(TAG,"=====================");
-    JSONObject json = new JSONObject(pcConfig);
-    JSONArray servers = json.getJSONArray("iceServers");
-    LinkedList<PeerConnection.IceServer> ret =
-            new LinkedList<PeerConnection.IceServer>();
-    for (int i = 0; i < servers.length(); ++i) {
-      JSONObject server = servers.getJSONObject(i);
-      String url = server.getString("urls");
-      String credential =
-              server.has("credential") ? server.getString("credential") : "";
-      ret.add(new PeerConnection.IceServer(url, "", credential));
-    }
-    return ret;
-  }
-
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Logout.verbose(TAG,"=====================");
-    Scanner s = new Scanner(in).useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
-  }
-
 }
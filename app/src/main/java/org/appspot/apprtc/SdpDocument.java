@@ -0,0 +1,520 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Session description parsed once into indexed media sections.
+ *
+ * <p>Each m= section keeps its rtpmap, fmtp and rtcp-fb attributes indexed by
+ * payload type, so SDP munging edits are applied to the model without
+ * rescanning the text. The document is serialized back with toString() once
+ * all edits are done. This class is not thread safe.
+ */
+public class SdpDocument {
+  private static final String TAG = "SdpDocument";
+  private static final String LINE_BREAK = "\r\n";
+  private static final String MEDIA_PREFIX = "m=";
+  private static final String RTPMAP_PREFIX = "a=rtpmap:";
+  private static final String FMTP_PREFIX = "a=fmtp:";
+  private static final String RTCP_FB_PREFIX = "a=rtcp-fb:";
+  private static final String BANDWIDTH_PREFIX = "b=";
+  private static final String CONNECTION_PREFIX = "c=";
+  private static final String INFO_PREFIX = "i=";
+  private static final String TIMING_PREFIX = "t=";
+  private static final String CODEC_RTX = "rtx";
+  private static final String CODEC_RED = "red";
+  private static final String CODEC_ULPFEC = "ulpfec";
+  private static final String CODEC_FLEXFEC = "flexfec";
+  private static final String FMTP_PARAM_APT = "apt=";
+  /** Application specific maximum bandwidth in kbps (RFC 4566). */
+  public static final String BANDWIDTH_AS = "AS";
+  /** Transport independent maximum bandwidth in bps (RFC 3890). */
+  public static final String BANDWIDTH_TIAS = "TIAS";
+
+  private final List<String> sessionLines;
+  private final List<MediaSection> mediaSections;
+  private final int sourceLength;
+
+  /**
+   * Single SDP line. Index tables hold on to Line objects rather than list
+   * positions so that inserting a line never invalidates them.
+   */
+  static class Line {
+    String text;
+
+    Line(String text) {
+      this.text = text;
+    }
+  }
+
+  /**
+   * One m= section together with its attribute index.
+   */
+  public static class MediaSection {
+    private final String mediaType;
+    private final String port;
+    private final String proto;
+    private final ArrayList<String> payloadTypes = new ArrayList<String>();
+    private final ArrayList<Line> lines = new ArrayList<Line>();
+    private final Map<String, String> codecNames = new HashMap<String, String>();
+    private final Map<String, Line> rtpmapLines = new HashMap<String, Line>();
+    private final Map<String, Line> fmtpLines = new HashMap<String, Line>();
+    private final Map<String, List<Line>> rtcpFbLines =
+        new HashMap<String, List<Line>>();
+
+    private MediaSection(String mLine) {
+      // Format is: m=<media> <port> <proto> <fmt> ...
+      String[] parts = mLine.split(" ");
+      mediaType = parts[0].substring(MEDIA_PREFIX.length());
+      port = parts.length > 1 ? parts[1] : "";
+      proto = parts.length > 2 ? parts[2] : "";
+      for (int i = 3; i < parts.length; i++) {
+        if (parts[i].length() > 0) {
+          payloadTypes.add(parts[i]);
+        }
+      }
+    }
+
+    private void addLine(String text) {
+      Line line = new Line(text);
+      lines.add(line);
+      if (text.startsWith(RTPMAP_PREFIX)) {
+        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+        int space = text.indexOf(' ');
+        if (space < 0) {
+          return;
+        }
+        String payloadType = text.substring(RTPMAP_PREFIX.length(), space);
+        int slash = text.indexOf('/', space);
+        String codec = slash < 0
+            ? text.substring(space + 1) : text.substring(space + 1, slash);
+        rtpmapLines.put(payloadType, line);
+        codecNames.put(payloadType, codec);
+      } else if (text.startsWith(FMTP_PREFIX)) {
+        int space = text.indexOf(' ');
+        if (space > 0) {
+          fmtpLines.put(text.substring(FMTP_PREFIX.length(), space), line);
+        }
+      } else if (text.startsWith(RTCP_FB_PREFIX)) {
+        int space = text.indexOf(' ');
+        if (space > 0) {
+          String payloadType = text.substring(RTCP_FB_PREFIX.length(), space);
+          List<Line> feedback = rtcpFbLines.get(payloadType);
+          if (feedback == null) {
+            feedback = new LinkedList<Line>();
+            rtcpFbLines.put(payloadType, feedback);
+          }
+          feedback.add(line);
+        }
+      }
+    }
+
+    public String getMediaType() {
+      return mediaType;
+    }
+
+    public boolean isAudio() {
+      return "audio".equals(mediaType);
+    }
+
+    public boolean isVideo() {
+      return "video".equals(mediaType);
+    }
+
+    /** Payload types in m-line order. */
+    public List<String> getPayloadTypes() {
+      return Collections.unmodifiableList(payloadTypes);
+    }
+
+    /** Encoding name from the a=rtpmap line of |payloadType|, or null. */
+    public String getCodecName(String payloadType) {
+      return codecNames.get(payloadType);
+    }
+
+    /** First payload type in m-line order mapped to |codec|, or null. */
+    public String findPayloadType(String codec) {
+      for (String payloadType : payloadTypes) {
+        if (codec.equalsIgnoreCase(codecNames.get(payloadType))) {
+          return payloadType;
+        }
+      }
+      return null;
+    }
+
+    /** All payload types mapped to |codec|, in m-line order. */
+    public List<String> findPayloadTypes(String codec) {
+      List<String> result = new ArrayList<String>(2);
+      for (String payloadType : payloadTypes) {
+        if (codec.equalsIgnoreCase(codecNames.get(payloadType))) {
+          result.add(payloadType);
+        }
+      }
+      return result;
+    }
+
+    /** Format parameters of |payloadType| without the a=fmtp prefix, or null. */
+    public String getFmtp(String payloadType) {
+      Line line = fmtpLines.get(payloadType);
+      if (line == null) {
+        return null;
+      }
+      return line.text.substring(FMTP_PREFIX.length() + payloadType.length() + 1);
+    }
+
+    /** Number of a=rtcp-fb lines for |payloadType|. */
+    public int getRtcpFeedbackCount(String payloadType) {
+      List<Line> feedback = rtcpFbLines.get(payloadType);
+      return feedback == null ? 0 : feedback.size();
+    }
+
+    /**
+     * Moves |payloadType| to the front of the m-line format list. Returns
+     * false if the section does not offer that payload type.
+     */
+    public boolean preferPayloadType(String payloadType) {
+      if (!payloadTypes.remove(payloadType)) {
+        return false;
+      }
+      payloadTypes.add(0, payloadType);
+      return true;
+    }
+
+    /**
+     * Reorders the m-line so that the payload types of |codecs| come first,
+     * in list order. Other payload types keep their relative order.
+     */
+    public void reorderPayloadTypes(List<String> codecs) {
+      ArrayList<String> reordered = new ArrayList<String>(payloadTypes.size());
+      for (String codec : codecs) {
+        for (String payloadType : payloadTypes) {
+          if (codec.equalsIgnoreCase(codecNames.get(payloadType))) {
+            reordered.add(payloadType);
+          }
+        }
+      }
+      for (String payloadType : payloadTypes) {
+        if (!reordered.contains(payloadType)) {
+          reordered.add(payloadType);
+        }
+      }
+      payloadTypes.clear();
+      payloadTypes.addAll(reordered);
+    }
+
+    /**
+     * Removes |payloadType| from the m-line together with its rtpmap, fmtp
+     * and rtcp-fb lines. Returns false if the payload type is not offered.
+     */
+    public boolean removePayloadType(String payloadType) {
+      if (!payloadTypes.remove(payloadType)) {
+        return false;
+      }
+      Line rtpmap = rtpmapLines.remove(payloadType);
+      if (rtpmap != null) {
+        lines.remove(rtpmap);
+      }
+      Line fmtp = fmtpLines.remove(payloadType);
+      if (fmtp != null) {
+        lines.remove(fmtp);
+      }
+      List<Line> feedback = rtcpFbLines.remove(payloadType);
+      if (feedback != null) {
+        lines.removeAll(feedback);
+      }
+      codecNames.remove(payloadType);
+      return true;
+    }
+
+    /**
+     * Keeps only the payload types of |codecs| and drops every other payload
+     * type with its attributes. RTX payloads survive only if their associated
+     * payload type (apt) is kept; RED and FEC payloads only if
+     * |keepRedundancy| is set. Static payload types without an rtpmap line
+     * are dropped. Attribute lines referring to payload types that are not
+     * on the m-line are removed as well.
+     */
+    public void retainCodecs(Collection<String> codecs, boolean keepRedundancy) {
+      Set<String> keepCodecs = new HashSet<String>();
+      for (String codec : codecs) {
+        keepCodecs.add(codec.toLowerCase());
+      }
+      if (keepRedundancy) {
+        keepCodecs.add(CODEC_RED);
+        keepCodecs.add(CODEC_ULPFEC);
+      }
+      Set<String> kept = new HashSet<String>();
+      List<String> rtxPayloadTypes = new ArrayList<String>();
+      for (String payloadType : payloadTypes) {
+        String codec = codecNames.get(payloadType);
+        if (codec == null) {
+          // Static payload type without rtpmap, e.g. 0 for PCMU. Its codec
+          // cannot be matched, so it is not kept and is removed below.
+          continue;
+        }
+        codec = codec.toLowerCase();
+        if (codec.equals(CODEC_RTX)) {
+          rtxPayloadTypes.add(payloadType);
+        } else if (keepCodecs.contains(codec)
+            || (keepRedundancy && codec.startsWith(CODEC_FLEXFEC))) {
+          kept.add(payloadType);
+        }
+      }
+      for (String payloadType : rtxPayloadTypes) {
+        String apt = getFmtpParameter(payloadType, FMTP_PARAM_APT);
+        if (apt != null && kept.contains(apt)) {
+          kept.add(payloadType);
+        }
+      }
+      if (kept.isEmpty()) {
+        Log.w(TAG, "No codec of " + codecs + " in m=" + mediaType + ", keep all.");
+        return;
+      }
+      for (String payloadType : new ArrayList<String>(payloadTypes)) {
+        if (!kept.contains(payloadType)) {
+          removePayloadType(payloadType);
+        }
+      }
+      removeOrphanedAttributes();
+    }
+
+    // Removes rtpmap, fmtp and rtcp-fb lines whose payload type is not on
+    // the m-line. Wildcard rtcp-fb lines are kept.
+    private void removeOrphanedAttributes() {
+      Iterator<Line> iterator = lines.iterator();
+      while (iterator.hasNext()) {
+        String text = iterator.next().text;
+        String prefix = null;
+        if (text.startsWith(RTPMAP_PREFIX)) {
+          prefix = RTPMAP_PREFIX;
+        } else if (text.startsWith(FMTP_PREFIX)) {
+          prefix = FMTP_PREFIX;
+        } else if (text.startsWith(RTCP_FB_PREFIX)) {
+          prefix = RTCP_FB_PREFIX;
+        }
+        if (prefix == null) {
+          continue;
+        }
+        int space = text.indexOf(' ');
+        String payloadType = text.substring(
+            prefix.length(), space < 0 ? text.length() : space);
+        if (!payloadType.equals("*") && !payloadTypes.contains(payloadType)) {
+          iterator.remove();
+          rtpmapLines.remove(payloadType);
+          fmtpLines.remove(payloadType);
+          rtcpFbLines.remove(payloadType);
+          codecNames.remove(payloadType);
+        }
+      }
+    }
+
+    // Returns the value of |key| (including "=") from the fmtp line of
+    // |payloadType|, or null.
+    private String getFmtpParameter(String payloadType, String key) {
+      String fmtp = getFmtp(payloadType);
+      if (fmtp == null) {
+        return null;
+      }
+      for (String param : fmtp.split(";")) {
+        String trimmed = param.trim();
+        if (trimmed.startsWith(key)) {
+          return trimmed.substring(key.length());
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Sets a b=|type|:|value| line for this media section, replacing an
+     * existing line of the same type. New lines go after i= and c= lines as
+     * required by the SDP field order.
+     */
+    public void setBandwidth(String type, long value) {
+      String prefix = BANDWIDTH_PREFIX + type + ":";
+      String text = prefix + value;
+      int insertAt = 0;
+      for (int i = 0; i < lines.size(); i++) {
+        Line line = lines.get(i);
+        if (line.text.startsWith(prefix)) {
+          line.text = text;
+          return;
+        }
+        if (line.text.startsWith(INFO_PREFIX)
+            || line.text.startsWith(CONNECTION_PREFIX)
+            || line.text.startsWith(BANDWIDTH_PREFIX)) {
+          insertAt = i + 1;
+        }
+      }
+      lines.add(insertAt, new Line(text));
+      Log.d(TAG, "Add SDP line to m=" + mediaType + ": " + text);
+    }
+
+    /**
+     * Sets |key|=|value| in the a=fmtp line of |payloadType|. The line is
+     * created right after the codec's a=rtpmap line if it does not exist yet.
+     */
+    public void setFmtpParameter(String payloadType, String key, String value) {
+      Line fmtp = fmtpLines.get(payloadType);
+      if (fmtp == null) {
+        fmtp = new Line(FMTP_PREFIX + payloadType + " " + key + "=" + value);
+        Line rtpmap = rtpmapLines.get(payloadType);
+        int index = rtpmap == null ? -1 : lines.indexOf(rtpmap);
+        lines.add(index < 0 ? lines.size() : index + 1, fmtp);
+        fmtpLines.put(payloadType, fmtp);
+        Log.d(TAG, "Add SDP line: " + fmtp.text);
+        return;
+      }
+      String prefix = FMTP_PREFIX + payloadType + " ";
+      String[] params = fmtp.text.substring(prefix.length()).split(";");
+      StringBuilder newFmtp = new StringBuilder(fmtp.text.length() + 32);
+      newFmtp.append(prefix);
+      boolean replaced = false;
+      for (String param : params) {
+        String trimmed = param.trim();
+        if (trimmed.length() == 0) {
+          continue;
+        }
+        if (newFmtp.length() > prefix.length()) {
+          newFmtp.append("; ");
+        }
+        if (trimmed.startsWith(key + "=")) {
+          newFmtp.append(key).append('=').append(value);
+          replaced = true;
+        } else {
+          newFmtp.append(trimmed);
+        }
+      }
+      if (!replaced) {
+        if (newFmtp.length() > prefix.length()) {
+          newFmtp.append("; ");
+        }
+        newFmtp.append(key).append('=').append(value);
+      }
+      fmtp.text = newFmtp.toString();
+      Log.d(TAG, "Update SDP line: " + fmtp.text);
+    }
+
+    private void appendTo(StringBuilder out) {
+      out.append(MEDIA_PREFIX).append(mediaType)
+          .append(' ').append(port)
+          .append(' ').append(proto);
+      for (String payloadType : payloadTypes) {
+        out.append(' ').append(payloadType);
+      }
+      out.append(LINE_BREAK);
+      for (Line line : lines) {
+        out.append(line.text).append(LINE_BREAK);
+      }
+    }
+  }
+
+  private SdpDocument(int sourceLength) {
+    this.sourceLength = sourceLength;
+    sessionLines = new ArrayList<String>();
+    mediaSections = new ArrayList<MediaSection>();
+  }
+
+  /**
+   * Splits |sdp| into session and media lines in a single pass. Both "\r\n"
+   * and bare "\n" line endings are accepted.
+   */
+  public static SdpDocument parse(String sdp) {
+    SdpDocument document = new SdpDocument(sdp.length());
+    MediaSection section = null;
+    int start = 0;
+    int length = sdp.length();
+    while (start < length) {
+      int end = sdp.indexOf('\n', start);
+      if (end < 0) {
+        end = length;
+      }
+      int lineEnd = end;
+      if (lineEnd > start && sdp.charAt(lineEnd - 1) == '\r') {
+        lineEnd--;
+      }
+      if (lineEnd > start) {
+        String line = sdp.substring(start, lineEnd);
+        if (line.startsWith(MEDIA_PREFIX)) {
+          section = new MediaSection(line);
+          document.mediaSections.add(section);
+        } else if (section == null) {
+          document.sessionLines.add(line);
+        } else {
+          section.addLine(line);
+        }
+      }
+      start = end + 1;
+    }
+    return document;
+  }
+
+  public List<MediaSection> getMediaSections() {
+    return Collections.unmodifiableList(mediaSections);
+  }
+
+  /** First m= section of |mediaType| ("audio", "video"), or null. */
+  public MediaSection getMediaSection(String mediaType) {
+    for (MediaSection section : mediaSections) {
+      if (section.mediaType.equals(mediaType)) {
+        return section;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sets a session level b=|type|:|value| line, replacing an existing line of
+   * the same type. New lines go right before the t= line.
+   */
+  public void setSessionBandwidth(String type, long value) {
+    String prefix = BANDWIDTH_PREFIX + type + ":";
+    String text = prefix + value;
+    int insertAt = sessionLines.size();
+    for (int i = 0; i < sessionLines.size(); i++) {
+      String line = sessionLines.get(i);
+      if (line.startsWith(prefix)) {
+        sessionLines.set(i, text);
+        return;
+      }
+      if (line.startsWith(TIMING_PREFIX)) {
+        insertAt = i;
+        break;
+      }
+    }
+    sessionLines.add(insertAt, text);
+    Log.d(TAG, "Add session SDP line: " + text);
+  }
+
+  @Override
+  public String toString() {
+    // Munging edits only add a handful of short attributes.
+    StringBuilder out = new StringBuilder(sourceLength + 256);
+    for (String line : sessionLines) {
+      out.append(line).append(LINE_BREAK);
+    }
+    for (MediaSection section : mediaSections) {
+      section.appendTo(out);
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pre-compiled SDP munging pipeline.
+ *
+ * <p>Rules are resolved once per call (see Builder) and then run in order on
+ * a single parsed SdpDocument, so the SDP text is parsed and serialized
+ * exactly once per description no matter how many rules are configured.
+ * Local and remote descriptions use separate rule lists.
+ */
+public class SdpMunger {
+  private static final String TAG = "SdpMunger";
+  public static final String MEDIA_AUDIO = "audio";
+  public static final String MEDIA_VIDEO = "video";
+
+  private final Rule[] localRules;
+  private final Rule[] remoteRules;
+
+  /**
+   * Single edit applied to a parsed session description.
+   */
+  public interface Rule {
+    public void apply(SdpDocument sdp);
+  }
+
+  /**
+   * Collects rules for the local and remote paths.
+   */
+  public static class Builder {
+    private final List<Rule> localRules = new ArrayList<Rule>();
+    private final List<Rule> remoteRules = new ArrayList<Rule>();
+
+    public Builder addLocalRule(Rule rule) {
+      localRules.add(rule);
+      return this;
+    }
+
+    public Builder addRemoteRule(Rule rule) {
+      remoteRules.add(rule);
+      return this;
+    }
+
+    /** Adds |rule| to both the local and the remote path. */
+    public Builder addRule(Rule rule) {
+      localRules.add(rule);
+      remoteRules.add(rule);
+      return this;
+    }
+
+    public SdpMunger build() {
+      return new SdpMunger(localRules.toArray(new Rule[localRules.size()]),
+          remoteRules.toArray(new Rule[remoteRules.size()]));
+    }
+  }
+
+  private SdpMunger(Rule[] localRules, Rule[] remoteRules) {
+    this.localRules = localRules;
+    this.remoteRules = remoteRules;
+  }
+
+  /** Munges a locally created offer or answer before it is set and sent. */
+  public String mungeLocalDescription(String sdpDescription) {
+    return munge(localRules, sdpDescription);
+  }
+
+  /** Munges a description received from the remote peer before it is set. */
+  public String mungeRemoteDescription(String sdpDescription) {
+    return munge(remoteRules, sdpDescription);
+  }
+
+  public boolean isEmpty() {
+    return localRules.length == 0 && remoteRules.length == 0;
+  }
+
+  private static String munge(Rule[] rules, String sdpDescription) {
+    if (rules.length == 0) {
+      return sdpDescription;
+    }
+    SdpDocument sdp = SdpDocument.parse(sdpDescription);
+    for (Rule rule : rules) {
+      rule.apply(sdp);
+    }
+    return sdp.toString();
+  }
+
+  /** Moves the first payload type of |codec| to the front of the m-line. */
+  public static Rule preferCodec(final String mediaType, final String codec) {
+    return new Rule() {
+      @Override
+      public void apply(SdpDocument sdp) {
+        SdpDocument.MediaSection section = sdp.getMediaSection(mediaType);
+        if (section == null) {
+          Log.w(TAG, "No m=" + mediaType + " line, so can't prefer " + codec);
+          return;
+        }
+        String payloadType = section.findPayloadType(codec);
+        if (payloadType == null) {
+          Log.w(TAG, "No rtpmap for " + codec);
+          return;
+        }
+        Log.d(TAG, "Found " + codec + " rtpmap " + payloadType
+            + ", prefer at m=" + mediaType);
+        section.preferPayloadType(payloadType);
+      }
+    };
+  }
+
+  /**
+   * Reorders the whole m-line so that |codecs| come first in list order.
+   * Codecs missing from the description are ignored.
+   */
+  public static Rule preferCodecs(final String mediaType, final List<String> codecs) {
+    return new Rule() {
+      @Override
+      public void apply(SdpDocument sdp) {
+        SdpDocument.MediaSection section = sdp.getMediaSection(mediaType);
+        if (section == null) {
+          Log.w(TAG, "No m=" + mediaType + " line, so can't prefer " + codecs);
+          return;
+        }
+        section.reorderPayloadTypes(codecs);
+        Log.d(TAG, "Reordered m=" + mediaType + " for " + codecs + ": "
+            + section.getPayloadTypes());
+      }
+    };
+  }
+
+  /**
+   * Caps the bandwidth of every m=|mediaType| section, or of the whole
+   * session if |mediaType| is null, with both b=AS and b=TIAS lines.
+   */
+  public static Rule setMaxBandwidth(final String mediaType, final int bandwidthKbps) {
+    return new Rule() {
+      @Override
+      public void apply(SdpDocument sdp) {
+        if (mediaType == null) {
+          sdp.setSessionBandwidth(SdpDocument.BANDWIDTH_AS, bandwidthKbps);
+          sdp.setSessionBandwidth(SdpDocument.BANDWIDTH_TIAS, bandwidthKbps * 1000L);
+          return;
+        }
+        for (SdpDocument.MediaSection section : sdp.getMediaSections()) {
+          if (section.getMediaType().equals(mediaType)) {
+            section.setBandwidth(SdpDocument.BANDWIDTH_AS, bandwidthKbps);
+            section.setBandwidth(SdpDocument.BANDWIDTH_TIAS, bandwidthKbps * 1000L);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Minimizes every m=|mediaType| section to |codecs| (plus RTX, and RED/FEC
+   * if |keepRedundancy| is set) and drops attributes of removed codecs.
+   */
+  public static Rule retainCodecs(final String mediaType,
+      final List<String> codecs, final boolean keepRedundancy) {
+    return new Rule() {
+      @Override
+      public void apply(SdpDocument sdp) {
+        for (SdpDocument.MediaSection section : sdp.getMediaSections()) {
+          if (section.getMediaType().equals(mediaType)) {
+            section.retainCodecs(codecs, keepRedundancy);
+          }
+        }
+      }
+    };
+  }
+
+  /** Removes every payload type of |codec| and its attributes. */
+  public static Rule stripCodec(final String mediaType, final String codec) {
+    return new Rule() {
+      @Override
+      public void apply(SdpDocument sdp) {
+        SdpDocument.MediaSection section = sdp.getMediaSection(mediaType);
+        if (section == null) {
+          return;
+        }
+        for (String payloadType : section.findPayloadTypes(codec)) {
+          Log.d(TAG, "Strip " + codec + " payload " + payloadType);
+          section.removePayloadType(payloadType);
+        }
+      }
+    };
+  }
+
+  /**
+   * Sets |key|=|value| in the a=fmtp line of every payload type of |codec|.
+   * Missing fmtp lines are created.
+   */
+  public static Rule setFmtpParameter(final String mediaType,
+      final String codec, final String key, final String value) {
+    return new Rule() {
+      @Override
+      public void apply(SdpDocument sdp) {
+        SdpDocument.MediaSection section = sdp.getMediaSection(mediaType);
+        if (section == null) {
+          return;
+        }
+        List<String> payloadTypes = section.findPayloadTypes(codec);
+        if (payloadTypes.isEmpty()) {
+          Log.w(TAG, "No rtpmap for " + codec + " codec");
+          return;
+        }
+        for (String payloadType : payloadTypes) {
+          section.setFmtpParameter(payloadType, key, value);
+        }
+      }
+    };
+  }
+}
@@ -28,18 +28,35 @@ public class SettingsActivity extends Activity
   private String keyprefCaptureQualitySlider;
   private String keyprefStartVideoBitrateType;
   private String keyprefStartVideoBitrateValue;
+  private String keyprefVideoMinBitrate;
+  private String keyprefVideoMaxBitrate;
+  private String keyprefVideoBandwidth;
   private String keyPrefVideoCodec;
   private String keyprefHwCodec;
   private String keyprefCaptureToTexture;
 
   private String keyprefStartAudioBitrateType;
   private String keyprefStartAudioBitrateValue;
+  private String keyprefAudioBandwidth;
   private String keyPrefAudioCodec;
   private String keyprefNoAudioProcessing;
   private String keyprefAecDump;
   private String keyprefOpenSLES;
+  private String keyprefKeepAudioWarm;
 
   private String keyPrefRoomServerUrl;
+  private String keyPrefIceConfigUrl;
+  private String keyprefSessionBandwidth;
+  private String keyprefMinimizeSdp;
+  private String keyprefSdpRedundancy;
+  private String keyprefNonTrickleIce;
+  private String keyprefIceGatheringTimeout;
+  private String keyprefMaxIceServers;
+  private String keyprefIceCandidateBatch;
+  private String keyprefSdpHedgeDelay;
+  private String keyprefEarlySignIn;
+  private String keyprefSpeculativeSetup;
+  private String keyprefFactoryIdleTimeout;
   private String keyPrefDisplayHud;
   private String keyPrefTracing;
 
@@ -52,18 +69,35 @@ public class SettingsActivity extends Activity
     keyprefCaptureQualitySlider = getString(R.string.pref_capturequalityslider_key);
     keyprefStartVideoBitrateType = getString(R.string.pref_startvideobitrate_key);
     keyprefStartVideoBitrateValue = getString(R.string.pref_startvideobitratevalue_key);
+    keyprefVideoMinBitrate = getString(R.string.pref_minvideobitratevalue_key);
+    keyprefVideoMaxBitrate = getString(R.string.pref_maxvideobitratevalue_key);
+    keyprefVideoBandwidth = getString(R.string.pref_videobandwidth_key);
     keyPrefVideoCodec = getString(R.string.pref_videocodec_key);
     keyprefHwCodec = getString(R.string.pref_hwcodec_key);
     keyprefCaptureToTexture = getString(R.string.pref_capturetotexture_key);
 
     keyprefStartAudioBitrateType = getString(R.string.pref_startaudiobitrate_key);
     keyprefStartAudioBitrateValue = getString(R.string.pref_startaudiobitratevalue_key);
+    keyprefAudioBandwidth = getString(R.string.pref_audiobandwidth_key);
     keyPrefAudioCodec = getString(R.string.pref_audiocodec_key);
     keyprefNoAudioProcessing = getString(R.string.pref_noaudioprocessing_key);
     keyprefAecDump = getString(R.string.pref_aecdump_key);
     keyprefOpenSLES = getString(R.string.pref_opensles_key);
+    keyprefKeepAudioWarm = getString(R.string.pref_keepaudiowarm_key);
 
     keyPrefRoomServerUrl = getString(R.string.pref_room_server_url_key);
+    keyPrefIceConfigUrl = getString(R.string.pref_ice_config_url_key);
+    keyprefSessionBandwidth = getString(R.string.pref_sessionbandwidth_key);
+    keyprefMinimizeSdp = getString(R.string.pref_minimizesdp_key);
+    keyprefSdpRedundancy = getString(R.string.pref_sdpredundancy_key);
+    keyprefNonTrickleIce = getString(R.string.pref_nontrickleice_key);
+    keyprefIceGatheringTimeout = getString(R.string.pref_icegatheringtimeout_key);
+    keyprefMaxIceServers = getString(R.string.pref_maxiceservers_key);
+    keyprefIceCandidateBatch = getString(R.string.pref_icecandidatebatch_key);
+    keyprefSdpHedgeDelay = getString(R.string.pref_sdphedgedelay_key);
+    keyprefEarlySignIn = getString(R.string.pref_earlysignin_key);
+    keyprefSpeculativeSetup = getString(R.string.pref_speculativesetup_key);
+    keyprefFactoryIdleTimeout = getString(R.string.pref_factoryidletimeout_key);
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
     keyPrefTracing = getString(R.string.pref_tracing_key);
 
@@ -88,6 +122,9 @@ public class SettingsActivity extends Activity
     updateSummary(sharedPreferences, keyprefStartVideoBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefStartVideoBitrateValue);
     setVideoBitrateEnable(sharedPreferences);
+    updateSummaryBitrate(sharedPreferences, keyprefVideoMinBitrate);
+    updateSummaryBitrate(sharedPreferences, keyprefVideoMaxBitrate);
+    updateSummaryBitrate(sharedPreferences, keyprefVideoBandwidth);
     updateSummary(sharedPreferences, keyPrefVideoCodec);
     updateSummaryB(sharedPreferences, keyprefHwCodec);
     updateSummaryB(sharedPreferences, keyprefCaptureToTexture);
@@ -95,12 +132,26 @@ public class SettingsActivity extends Activity
     updateSummary(sharedPreferences, keyprefStartAudioBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefStartAudioBitrateValue);
     setAudioBitrateEnable(sharedPreferences);
+    updateSummaryBitrate(sharedPreferences, keyprefAudioBandwidth);
     updateSummary(sharedPreferences, keyPrefAudioCodec);
     updateSummaryB(sharedPreferences, keyprefNoAudioProcessing);
     updateSummaryB(sharedPreferences, keyprefAecDump);
     updateSummaryB(sharedPreferences, keyprefOpenSLES);
+    updateSummaryB(sharedPreferences, keyprefKeepAudioWarm);
 
     updateSummary(sharedPreferences, keyPrefRoomServerUrl);
+    updateSummary(sharedPreferences, keyPrefIceConfigUrl);
+    updateSummaryBitrate(sharedPreferences, keyprefSessionBandwidth);
+    updateSummaryB(sharedPreferences, keyprefMinimizeSdp);
+    updateSummaryB(sharedPreferences, keyprefSdpRedundancy);
+    updateSummaryB(sharedPreferences, keyprefNonTrickleIce);
+    updateSummary(sharedPreferences, keyprefIceGatheringTimeout);
+    updateSummary(sharedPreferences, keyprefMaxIceServers);
+    updateSummary(sharedPreferences, keyprefIceCandidateBatch);
+    updateSummary(sharedPreferences, keyprefSdpHedgeDelay);
+    updateSummaryB(sharedPreferences, keyprefEarlySignIn);
+    updateSummaryB(sharedPreferences, keyprefSpeculativeSetup);
+    updateSummary(sharedPreferences, keyprefFactoryIdleTimeout);
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
     updateSummaryB(sharedPreferences, keyPrefTracing);
   }
@@ -122,10 +173,21 @@ public class SettingsActivity extends Activity
         || key.equals(keyPrefVideoCodec)
         || key.equals(keyprefStartAudioBitrateType)
         || key.equals(keyPrefAudioCodec)
-        || key.equals(keyPrefRoomServerUrl)) {
+        || key.equals(keyPrefRoomServerUrl)
+        || key.equals(keyPrefIceConfigUrl)
+        || key.equals(keyprefIceGatheringTimeout)
+        || key.equals(keyprefMaxIceServers)
+        || key.equals(keyprefIceCandidateBatch)
+        || key.equals(keyprefSdpHedgeDelay)
+        || key.equals(keyprefFactoryIdleTimeout)) {
       updateSummary(sharedPreferences, key);
     } else if (key.equals(keyprefStartVideoBitrateValue)
-        || key.equals(keyprefStartAudioBitrateValue)) {
+        || key.equals(keyprefVideoMinBitrate)
+        || key.equals(keyprefVideoMaxBitrate)
+        || key.equals(keyprefVideoBandwidth)
+        || key.equals(keyprefStartAudioBitrateValue)
+        || key.equals(keyprefAudioBandwidth)
+        || key.equals(keyprefSessionBandwidth)) {
       updateSummaryBitrate(sharedPreferences, key);
     } else if (key.equals(keyprefVideoCall)
         || key.equals(keyPrefTracing)
@@ -135,6 +197,12 @@ public class SettingsActivity extends Activity
         || key.equals(keyprefNoAudioProcessing)
         || key.equals(keyprefAecDump)
         || key.equals(keyprefOpenSLES)
+        || key.equals(keyprefKeepAudioWarm)
+        || key.equals(keyprefMinimizeSdp)
+        || key.equals(keyprefSdpRedundancy)
+        || key.equals(keyprefNonTrickleIce)
+        || key.equals(keyprefEarlySignIn)
+        || key.equals(keyprefSpeculativeSetup)
         || key.equals(keyPrefDisplayHud)) {
       updateSummaryB(sharedPreferences, key);
     }
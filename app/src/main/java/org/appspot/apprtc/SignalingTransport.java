@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Path that carries peer messages (offer, answer and ICE candidates)
+ * between WebSocketRTCClient and the room server.
+ *
+ * <p>See HttpSignalingTransport and WebSocketSignalingTransport. All methods
+ * must be called on the looper thread of the owning client.
+ */
+public interface SignalingTransport {
+  /**
+   * Callback interface for transport events.
+   */
+  public interface SignalingTransportEvents {
+    /**
+     * Message |message| from peer |peerId| arrived. Called on the looper
+     * thread; transports that only send never call it.
+     */
+    public void onTransportMessage(int peerId, String message);
+
+    /**
+     * A message could not be delivered at all. May be called on any thread.
+     */
+    public void onTransportError(String description);
+  }
+
+  /**
+   * Returns true if send() can be called now.
+   */
+  public boolean isReady();
+
+  /**
+   * Sends |message| to peer |peerId|. |hedgeDelayMs| is used by transports
+   * that can hedge slow requests, see
+   * RoomConnectionParameters.sdpHedgeDelayMs. |onSent|, if not null, runs
+   * once the server took the message.
+   */
+  public void send(int peerId, String message, int hedgeDelayMs, Runnable onSent);
+
+  /**
+   * Drops queued messages and releases the transport. Does not block.
+   */
+  public void close();
+}
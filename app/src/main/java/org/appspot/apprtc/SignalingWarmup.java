@@ -0,0 +1,295 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import org.appspot.apprtc.util.ResponseBodyReader;
+import org.appspot.apprtc.util.SignalingHttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up the signaling path while the user is still on ConnectActivity.
+ *
+ * <p>warmUp() resolves the room server host and sends a CORS preflight
+ * (OPTIONS), which peerconnection_server answers with an empty 200, so a
+ * connected socket is left in the HttpURLConnection keep-alive pool for
+ * sign_in. Optionally it also signs in early; WebSocketRTCClient then takes
+ * the live session over with adopt() instead of signing in again. A session
+ * that is not adopted within SESSION_TTL_MS is signed out.
+ *
+ * <p>The early session has no /wait pending until it is adopted, and
+ * SignalingServer drops such members after 30 s. SESSION_TTL_MS stays well
+ * below that, so an adopted session still has time to start its long poll.
+ */
+public class SignalingWarmup {
+  private static final String TAG = "SignalingWarmup";
+  private static final long SESSION_TTL_MS = 20000;
+  private static final SignalingWarmup instance = new SignalingWarmup();
+  private final ScheduledThreadPoolExecutor executor;
+  // Guarded by this.
+  private Session session;
+  private ScheduledFuture<?> sessionExpiry;
+  private String signInRoomUrl;
+  private String signInRoomId;
+  private AdoptEvents pendingAdoptEvents;
+  private String pendingAdoptRoomUrl;
+  private String pendingAdoptRoomId;
+
+  /**
+   * Signed in session: the sign_in response and the peer id assigned to it.
+   */
+  public static class Session {
+    public final String roomUrl;
+    public final String roomId;
+    public final int peerId;
+    public final String response;
+
+    Session(String roomUrl, String roomId, int peerId, String response) {
+      this.roomUrl = roomUrl;
+      this.roomId = roomId;
+      this.peerId = peerId;
+      this.response = response;
+    }
+  }
+
+  /**
+   * Adoption result callback.
+   */
+  public interface AdoptEvents {
+    // |session| is null if there is no early session for the room.
+    public void onAdoptResult(Session session);
+  }
+
+  private SignalingWarmup() {
+    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public static SignalingWarmup getInstance() {
+    return instance;
+  }
+
+  /**
+   * Resolves and pre-connects to |roomUrl| in the background. If |signIn|
+   * is set, also signs in to room |roomId| unless a session for it exists.
+   */
+  public void warmUp(final String roomUrl, final String roomId, boolean signIn) {
+    final boolean signInRoom = signIn && roomId != null && roomId.length() > 0;
+    if (signInRoom) {
+      // From here on adopt() waits for this sign in.
+      synchronized (this) {
+        signInRoomUrl = roomUrl;
+        signInRoomId = roomId;
+      }
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          warmUpInternal(roomUrl, roomId, signInRoom);
+        } finally {
+          if (signInRoom) {
+            onSignInDone(roomUrl, roomId);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Hands the early session for |roomUrl| and |roomId| over to |events|,
+   * which takes ownership of it. Does not block: if a sign_in to the same
+   * room is still on the wire, |events| is called on the warm up thread once
+   * it completed, otherwise at once on the calling thread.
+   */
+  public void adopt(String roomUrl, String roomId, AdoptEvents events) {
+    AdoptEvents answered = events;
+    Session adopted = null;
+    synchronized (this) {
+      if (roomUrl.equals(signInRoomUrl) && roomId.equals(signInRoomId)) {
+        // A newer adopt() supersedes a pending one, which gets no session.
+        answered = pendingAdoptEvents;
+        pendingAdoptEvents = events;
+        pendingAdoptRoomUrl = roomUrl;
+        pendingAdoptRoomId = roomId;
+      } else {
+        adopted = takeSession(roomUrl, roomId);
+      }
+    }
+    if (answered != null) {
+      answered.onAdoptResult(adopted);
+    }
+  }
+
+  // Removes and returns the session for |roomUrl| and |roomId|, or returns
+  // null if there is none. Must be called with this held.
+  private Session takeSession(String roomUrl, String roomId) {
+    if (session == null || !session.roomUrl.equals(roomUrl) || !session.roomId.equals(roomId)) {
+      return null;
+    }
+    Session adopted = session;
+    session = null;
+    sessionExpiry.cancel(false);
+    sessionExpiry = null;
+    Log.d(TAG, "Session of peer " + adopted.peerId + " adopted.");
+    return adopted;
+  }
+
+  private void warmUpInternal(String roomUrl, String roomId, boolean signIn) {
+    long startTimeMs = System.currentTimeMillis();
+    try {
+      InetAddress.getAllByName(new URL(roomUrl).getHost());
+      long resolvedTimeMs = System.currentTimeMillis();
+      HttpURLConnection connection = openConnection(roomUrl + "/sign_in", "OPTIONS");
+      int responseCode = connection.getResponseCode();
+      drain(connection, responseCode);
+      Log.d(TAG, "Warmed up " + roomUrl + ". DNS: " + (resolvedTimeMs - startTimeMs)
+          + " ms, preflight: " + (System.currentTimeMillis() - resolvedTimeMs)
+          + " ms, status " + responseCode + ".");
+    } catch (IOException e) {
+      Log.w(TAG, "Warm up of " + roomUrl + " failed: " + e.getMessage());
+      return;
+    }
+    if (!signIn) {
+      return;
+    }
+    Session stale = null;
+    synchronized (this) {
+      if (session != null) {
+        if (session.roomUrl.equals(roomUrl) && session.roomId.equals(roomId)) {
+          return;
+        }
+        // The user picked another room, release the old session.
+        sessionExpiry.cancel(false);
+        stale = session;
+        session = null;
+      }
+    }
+    if (stale != null) {
+      signOut(stale);
+    }
+    final Session signedIn = signIn(roomUrl, roomId);
+    if (signedIn == null) {
+      return;
+    }
+    synchronized (this) {
+      session = signedIn;
+      sessionExpiry = executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          expire(signedIn);
+        }
+      }, SESSION_TTL_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // Answers a pending adopt() once the sign in to |roomId| succeeded or
+  // failed.
+  private void onSignInDone(String roomUrl, String roomId) {
+    AdoptEvents events = null;
+    Session adopted = null;
+    synchronized (this) {
+      if (roomUrl.equals(signInRoomUrl) && roomId.equals(signInRoomId)) {
+        signInRoomUrl = null;
+        signInRoomId = null;
+      }
+      if (pendingAdoptEvents != null && roomUrl.equals(pendingAdoptRoomUrl)
+          && roomId.equals(pendingAdoptRoomId)) {
+        events = pendingAdoptEvents;
+        pendingAdoptEvents = null;
+        adopted = takeSession(roomUrl, roomId);
+      }
+    }
+    if (events != null) {
+      events.onAdoptResult(adopted);
+    }
+  }
+
+  private Session signIn(String roomUrl, String roomId) {
+    long startTimeMs = System.currentTimeMillis();
+    try {
+      HttpURLConnection connection = openConnection(roomUrl + "/sign_in?" + roomId, "GET");
+      int responseCode = connection.getResponseCode();
+      if (responseCode != 200) {
+        drain(connection, responseCode);
+        Log.w(TAG, "Early sign in to " + roomUrl + " failed: " + responseCode);
+        return null;
+      }
+      InputStream responseStream = connection.getInputStream();
+      String response = ResponseBodyReader.read(responseStream, connection.getContentLength());
+      responseStream.close();
+      int peerId = Integer.parseInt(connection.getHeaderField("Pragma").trim());
+      Log.d(TAG, "Early sign in as peer " + peerId + " in "
+          + (System.currentTimeMillis() - startTimeMs) + " ms.");
+      return new Session(roomUrl, roomId, peerId, response);
+    } catch (IOException e) {
+      Log.w(TAG, "Early sign in to " + roomUrl + " failed: " + e.getMessage());
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Early sign in to " + roomUrl + " returned no peer id.");
+    }
+    return null;
+  }
+
+  private void expire(Session expiring) {
+    synchronized (this) {
+      if (session != expiring) {
+        return;
+      }
+      session = null;
+      sessionExpiry = null;
+    }
+    Log.d(TAG, "Session of peer " + expiring.peerId + " not adopted, signing out.");
+    signOut(expiring);
+  }
+
+  // Runs on the warm up thread.
+  private void signOut(Session released) {
+    try {
+      HttpURLConnection connection = openConnection(
+          released.roomUrl + "/sign_out?peer_id=" + released.peerId, "GET");
+      drain(connection, connection.getResponseCode());
+    } catch (IOException e) {
+      Log.w(TAG, "Sign out of peer " + released.peerId + " failed: " + e.getMessage());
+    }
+  }
+
+  private static HttpURLConnection openConnection(String url, String method)
+      throws IOException {
+    return SignalingHttp.open(url, method, false);
+  }
+
+  // Reads the body to the end, so the socket goes back to the keep-alive pool.
+  private static void drain(HttpURLConnection connection, int responseCode)
+      throws IOException {
+    InputStream stream = responseCode >= 400
+        ? connection.getErrorStream() : connection.getInputStream();
+    if (stream != null) {
+      ResponseBodyReader.read(stream, connection.getContentLength());
+      stream.close();
+    }
+  }
+}
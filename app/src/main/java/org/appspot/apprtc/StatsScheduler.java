@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import org.appspot.apprtc.util.Histogram;
+import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.LooperExecutor.Priority;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests peer connection stats on the looper thread at a period that
+ * follows demand.
+ *
+ * <p>Stats are requested every |fastPeriodMs| while the HUD is visible and
+ * for RAMP_UP_MS after start, while bandwidth estimation settles; otherwise
+ * every IDLE_PERIOD_MS, and every BACKGROUND_PERIOD_MS while the app is in
+ * the background. A request due while the previous one did not complete yet
+ * is coalesced into it, so at most one getStats() is in flight. Unlike
+ * java.util.Timer the scheduler can be stopped and started again.
+ *
+ * <p>The timer ticks as CONTROL tasks, which lane limits never drop, and
+ * re-arms itself on every tick. Each tick queues the request itself as a
+ * coalesced TELEMETRY task, so stats never delay signaling work, and a
+ * dropped request does not stop the timer.
+ *
+ * <p>All methods must be called on the looper thread of |executor|.
+ */
+class StatsScheduler {
+  private static final String TAG = "StatsScheduler";
+  private static final int RAMP_UP_MS = 10000;
+  private static final int IDLE_PERIOD_MS = 5000;
+  private static final int BACKGROUND_PERIOD_MS = 20000;
+  // A request not completed after this long is treated as lost.
+  private static final int STATS_TIMEOUT_MS = 5000;
+  private static final String STATS_COALESCING_KEY = "getStats";
+
+  /**
+   * Issues the stats requests.
+   */
+  interface StatsRequester {
+    // Requests stats and calls |onComplete|, on any thread, once all reports
+    // arrived. Returns false if nothing was requested.
+    boolean requestStats(Runnable onComplete);
+  }
+
+  private final LooperExecutor executor;
+  private final StatsRequester requester;
+  private final Histogram latencyHistogram = new Histogram("stats latency", "ms");
+  private boolean running;
+  private int fastPeriodMs;
+  private boolean hudVisible;
+  private boolean inForeground = true;
+  private long startMs;
+  private long lastRequestMs;
+  private long requestStartMs;
+  // Incremented whenever the schedule changes, so outdated ticks do nothing.
+  private int generation;
+  private int lastRequestId;
+  private int coalescedCount;
+  // Id of the request in flight, 0 if none. Cleared on the completing thread.
+  private final AtomicInteger inFlightRequestId = new AtomicInteger();
+
+  StatsScheduler(LooperExecutor executor, StatsRequester requester) {
+    this.executor = executor;
+    this.requester = requester;
+  }
+
+  /** Starts requesting stats now, every |fastPeriodMs| at most. */
+  void start(int fastPeriodMs) {
+    this.fastPeriodMs = fastPeriodMs;
+    running = true;
+    startMs = System.currentTimeMillis();
+    lastRequestMs = 0;
+    coalescedCount = 0;
+    latencyHistogram.reset();
+    reschedule();
+  }
+
+  /** Stops requesting stats. Demand goes back to its defaults. */
+  void stop() {
+    if (running) {
+      Log.d(TAG, "Stopped, " + coalescedCount + " requests coalesced. " + latencyHistogram);
+    }
+    running = false;
+    generation++;
+    hudVisible = false;
+    inForeground = true;
+  }
+
+  void setHudVisible(boolean visible) {
+    if (hudVisible != visible) {
+      hudVisible = visible;
+      reschedule();
+    }
+  }
+
+  void setInForeground(boolean foreground) {
+    if (inForeground != foreground) {
+      inForeground = foreground;
+      reschedule();
+    }
+  }
+
+  private int getPeriodMs() {
+    if (!inForeground) {
+      return Math.max(fastPeriodMs, BACKGROUND_PERIOD_MS);
+    }
+    if (hudVisible || System.currentTimeMillis() - startMs < RAMP_UP_MS) {
+      return fastPeriodMs;
+    }
+    return Math.max(fastPeriodMs, IDLE_PERIOD_MS);
+  }
+
+  // Replaces the pending tick with one due a period after the last request,
+  // so a shorter period takes effect at once.
+  private void reschedule() {
+    if (!running) {
+      return;
+    }
+    generation++;
+    long delayMs = lastRequestMs + getPeriodMs() - System.currentTimeMillis();
+    if (delayMs <= 0) {
+      tick(generation);
+    } else {
+      scheduleTick(delayMs);
+    }
+  }
+
+  private void scheduleTick(long delayMs) {
+    final int tickGeneration = generation;
+    executor.executeDelayed(new Runnable() {
+      @Override
+      public void run() {
+        tick(tickGeneration);
+      }
+    }, delayMs);
+  }
+
+  private void tick(int tickGeneration) {
+    if (!running || tickGeneration != generation) {
+      return;
+    }
+    lastRequestMs = System.currentTimeMillis();
+    scheduleTick(getPeriodMs());
+    // Queued even though ticks run on the looper thread; a request still
+    // queued from the previous tick is replaced.
+    executor.executeDelayed(Priority.TELEMETRY, STATS_COALESCING_KEY, new Runnable() {
+      @Override
+      public void run() {
+        if (running) {
+          request();
+        }
+      }
+    }, 0);
+  }
+
+  private void request() {
+    final long nowMs = System.currentTimeMillis();
+    if (inFlightRequestId.get() != 0) {
+      if (nowMs - requestStartMs < STATS_TIMEOUT_MS) {
+        coalescedCount++;
+        return;
+      }
+      Log.w(TAG, "Stats request timed out after " + (nowMs - requestStartMs) + " ms.");
+    }
+    if (++lastRequestId == 0) {
+      // 0 stands for no request.
+      lastRequestId++;
+    }
+    final int requestId = lastRequestId;
+    requestStartMs = nowMs;
+    inFlightRequestId.set(requestId);
+    boolean requested = requester.requestStats(new Runnable() {
+      @Override
+      public void run() {
+        if (inFlightRequestId.compareAndSet(requestId, 0)) {
+          latencyHistogram.record(System.currentTimeMillis() - nowMs);
+        }
+      }
+    });
+    if (!requested) {
+      inFlightRequestId.compareAndSet(requestId, 0);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import org.webrtc.MediaCodecVideoEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered video codec preference list.
+ *
+ * <p>A preference is written as codec names separated by '>', most preferred
+ * first, e.g. "H264(hw) > VP8(hw) > VP9 > VP8". A "(hw)" suffix makes the
+ * entry apply only if a hardware encoder for that codec is available and
+ * hardware acceleration is enabled; otherwise the entry is skipped and the
+ * next one is used. A single codec name such as "VP9" is a valid list.
+ */
+public class VideoCodecPreference {
+  private static final String TAG = "VideoCodecPreference";
+  private static final String SEPARATOR = ">";
+  private static final String HW_SUFFIX = "(hw)";
+
+  private final List<String> codecs;
+  private final List<Boolean> hardwareOnly;
+
+  private VideoCodecPreference(List<String> codecs, List<Boolean> hardwareOnly) {
+    this.codecs = codecs;
+    this.hardwareOnly = hardwareOnly;
+  }
+
+  /**
+   * Parses |preference|. Unknown codec names are dropped with a warning.
+   * Returns a VP8-only preference if nothing usable is left.
+   */
+  public static VideoCodecPreference parse(String preference) {
+    List<String> codecs = new ArrayList<String>();
+    List<Boolean> hardwareOnly = new ArrayList<Boolean>();
+    if (preference != null) {
+      for (String entry : preference.split(SEPARATOR)) {
+        String codec = entry.trim();
+        boolean hw = false;
+        if (codec.toLowerCase().endsWith(HW_SUFFIX)) {
+          hw = true;
+          codec = codec.substring(0, codec.length() - HW_SUFFIX.length()).trim();
+        }
+        codec = codec.toUpperCase();
+        if (codec.equals(PeerConnectionClient.VIDEO_CODEC_VP8)
+            || codec.equals(PeerConnectionClient.VIDEO_CODEC_VP9)
+            || codec.equals(PeerConnectionClient.VIDEO_CODEC_H264)) {
+          codecs.add(codec);
+          hardwareOnly.add(hw);
+        } else if (codec.length() > 0) {
+          Log.w(TAG, "Unknown video codec in preference: " + entry);
+        }
+      }
+    }
+    if (codecs.isEmpty()) {
+      codecs.add(PeerConnectionClient.VIDEO_CODEC_VP8);
+      hardwareOnly.add(false);
+    }
+    return new VideoCodecPreference(codecs, hardwareOnly);
+  }
+
+  /**
+   * Resolves the preference against the device's MediaCodec encoders and
+   * returns distinct codec names, most preferred first.
+   */
+  public List<String> resolve(boolean hwAccelerationEnabled) {
+    List<String> resolved = new ArrayList<String>(codecs.size());
+    for (int i = 0; i < codecs.size(); i++) {
+      String codec = codecs.get(i);
+      if (resolved.contains(codec)) {
+        continue;
+      }
+      if (hardwareOnly.get(i)
+          && !(hwAccelerationEnabled && isHwEncoderSupported(codec))) {
+        Log.d(TAG, "No HW encoder for " + codec + ", falling back.");
+        continue;
+      }
+      resolved.add(codec);
+    }
+    if (resolved.isEmpty()) {
+      // Every entry required hardware support that is missing.
+      resolved.add(codecs.get(codecs.size() - 1));
+    }
+    return resolved;
+  }
+
+  private static boolean isHwEncoderSupported(String codec) {
+    if (codec.equals(PeerConnectionClient.VIDEO_CODEC_VP8)) {
+      return MediaCodecVideoEncoder.isVp8HwSupported();
+    } else if (codec.equals(PeerConnectionClient.VIDEO_CODEC_VP9)) {
+      return MediaCodecVideoEncoder.isVp9HwSupported();
+    } else if (codec.equals(PeerConnectionClient.VIDEO_CODEC_H264)) {
+      return MediaCodecVideoEncoder.isH264HwSupported();
+    }
+    return false;
+  }
+}
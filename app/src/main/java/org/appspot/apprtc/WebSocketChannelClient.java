@@ -10,8 +10,6 @@
 
 package org.appspot.apprtc;
 
-import org.appspot.apprtc.util.AsyncHttpURLConnection;
-import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
 import org.appspot.apprtc.util.Logout;
 import org.appspot.apprtc.util.LooperExecutor;
 
@@ -34,22 +32,22 @@ import java.util.LinkedList;
  * <p>All public methods should be called from a looper executor thread
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
+ *
+ * <p>The client registers with its peer id and is REGISTERED only once the
+ * server acknowledged that with {"cmd": "registered"}. Messages are sent as
+ * {"cmd": "send", "to": id, "msg": message}; the server pushes incoming ones
+ * as {"from": id, "msg": message} and reports failures as {"error": text}.
  */
 
 public class WebSocketChannelClient {
   private static final String TAG = "WSChannelRTCClient";
-  private static final int CLOSE_TIMEOUT = 1000;
   private final WebSocketChannelEvents events;
   private final LooperExecutor executor;
   private WebSocketConnection ws;
   private WebSocketObserver wsObserver;
   private String wsServerUrl;
-  private String postServerUrl;
-  private String roomID;
   private String clientID;
   private WebSocketConnectionState state;
-  private final Object closeEventLock = new Object();
-  private boolean closeEvent;
   // WebSocket send queue. Messages are added to the queue when WebSocket
   // client is not registered and are consumed in register() call.
   private final LinkedList<String> wsSendQueue;
@@ -75,7 +73,6 @@ public class WebSocketChannelClient {
     Logout.verbose(TAG,"=====================");
     this.executor = executor;
     this.events = events;
-    roomID = null;
     clientID = null;
     wsSendQueue = new LinkedList<String>();
     state = WebSocketConnectionState.NEW;
@@ -85,7 +82,7 @@ public class WebSocketChannelClient {
     return state;
   }
 
-  public void connect(final String wsUrl, final String postUrl) {
+  public void connect(final String wsUrl) {
     Logout.verbose(TAG,"=====================");
     checkIfCalledOnValidThread();
     if (state != WebSocketConnectionState.NEW) {
@@ -93,10 +90,8 @@ public class WebSocketChannelClient {
       return;
     }
     wsServerUrl = wsUrl;
-    postServerUrl = postUrl;
-    closeEvent = false;
 
-    Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
+    Log.d(TAG, "Connecting WebSocket to: " + wsUrl);
     ws = new WebSocketConnection();
     wsObserver = new WebSocketObserver();
     try {
@@ -108,106 +103,96 @@ public class WebSocketChannelClient {
     }
   }
 
-  public void register(final String roomID, final String clientID) {
+  // Registers as peer |clientID|, once the WebSocket is open if it is not
+  // yet. The state changes to REGISTERED when the server acknowledged it.
+  public void register(final String clientID) {
     Logout.verbose(TAG,"=====================");
     checkIfCalledOnValidThread();
-    this.roomID = roomID;
     this.clientID = clientID;
     if (state != WebSocketConnectionState.CONNECTED) {
       Log.w(TAG, "WebSocket register() in state " + state);
       return;
     }
-    Log.d(TAG, "Registering WebSocket for room " + roomID + ". CLientID: " + clientID);
+    Log.d(TAG, "Registering WebSocket. ClientID: " + clientID);
     JSONObject json = new JSONObject();
     try {
       json.put("cmd", "register");
-      json.put("roomid", roomID);
       json.put("clientid", clientID);
       Log.d(TAG, "C->WSS: " + json.toString());
       ws.sendTextMessage(json.toString());
-      state = WebSocketConnectionState.REGISTERED;
-      // Send any previously accumulated messages.
-      for (String sendMessage : wsSendQueue) {
-        send(sendMessage);
-      }
-      wsSendQueue.clear();
     } catch (JSONException e) {
       reportError("WebSocket register JSON error: " + e.getMessage());
     }
   }
 
-  public void send(String message) {
+  // Sends |message| to peer |to|. Messages sent before the registration is
+  // acknowledged are queued.
+  public void send(String to, String message) {
     Logout.verbose(TAG,"=====================");
     checkIfCalledOnValidThread();
-    switch (state) {
-      case NEW:
-      case CONNECTED:
-        // Store outgoing messages and send them after websocket client
-        // is registered.
-        Log.d(TAG, "WS ACC: " + message);
-        wsSendQueue.add(message);
-        return;
-      case ERROR:
-      case CLOSED:
-        Log.e(TAG, "WebSocket send() in error or closed state : " + message);
-        return;
-      case REGISTERED:
-        JSONObject json = new JSONObject();
-        try {
-          json.put("cmd", "send");
-          json.put("msg", message);
-          message = json.toString();
-          Log.d(TAG, "C->WSS: " + message);
-          ws.sendTextMessage(message);
-        } catch (JSONException e) {
-          reportError("WebSocket send JSON error: " + e.getMessage());
-        }
-        break;
+    if (state == WebSocketConnectionState.ERROR
+        || state == WebSocketConnectionState.CLOSED) {
+      Log.e(TAG, "WebSocket send() in error or closed state : " + message);
+      return;
     }
-    return;
-  }
-
-  // This call can be used to send WebSocket messages before WebSocket
-  // connection is opened.
-  public void post(String message) {
-    Logout.verbose(TAG,"=====================");
-    checkIfCalledOnValidThread();
-    sendWSSMessage("POST", message);
+    JSONObject json = new JSONObject();
+    try {
+      json.put("cmd", "send");
+      json.put("to", to);
+      json.put("msg", message);
+    } catch (JSONException e) {
+      reportError("WebSocket send JSON error: " + e.getMessage());
+      return;
+    }
+    if (state != WebSocketConnectionState.REGISTERED) {
+      // Store outgoing messages and send them after websocket client
+      // is registered.
+      Log.d(TAG, "WS ACC: " + message);
+      wsSendQueue.add(json.toString());
+      return;
+    }
+    Log.d(TAG, "C->WSS: " + json.toString());
+    ws.sendTextMessage(json.toString());
   }
 
-  public void disconnect(boolean waitForComplete) {
+  // Closes the WebSocket without waiting for the close handshake. Events
+  // that arrive later are dropped by the looper executor once it stopped.
+  public void disconnect() {
     Logout.verbose(TAG,"=====================");
     checkIfCalledOnValidThread();
     Log.d(TAG, "Disonnect WebSocket. State: " + state);
-    if (state == WebSocketConnectionState.REGISTERED) {
-      // Send "bye" to WebSocket server.
-      send("{\"type\": \"bye\"}");
-      state = WebSocketConnectionState.CONNECTED;
-      // Send http DELETE to http WebSocket server.
-      sendWSSMessage("DELETE", "");
-    }
-    // Close WebSocket in CONNECTED or ERROR states only.
-    if (state == WebSocketConnectionState.CONNECTED
-        || state == WebSocketConnectionState.ERROR) {
+    wsSendQueue.clear();
+    // A connect that is still in progress is cancelled as well.
+    if (ws != null && state != WebSocketConnectionState.CLOSED) {
       ws.disconnect();
-      state = WebSocketConnectionState.CLOSED;
+    }
+    state = WebSocketConnectionState.CLOSED;
+    Log.d(TAG, "Disonnecting WebSocket done.");
+  }
 
-      // Wait for websocket close event to prevent websocket library from
-      // sending any pending messages to deleted looper thread.
-      if (waitForComplete) {
-        synchronized (closeEventLock) {
-          while (!closeEvent) {
-            try {
-              closeEventLock.wait(CLOSE_TIMEOUT);
-              break;
-            } catch (InterruptedException e) {
-              Log.e(TAG, "Wait error: " + e.toString());
-            }
-          }
-        }
+  // Handles the registration acknowledgement. Returns false for messages
+  // that are passed on to the events.
+  private boolean onRegistered(String message) {
+    if (state != WebSocketConnectionState.CONNECTED) {
+      return false;
+    }
+    try {
+      JSONObject json = new JSONObject(message);
+      if (!json.optString("cmd").equals("registered")) {
+        return false;
       }
+    } catch (JSONException e) {
+      return false;
     }
-    Log.d(TAG, "Disonnecting WebSocket done.");
+    Log.d(TAG, "WebSocket registered as " + clientID);
+    state = WebSocketConnectionState.REGISTERED;
+    // Send any previously accumulated messages.
+    for (String sendMessage : wsSendQueue) {
+      Log.d(TAG, "C->WSS: " + sendMessage);
+      ws.sendTextMessage(sendMessage);
+    }
+    wsSendQueue.clear();
+    return true;
   }
 
   private void reportError(final String errorMessage) {
@@ -224,25 +209,6 @@ public class WebSocketChannelClient {
     });
   }
 
-  // Asynchronously send POST/DELETE to WebSocket server.
-  private void sendWSSMessage(final String method, final String message) {
-    Logout.verbose(TAG,"=====================");
-    String postUrl = postServerUrl + "/" + roomID + "/" + clientID;
-    Log.d(TAG, "WS " + method + " : " + postUrl + " : " + message);
-    AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
-        method, postUrl, message, new AsyncHttpEvents() {
-          @Override
-          public void onHttpError(String errorMessage) {
-            reportError("WS " + method + " error: " + errorMessage);
-          }
-
-          @Override
-          public void onHttpComplete(String response,int peerId) {
-          }
-        });
-    httpConnection.send();
-  }
-
    // Helper method for debugging purposes. Ensures that WebSocket method is
    // called on a looper thread.
   private void checkIfCalledOnValidThread() {
@@ -261,10 +227,14 @@ public class WebSocketChannelClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
+          if (state != WebSocketConnectionState.NEW) {
+            // Disconnected or failed in the meantime.
+            return;
+          }
           state = WebSocketConnectionState.CONNECTED;
           // Check if we have pending register request.
-          if (roomID != null && clientID != null) {
-            register(roomID, clientID);
+          if (clientID != null) {
+            register(clientID);
           }
         }
       });
@@ -275,10 +245,6 @@ public class WebSocketChannelClient {
       Logout.verbose(TAG,"=====================");
       Log.d(TAG, "WebSocket connection closed. Code: " + code
           + ". Reason: " + reason + ". State: " + state);
-      synchronized (closeEventLock) {
-        closeEvent = true;
-        closeEventLock.notify();
-      }
       executor.execute(new Runnable() {
         @Override
         public void run() {
@@ -298,8 +264,9 @@ public class WebSocketChannelClient {
       executor.execute(new Runnable() {
         @Override
         public void run() {
-          if (state == WebSocketConnectionState.CONNECTED
-              || state == WebSocketConnectionState.REGISTERED) {
+          if ((state == WebSocketConnectionState.CONNECTED
+              || state == WebSocketConnectionState.REGISTERED)
+              && !onRegistered(message)) {
             events.onWebSocketMessage(message);
           }
         }
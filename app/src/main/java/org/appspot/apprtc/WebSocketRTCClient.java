@@ -11,21 +11,28 @@
 package org.appspot.apprtc;
 
 import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
-import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
-import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.SignalingTransport.SignalingTransportEvents;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.LongPollChannel;
+import org.appspot.apprtc.util.LongPollChannel.LongPollEvents;
 import org.appspot.apprtc.util.Logout;
 import org.appspot.apprtc.util.LooperExecutor;
+import org.appspot.apprtc.util.RetryingHttpRequest;
 
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Negotiates signaling for chatting with apprtc.appspot.com "rooms".
@@ -36,14 +43,27 @@ import java.util.LinkedList;
  * onConnectedToRoom() callback with room parameters is invoked.
  * Messages to other party (with local Ice candidates and answer SDP) can
  * be sent after WebSocket connection is established.
+ *
+ * <p>Peer messages (offer, answer and candidates) go over a
+ * SignalingTransport: a WebSocket to the room server once it acknowledged
+ * our registration, HTTP /message posts otherwise, e.g. when the upgrade
+ * failed or the socket was closed. The hanging GET (/wait) keeps running
+ * for peer presence and as the HTTP receive path. Bye always goes over
+ * HTTP.
  */
 public class WebSocketRTCClient implements AppRTCClient,
-    WebSocketChannelEvents {
+    SignalingTransportEvents {
   private static final String TAG = "WSRTCClient";
   private static final String ROOM_JOIN = "sign_in";
   private static final String ROOM_HANG = "wait";
-  private static final String ROOM_MESSAGE = "message";
   private static final String ROOM_LEAVE = "sign_out";
+  // Key of the candidate array in a batched ICE candidate message.
+  static final String ICE_CANDIDATES = "candidates";
+  // Key of the message id, which lets the receiver drop retried duplicates.
+  static final String MESSAGE_ID = "msgid";
+  // Key of the per-destination sequence number, which lets the receiver
+  // restore the send order of pipelined messages.
+  static final String MESSAGE_SEQUENCE = "seq";
 
   private enum ConnectionState {
     NEW, CONNECTED, CLOSED, ERROR
@@ -60,6 +80,17 @@ public class WebSocketRTCClient implements AppRTCClient,
   private String leaveUrl;
   private int clientId;
   private static int myId;
+  // Local candidates waiting for the batch window to close.
+  private final List<IceCandidate> pendingCandidates = new LinkedList<IceCandidate>();
+  // Message ids are "<random prefix>:<destination>-<sequence number>".
+  private final String messageIdPrefix = Long.toHexString(new Random().nextLong());
+  private final Map<Integer, Integer> sequenceNumbers = new HashMap<Integer, Integer>();
+  // Hanging GET (/wait) loop and the parser for its responses.
+  private LongPollChannel hangingGetChannel;
+  private RoomParametersFetcher hangingGetFetcher;
+  // Peer message transports, created once our peer id is known.
+  private HttpSignalingTransport httpTransport;
+  private WebSocketSignalingTransport webSocketTransport;
   public WebSocketRTCClient(SignalingEvents events, LooperExecutor executor) {
     Logout.verbose(TAG,"=====================");
     this.events = events;
@@ -141,11 +172,16 @@ public class WebSocketRTCClient implements AppRTCClient,
         ;
       }
 
-      public void startHangingGet(int peerId)
+      public void startHangingGet(final int peerId)
       {
-        myId=peerId;
-        leaveUrl = getLeaveUrl(connectionParameters);
-        hanging(connectionParameters,peerId);
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            myId=peerId;
+            leaveUrl = getLeaveUrl(connectionParameters);
+            hanging(connectionParameters,peerId);
+          }
+        });
       }
 
       @Override
@@ -159,13 +195,37 @@ public class WebSocketRTCClient implements AppRTCClient,
       }
     };
 
-    new RoomParametersFetcher(connectionUrl, null, callbacks).makeRequest();
+    final RoomParametersFetcher fetcher =
+        new RoomParametersFetcher(connectionUrl, null, callbacks);
+    SignalingWarmup.getInstance().adopt(
+        connectionParameters.roomUrl, connectionParameters.roomId,
+        new SignalingWarmup.AdoptEvents() {
+          @Override
+          public void onAdoptResult(final SignalingWarmup.Session warmSession) {
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                if (warmSession != null) {
+                  // Signed in while the user was still on ConnectActivity.
+                  Log.d(TAG, "Adopting early sign in as peer " + warmSession.peerId);
+                  fetcher.adoptSignIn(warmSession.response, warmSession.peerId);
+                } else {
+                  fetcher.makeRequest();
+                }
+              }
+            });
+          }
+        });
   }
 
 
+  // Starts the hanging GET loop - runs on a local looper thread.
   private void hanging(RoomConnectionParameters cps,int peerId)
   {
     Logout.verbose(TAG,"=======++++++++++======");
+    if (hangingGetChannel != null && hangingGetChannel.isRunning()) {
+      return;
+    }
     String hangUrl=getHangingUrl(cps,peerId);
     RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
       @Override
@@ -200,7 +260,7 @@ public class WebSocketRTCClient implements AppRTCClient,
 
       public void startHangingGet(int peerId)
       {
-        WebSocketRTCClient.this.hanging(connectionParameters,peerId);
+        // LongPollChannel re-arms /wait by itself.
       }
 
       @Override
@@ -225,7 +285,60 @@ public class WebSocketRTCClient implements AppRTCClient,
         });
       }
     };
-    new RoomParametersFetcher(hangUrl,null,callbacks).onHangGetConnnect();
+    hangingGetFetcher = new RoomParametersFetcher(hangUrl,null,callbacks);
+    hangingGetFetcher.setExecutor(executor);
+    hangingGetChannel = new LongPollChannel(hangUrl, executor, new LongPollEvents() {
+      @Override
+      public void onLongPollMessage(String response, int peerId) {
+        hangingGetFetcher.onHangGetRead(response, peerId);
+      }
+
+      @Override
+      public void onLongPollError(String errorMessage) {
+        // Transient failures were already retried by the channel. The call
+        // initiator signs out after its first post, so a failing /wait does
+        // not end the call.
+        Log.e(TAG, "Room onHang error: " + errorMessage);
+      }
+    });
+    hangingGetChannel.start();
+    createTransports(cps, peerId);
+  }
+
+  // Creates the peer message transports for our peer id |myPeerId| - runs
+  // on a local looper thread. Messages go over HTTP until the WebSocket is
+  // registered.
+  private void createTransports(RoomConnectionParameters cps, int myPeerId) {
+    if (httpTransport != null) {
+      return;
+    }
+    httpTransport = new HttpSignalingTransport(cps.roomUrl, myPeerId, this);
+    String wsUrl = WebSocketSignalingTransport.getWebSocketUrl(cps.roomUrl);
+    if (wsUrl == null) {
+      Log.d(TAG, "No WebSocket URL for " + cps.roomUrl + ", using HTTP only.");
+      return;
+    }
+    webSocketTransport = new WebSocketSignalingTransport(executor, httpTransport, this);
+    webSocketTransport.connect(wsUrl, myPeerId);
+  }
+
+  // Returns the transport for the next peer message, or null if our peer id
+  // is not known yet.
+  private SignalingTransport getTransport() {
+    if (webSocketTransport != null && webSocketTransport.isReady()) {
+      return webSocketTransport;
+    }
+    return httpTransport;
+  }
+
+  // Sends |json| to peer |peerId| over the current transport.
+  private void sendToPeer(int peerId, JSONObject json, int hedgeDelayMs, Runnable onSent) {
+    SignalingTransport transport = getTransport();
+    if (transport == null) {
+      reportError("Sending message before signing in.");
+      return;
+    }
+    transport.send(peerId, json.toString(), hedgeDelayMs, onSent);
   }
 
 
@@ -233,6 +346,19 @@ public class WebSocketRTCClient implements AppRTCClient,
   private void disconnectFromRoomInternal() {
     Logout.verbose(TAG,"========disconnectFromRoomInternal=============");
     Log.d(TAG, "Disconnect. Room state: " + roomState);
+    pendingCandidates.clear();
+    if (hangingGetChannel != null) {
+      hangingGetChannel.stop();
+      hangingGetChannel = null;
+    }
+    if (webSocketTransport != null) {
+      webSocketTransport.close();
+      webSocketTransport = null;
+    }
+    if (httpTransport != null) {
+      httpTransport.close();
+      httpTransport = null;
+    }
     if (roomState == ConnectionState.CONNECTED) {
       Log.d(TAG, "Closing room.");
       sendPostMessage(MessageType.MESSAGE,messageUrl,"BYE");
@@ -263,8 +389,7 @@ public class WebSocketRTCClient implements AppRTCClient,
   private String getMessageUrl(RoomConnectionParameters connectionParameters,
       int clientId) {
     Logout.verbose(TAG,"=====================");
-    return connectionParameters.roomUrl + "/" + ROOM_MESSAGE + "?peer_id="
-      + myId + "&to=" + clientId;
+    return HttpSignalingTransport.getMessageUrl(connectionParameters.roomUrl, myId, clientId);
   }
 
   private String getLeaveUrl(RoomConnectionParameters connectionParameters)
@@ -320,53 +445,11 @@ public class WebSocketRTCClient implements AppRTCClient,
         JSONObject json = new JSONObject();
         jsonPut(json, "sdp", sdp.description);
         jsonPut(json, "type", "offer");
+        sequenceMessage(json, clientId);
 
-        String offerUrl = getMessageUrl(connectionParameters,clientId);
-        Log.d(TAG, "answer: " + offerUrl);
         roomState = ConnectionState.CONNECTED;
-        //wsClient = new WebSocketChannelClient(executor, this);
-
-        RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
-          @Override
-          public void onSignalingParametersReady(
-                  final SignalingParameters params) {
-          }
-
-          @Override
-          public void onSignalingParametersError(String description) {
-            //WebSocketRTCClient.this.reportError(description);
-          }
-
-          @Override
-          public void onPeerConnected(int peerId)
-          {
-
-
-          }
-
-          @Override
-          public void onMessageFromPeer(int peerId,String message)
-          {
-            ;
-          }
-
-          public void startHangingGet(int peerId)
-          {
-            //hanging(connectionParameters,peerId);
-          }
-
-          @Override
-          public void onRemoteIceCandidate(IceCandidate candidate) {
-
-          }
-
-          public void onRemoteDescription(SessionDescription sdp)
-          {
-
-          }
-        };
-
-        new RoomParametersFetcher(offerUrl,json.toString(), callbacks).postRequest();
+        Log.d(TAG, "offer to " + clientId);
+        sendToPeer(clientId, json, connectionParameters.sdpHedgeDelayMs, null);
       }
     });
   }
@@ -385,54 +468,11 @@ public class WebSocketRTCClient implements AppRTCClient,
         JSONObject json = new JSONObject();
         jsonPut(json, "sdp", sdp.description);
         jsonPut(json, "type", "answer");
+        sequenceMessage(json, clientId);
 
-        String answerUrl = getMessageUrl(connectionParameters,clientId);
-        Log.d(TAG, "answer: " + answerUrl);
         roomState = ConnectionState.CONNECTED;
-        //wsClient = new WebSocketChannelClient(executor, this);
-
-        RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
-          @Override
-          public void onSignalingParametersReady(
-                  final SignalingParameters params) {
-          }
-
-          @Override
-          public void onSignalingParametersError(String description) {
-            //WebSocketRTCClient.this.reportError(description);
-          }
-
-          @Override
-          public void onPeerConnected(int peerId)
-          {
-
-
-          }
-
-          @Override
-          public void onMessageFromPeer(int peerId,String message)
-          {
-            ;
-          }
-
-          public void startHangingGet(int peerId)
-          {
-            //hanging(connectionParameters,peerId);
-          }
-
-          @Override
-          public void onRemoteIceCandidate(IceCandidate candidate) {
-
-          }
-
-          public void onRemoteDescription(SessionDescription sdp){
-
-          }
-        };
-
-        new RoomParametersFetcher(answerUrl,json.toString(), callbacks).postRequest();
-
-        //wsClient.send(json.toString());
+        Log.d(TAG, "answer to " + clientId);
+        sendToPeer(clientId, json, connectionParameters.sdpHedgeDelayMs, null);
       }
     });
   }
@@ -444,99 +484,110 @@ public class WebSocketRTCClient implements AppRTCClient,
       @Override
       public void run() {
         Logout.verbose(TAG,"=====================");
-        JSONObject json = new JSONObject();
-        //jsonPut(json, "type", "candidate");
-        jsonPut(json, "sdpMLineIndex", candidate.sdpMLineIndex);
-        jsonPut(json, "sdpMid", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-        if (initiator) {
-          // Call initiator sends ice candidates to GAE server.
-          if (roomState != ConnectionState.CONNECTED) {
-            reportError("Sending ICE candidate in non connected state.");
-            return;
-          }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
-          if (connectionParameters.loopback) {
+        int batchMs = connectionParameters.iceCandidateBatchMs;
+        if (batchMs <= 0) {
+          sendIceCandidateMessage(toJsonCandidate(candidate));
+          if (initiator && connectionParameters.loopback) {
             events.onRemoteIceCandidate(candidate);
           }
-        } else {
-          sendICEMessage(MessageType.MESSAGE, messageUrl, json.toString());
-          // Call receiver sends ice candidates to websocket server.
-          //wsClient.send(json.toString());
+          return;
+        }
+        pendingCandidates.add(candidate);
+        if (pendingCandidates.size() == 1) {
+          executor.executeDelayed(new Runnable() {
+            @Override
+            public void run() {
+              flushIceCandidates();
+            }
+          }, batchMs);
         }
       }
     });
   }
 
-  // --------------------------------------------------------------------
-  // WebSocketChannelEvents interface implementation.
-  // All events are called by WebSocketChannelClient on a local looper thread
-  // (passed to WebSocket client constructor).
-  @Override
-  public void onWebSocketMessage(final String msg) {
-    Logout.verbose(TAG,"=====================");
-//    if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
-//      Log.e(TAG, "Got WebSocket message in non registered state.");
-//      return;
-//    }
-    try {
-      JSONObject json = new JSONObject(msg);
-      String msgText = json.getString("msg");
-      String errorText = json.optString("error");
-      if (msgText.length() > 0) {
-        json = new JSONObject(msgText);
-        String type = json.optString("type");
-        if (type.equals("candidate")) {
-          IceCandidate candidate = new IceCandidate(
-              json.getString("id"),
-              json.getInt("label"),
-              json.getString("candidate"));
-          events.onRemoteIceCandidate(candidate);
-        } else if (type.equals("answer")) {
-          if (initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type),
-                json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received answer for call initiator: " + msg);
-          }
-        } else if (type.equals("offer")) {
-          if (!initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type),
-                json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received offer for call receiver: " + msg);
-          }
-        } else if (type.equals("bye")) {
-          events.onChannelClose();
-        } else {
-          reportError("Unexpected WebSocket message: " + msg);
-        }
-      } else {
-        if (errorText != null && errorText.length() > 0) {
-          reportError("WebSocket error message: " + errorText);
-        } else {
-          reportError("Unexpected WebSocket message: " + msg);
-        }
+  // Sends all candidates collected during the batch window. A single
+  // candidate goes out in the plain format, so peers without batch support
+  // still understand the common case.
+  private void flushIceCandidates() {
+    if (pendingCandidates.isEmpty()) {
+      return;
+    }
+    Log.d(TAG, "Flush " + pendingCandidates.size() + " local ICE candidates.");
+    JSONObject json;
+    if (pendingCandidates.size() == 1) {
+      json = toJsonCandidate(pendingCandidates.get(0));
+    } else {
+      JSONArray jsonArray = new JSONArray();
+      for (IceCandidate candidate : pendingCandidates) {
+        jsonArray.put(toJsonCandidate(candidate));
       }
-    } catch (JSONException e) {
-      reportError("WebSocket message JSON parsing error: " + e.toString());
+      json = new JSONObject();
+      jsonPut(json, ICE_CANDIDATES, jsonArray);
     }
+    sendIceCandidateMessage(json);
+    if (initiator && connectionParameters.loopback) {
+      for (IceCandidate candidate : pendingCandidates) {
+        events.onRemoteIceCandidate(candidate);
+      }
+    }
+    pendingCandidates.clear();
+  }
+
+  private void sendIceCandidateMessage(JSONObject json) {
+    sequenceMessage(json, clientId);
+    // Call initiator sends ice candidates to GAE server.
+    if (initiator && roomState != ConnectionState.CONNECTED) {
+      reportError("Sending ICE candidate in non connected state.");
+      return;
+    }
+    Runnable onSent = null;
+    if (initiator) {
+      // As in sendPostMessage(), the initiator signs out once the server
+      // took its candidates.
+      onSent = new Runnable() {
+        @Override
+        public void run() {
+          sendLeaveMessage(MessageType.LEAVE, leaveUrl, null);
+        }
+      };
+    }
+    sendToPeer(clientId, json, 0, onSent);
+  }
+
+  // Numbers |json| in the message stream to |peerId|. The same number is
+  // used whether the message goes over the WebSocket or HTTP.
+  private void sequenceMessage(JSONObject json, int peerId) {
+    Integer last = sequenceNumbers.get(peerId);
+    int sequence = (last == null) ? 1 : last + 1;
+    sequenceNumbers.put(peerId, sequence);
+    jsonPut(json, MESSAGE_SEQUENCE, sequence);
+    jsonPut(json, MESSAGE_ID, messageIdPrefix + ":" + peerId + "-" + sequence);
+  }
+
+  // Converts a Java candidate to a JSONObject.
+  private static JSONObject toJsonCandidate(final IceCandidate candidate) {
+    JSONObject json = new JSONObject();
+    //jsonPut(json, "type", "candidate");
+    jsonPut(json, "sdpMLineIndex", candidate.sdpMLineIndex);
+    jsonPut(json, "sdpMid", candidate.sdpMid);
+    jsonPut(json, "candidate", candidate.sdp);
+    return json;
   }
 
+  // --------------------------------------------------------------------
+  // SignalingTransportEvents interface implementation.
   @Override
-  public void onWebSocketClose() {
+  public void onTransportMessage(int peerId, String message) {
     Logout.verbose(TAG,"=====================");
-    events.onChannelClose();
+    if (hangingGetFetcher != null) {
+      // Same payloads as on the hanging GET: offer, answer, candidates.
+      hangingGetFetcher.onHangGetRead(message, peerId);
+    }
   }
 
   @Override
-  public void onWebSocketError(String description) {
-    Logout.verbose(TAG,"=====================");
-    reportError("WebSocket error: " + description);
+  public void onTransportError(String description) {
+    reportError(description);
   }
 
   // --------------------------------------------------------------------
@@ -565,43 +616,6 @@ public class WebSocketRTCClient implements AppRTCClient,
     }
   }
 
-  // Send SDP or ICE candidate to a room server.
-  private void sendICEMessage(
-          final MessageType messageType, final String url, final String message) {
-    Logout.verbose(TAG,"Room ====================="+url+" "+message);
-    String logInfo = url;
-    if (message != null) {
-      logInfo += ". Message: " + message;
-    }
-    Log.d(TAG, "C->GAE: " + logInfo);
-    AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
-            "POST", url, message, new AsyncHttpEvents() {
-      @Override
-      public void onHttpError(String errorMessage) {
-        reportError("GAE POST error: " + errorMessage);
-      }
-
-      @Override
-      public void onHttpComplete(String response,int peerId) {
-        //sendLeaveMessage(MessageType.LEAVE, leaveUrl, null);
-//          if (messageType == MessageType.MESSAGE) {
-//            try {
-//              JSONObject roomJson = new JSONObject(response);
-//              String result = roomJson.getString("result");
-//              if (!result.equals("SUCCESS")) {
-//                reportError("GAE POST error: " + result);
-//              }
-//            } catch (JSONException e) {
-//              reportError("GAE POST JSON error: " + e.toString());
-//            }
-//          }
-      }
-    });
-    httpConnection.send();
-
-  }
-
-
   // Send SDP or ICE candidate to a room server.
   private void sendPostMessage(
       final MessageType messageType, final String url, final String message) {
@@ -611,7 +625,7 @@ public class WebSocketRTCClient implements AppRTCClient,
       logInfo += ". Message: " + message;
     }
     Log.d(TAG, "C->GAE: " + logInfo);
-    AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
+    RetryingHttpRequest httpConnection = new RetryingHttpRequest(
       "POST", url, message, new AsyncHttpEvents() {
         @Override
         public void onHttpError(String errorMessage) {
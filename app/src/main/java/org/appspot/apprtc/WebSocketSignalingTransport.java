@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.util.LooperExecutor;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends and receives peer messages over a WebSocket to the room server's
+ * /ws endpoint, which pushes incoming messages without a poll cycle.
+ *
+ * <p>The transport is ready only after the server acknowledged the
+ * registration of our peer id. A message the server could not deliver is
+ * passed to |fallback|. After an error or close the transport stays
+ * unready, so the client goes back to |fallback| for good.
+ */
+public class WebSocketSignalingTransport implements SignalingTransport,
+    WebSocketChannelEvents {
+  private static final String TAG = "WSSignalingTransport";
+  private static final String WEBSOCKET_PATH = "/ws";
+  private final SignalingTransport fallback;
+  private final SignalingTransportEvents events;
+  private WebSocketChannelClient wsClient;
+
+  public WebSocketSignalingTransport(LooperExecutor executor,
+      SignalingTransport fallback, SignalingTransportEvents events) {
+    this.fallback = fallback;
+    this.events = events;
+    wsClient = new WebSocketChannelClient(executor, this);
+  }
+
+  /**
+   * Returns the WebSocket URL of the room server at |roomUrl|, or null if
+   * the room URL is not http(s).
+   */
+  public static String getWebSocketUrl(String roomUrl) {
+    if (roomUrl.startsWith("https://")) {
+      return "wss://" + roomUrl.substring("https://".length()) + WEBSOCKET_PATH;
+    } else if (roomUrl.startsWith("http://")) {
+      return "ws://" + roomUrl.substring("http://".length()) + WEBSOCKET_PATH;
+    }
+    return null;
+  }
+
+  /** Opens the WebSocket at |wsUrl| and registers as peer |myId|. */
+  public void connect(String wsUrl, int myId) {
+    wsClient.connect(wsUrl);
+    wsClient.register(String.valueOf(myId));
+  }
+
+  @Override
+  public boolean isReady() {
+    return wsClient != null && wsClient.getState() == WebSocketConnectionState.REGISTERED;
+  }
+
+  @Override
+  public void send(int peerId, String message, int hedgeDelayMs, Runnable onSent) {
+    if (!isReady()) {
+      fallback.send(peerId, message, hedgeDelayMs, onSent);
+      return;
+    }
+    wsClient.send(String.valueOf(peerId), message);
+    if (onSent != null) {
+      onSent.run();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (wsClient != null) {
+      wsClient.disconnect();
+      wsClient = null;
+    }
+  }
+
+  // Drops the WebSocket after an error or close.
+  private void fallBack(String reason) {
+    if (wsClient == null) {
+      return;
+    }
+    Log.w(TAG, "WebSocket unavailable (" + reason + "), falling back to HTTP.");
+    close();
+  }
+
+  // --------------------------------------------------------------------
+  // WebSocketChannelEvents interface implementation.
+  // All events are called by WebSocketChannelClient on a local looper thread
+  // (passed to WebSocket client constructor).
+  @Override
+  public void onWebSocketMessage(final String msg) {
+    try {
+      JSONObject json = new JSONObject(msg);
+      String msgText = json.optString("msg");
+      String errorText = json.optString("error");
+      if (errorText.length() > 0) {
+        if (msgText.length() > 0 && json.has("to")) {
+          // Undelivered message, e.g. the peer's queue was full.
+          Log.w(TAG, "WebSocket send error: " + errorText + ", resending over HTTP.");
+          fallback.send(json.getInt("to"), msgText, 0, null);
+        } else {
+          fallBack("error message: " + errorText);
+        }
+      } else if (msgText.length() > 0 && json.has("from")) {
+        events.onTransportMessage(json.getInt("from"), msgText);
+      } else {
+        Log.e(TAG, "Unexpected WebSocket message: " + msg);
+      }
+    } catch (JSONException e) {
+      Log.e(TAG, "WebSocket message JSON parsing error: " + e.toString());
+    }
+  }
+
+  @Override
+  public void onWebSocketClose() {
+    fallBack("closed");
+  }
+
+  @Override
+  public void onWebSocketError(String description) {
+    fallBack(description);
+  }
+}
@@ -17,21 +17,73 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asynchronous http requests implementation.
+ *
+ * <p>All requests run on one shared, bounded thread pool, so a burst of
+ * signaling messages does not spawn a thread per message. Connections are
+ * left to the platform keep-alive pool after a successful response, so
+ * consecutive requests to the signaling host reuse the same socket.
  */
 public class AsyncHttpURLConnection {
-  private static final int HTTP_TIMEOUT_MS = 5000;
-  private static final String HTTP_ORIGIN = "http://123.57.24.8";
+  private static final int MAX_THREADS = 4;
+  private static final int MAX_QUEUED_REQUESTS = 64;
+  private static final int THREAD_KEEP_ALIVE_SEC = 30;
   private static final String TAG="AsyncHttpURLConnection";
   private final String method;
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
   private String contentType;
+  private boolean longPoll;
+  private volatile boolean timedOut;
+  private volatile boolean requestSent;
+  private volatile int responseCode;
+  private long enqueueTimeMs;
+  private long latencyMs;
+
+  private static final ThreadPoolExecutor httpExecutor;
+  // Delivers rejections, so every outcome of send() arrives asynchronously.
+  private static final ExecutorService rejectionExecutor;
+  private static final AtomicInteger inFlightCount = new AtomicInteger();
+  private static final AtomicLong completedCount = new AtomicLong();
+  private static final AtomicLong totalLatencyMs = new AtomicLong();
+  private static final AtomicLong maxLatencyMs = new AtomicLong();
+
+  static {
+    httpExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+        THREAD_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS),
+        new ThreadFactory() {
+          private final AtomicInteger threadCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AsyncHttp-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    httpExecutor.allowCoreThreadTimeOut(true);
+    rejectionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "AsyncHttp-rejected");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
 
   /**
    * Http requests callbacks.
@@ -55,33 +107,113 @@ public class AsyncHttpURLConnection {
     this.contentType = contentType;
   }
 
+  // Marks the request as a long poll: it gets a longer read timeout and is
+  // not counted in the latency statistics.
+  public void setLongPoll(boolean longPoll) {
+    this.longPoll = longPoll;
+  }
+
+  // Returns true if the request failed because of a connect or read timeout.
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+
+  // Returns true once the connection was established, from when on the
+  // server may have received the request even if no response arrives.
+  public boolean isRequestSent() {
+    return requestSent;
+  }
+
+  // Returns the HTTP status of the response, or 0 if none was received.
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  // Returns time from send() to response in ms, or 0 if not completed.
+  public long getLatencyMs() {
+    return latencyMs;
+  }
+
   public void send() {
     Logout.verbose(TAG,"=====================");
     Runnable runHttp = new Runnable() {
       public void run() {
-        sendHttpMessage();
+        inFlightCount.incrementAndGet();
+        try {
+          sendHttpMessage();
+        } finally {
+          inFlightCount.decrementAndGet();
+        }
       }
     };
-    new Thread(runHttp).start();
+    enqueueTimeMs = System.currentTimeMillis();
+    try {
+      httpExecutor.execute(runHttp);
+    } catch (RejectedExecutionException e) {
+      final String errorMessage = "HTTP " + method + " to " + url + " rejected: "
+          + httpExecutor.getQueue().size() + " requests queued";
+      // Not on the caller's thread: callers may still be inside their own
+      // state update when send() returns.
+      rejectionExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          events.onHttpError(errorMessage);
+        }
+      });
+    }
+  }
+
+  /** Number of requests waiting for a free connection thread. */
+  public static int getQueueDepth() {
+    return httpExecutor.getQueue().size();
+  }
+
+  /** Number of requests currently on the wire. */
+  public static int getInFlightCount() {
+    return inFlightCount.get();
+  }
+
+  /** Number of completed non long-poll requests. */
+  public static long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  /** Average latency in ms of completed non long-poll requests. */
+  public static long getAverageLatencyMs() {
+    long count = completedCount.get();
+    return count == 0 ? 0 : totalLatencyMs.get() / count;
+  }
+
+  /** Maximum latency in ms of completed non long-poll requests. */
+  public static long getMaxLatencyMs() {
+    return maxLatencyMs.get();
+  }
+
+  private void recordLatency() {
+    latencyMs = System.currentTimeMillis() - enqueueTimeMs;
+    Log.d(TAG, "HTTP " + method + " " + url + " done in " + latencyMs + " ms. Queued: "
+        + getQueueDepth() + ". In flight: " + getInFlightCount());
+    if (longPoll) {
+      return;
+    }
+    completedCount.incrementAndGet();
+    totalLatencyMs.addAndGet(latencyMs);
+    long max = maxLatencyMs.get();
+    while (latencyMs > max && !maxLatencyMs.compareAndSet(max, latencyMs)) {
+      max = maxLatencyMs.get();
+    }
   }
 
   private void sendHttpMessage() {
     Logout.verbose(TAG,"=====================");
+    HttpURLConnection connection = null;
     try {
       Log.v(TAG,"sendHttpMessage=====================:"+url);
-      HttpURLConnection connection =
-        (HttpURLConnection) new URL(url).openConnection();
+      connection = SignalingHttp.open(url, method, longPoll);
       byte[] postData = new byte[0];
       if (message != null) {
         postData = message.getBytes("UTF-8");
       }
-      connection.setRequestMethod(method);
-      connection.setUseCaches(false);
-      //connection.setConnectTimeout(HTTP_TIMEOUT_MS);
-      //connection.setReadTimeout(HTTP_TIMEOUT_MS);
-      // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
-      connection.addRequestProperty("origin", HTTP_ORIGIN);
-      connection.addRequestProperty("connection","keep-alive");
       connection.addRequestProperty("user-angent","android");
       boolean doOutput = false;
       if (method.equals("POST")) {
@@ -97,6 +229,9 @@ public class AsyncHttpURLConnection {
       }
 
       Log.d(TAG,connection.toString());
+      // Failures up to here never reached the server.
+      connection.connect();
+      requestSent = true;
       // Send POST request.
       if (doOutput && postData.length > 0) {
         OutputStream outStream = connection.getOutputStream();
@@ -105,7 +240,7 @@ public class AsyncHttpURLConnection {
       }
 
       // Get response.
-      int responseCode = connection.getResponseCode();
+      responseCode = connection.getResponseCode();
       if (responseCode != 200) {
         events.onHttpError("Non-200 response to " + method + " to URL: "
             + url + " : " + connection.getHeaderField(null));
@@ -113,8 +248,12 @@ public class AsyncHttpURLConnection {
         return;
       }
       InputStream responseStream = connection.getInputStream();
-      String response = drainStream(responseStream);
+      String response = ResponseBodyReader.read(
+          responseStream, connection.getContentLength());
+      // Closing the fully read stream without disconnect() hands the socket
+      // back to the keep-alive pool.
       responseStream.close();
+      recordLatency();
       String pragma=connection.getHeaderField("Pragma");
       if(!method.equals("POST")&&pragma!=null)
       {
@@ -123,19 +262,16 @@ public class AsyncHttpURLConnection {
         events.onHttpComplete(response,Integer.parseInt(pragma));
       }else
         events.onHttpComplete(response,0);
-      connection.disconnect();
     } catch (SocketTimeoutException e) {
+      timedOut = true;
+      connection.disconnect();
       events.onHttpError("HTTP " + method + " to " + url + " timeout");
     } catch (IOException e) {
+      if (connection != null) {
+        connection.disconnect();
+      }
       events.onHttpError("HTTP " + method + " to " + url + " error: "
           + e.getMessage());
     }
   }
-
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Logout.verbose(TAG,"=====================");
-    Scanner s = new Scanner(in).useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
-  }
 }
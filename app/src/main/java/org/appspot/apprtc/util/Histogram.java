@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with power of two buckets.
+ *
+ * <p>Bucket 0 counts zeros and bucket i counts values in [2^(i-1), 2^i), so
+ * percentiles are reported as the upper bound of their bucket, at most a
+ * factor of two above the real value. record() may be called from any
+ * thread; readers see a consistent enough view for monitoring.
+ */
+public class Histogram {
+  private static final int BUCKET_COUNT = 64;
+  private final String name;
+  private final String unit;
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public Histogram(String name, String unit) {
+    this.name = name;
+    this.unit = unit;
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : sum.get() / n;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the |percentile|th value,
+   * capped at the maximum recorded value. 0 if nothing was recorded.
+   */
+  public long getPercentile(double percentile) {
+    long n = 0;
+    long[] snapshot = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = buckets.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += snapshot[i];
+      if (seen >= rank && snapshot[i] > 0) {
+        long upperBound = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+        return Math.min(upperBound, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return name + ": n=" + getCount() + " mean=" + getMean() + unit
+        + " p50=" + getPercentile(50) + unit + " p95=" + getPercentile(95) + unit
+        + " p99=" + getPercentile(99) + unit + " max=" + getMax() + unit;
+  }
+}
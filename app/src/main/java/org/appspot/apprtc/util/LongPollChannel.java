@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-poll loop for the peerconnection_server hanging GET (/wait) channel.
+ *
+ * <p>A single dedicated thread issues /wait requests back to back over one
+ * keep-alive connection. As soon as a response is read the next request is
+ * issued, and the payload is handed to |dispatchExecutor| for parsing, so
+ * messages arriving while the previous one is processed are not left
+ * waiting on the server. The gap between a response and the next request
+ * is recorded as the idle gap.
+ *
+ * <p>Failed polls are retried after an exponential backoff with jitter, so
+ * a short network outage does not end the channel. Only a non-transient
+ * status or MAX_CONSECUTIVE_FAILURES failures in a row are reported.
+ */
+public class LongPollChannel {
+  private static final String TAG = "LongPollChannel";
+  private static final int MAX_CONSECUTIVE_FAILURES = 6;
+  private final String url;
+  private final Executor dispatchExecutor;
+  private final LongPollEvents events;
+  private volatile boolean running;
+  private volatile HttpURLConnection connection;
+  private Thread pollThread;
+
+  private final AtomicLong pollCount = new AtomicLong();
+  private final AtomicLong idleGapCount = new AtomicLong();
+  private final AtomicLong totalIdleGapMs = new AtomicLong();
+  private final AtomicLong maxIdleGapMs = new AtomicLong();
+  private volatile long lastIdleGapMs;
+
+  /**
+   * Long-poll callbacks, called on the dispatch executor.
+   */
+  public interface LongPollEvents {
+    public void onLongPollMessage(String response, int peerId);
+    public void onLongPollError(String errorMessage);
+  }
+
+  public LongPollChannel(String url, Executor dispatchExecutor, LongPollEvents events) {
+    Logout.verbose(TAG,"=====================");
+    this.url = url;
+    this.dispatchExecutor = dispatchExecutor;
+    this.events = events;
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    pollThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pollLoop();
+      }
+    }, TAG);
+    pollThread.setDaemon(true);
+    pollThread.start();
+  }
+
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    // Abort a request blocked in read or a backoff sleep.
+    HttpURLConnection activeConnection = connection;
+    if (activeConnection != null) {
+      activeConnection.disconnect();
+    }
+    pollThread.interrupt();
+    pollThread = null;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** Number of /wait responses received. */
+  public long getPollCount() {
+    return pollCount.get();
+  }
+
+  /** Gap in ms between the last response and the following request. */
+  public long getLastIdleGapMs() {
+    return lastIdleGapMs;
+  }
+
+  public long getAverageIdleGapMs() {
+    long count = idleGapCount.get();
+    return count == 0 ? 0 : totalIdleGapMs.get() / count;
+  }
+
+  public long getMaxIdleGapMs() {
+    return maxIdleGapMs.get();
+  }
+
+  private void pollLoop() {
+    Log.d(TAG, "Long poll started: " + url);
+    long lastResponseTimeMs = 0;
+    int failures = 0;
+    while (running) {
+      if (lastResponseTimeMs > 0) {
+        recordIdleGap(System.currentTimeMillis() - lastResponseTimeMs);
+      }
+      final String response;
+      final int peerId;
+      HttpURLConnection pollConnection = null;
+      try {
+        pollConnection = SignalingHttp.open(url, "GET", true);
+        connection = pollConnection;
+        int responseCode = pollConnection.getResponseCode();
+        if (responseCode != 200) {
+          String status = pollConnection.getHeaderField(null);
+          pollConnection.disconnect();
+          String errorMessage = "Non-200 response to long poll " + url + " : " + status;
+          if (RetryingHttpRequest.isTransient(responseCode)
+              && ++failures < MAX_CONSECUTIVE_FAILURES && backOff(failures, errorMessage)) {
+            lastResponseTimeMs = 0;
+            continue;
+          }
+          if (running) {
+            reportError(errorMessage);
+          }
+          break;
+        }
+        InputStream responseStream = pollConnection.getInputStream();
+        response = ResponseBodyReader.read(
+            responseStream, pollConnection.getContentLength());
+        // Keep the socket in the keep-alive pool for the next poll.
+        responseStream.close();
+        String pragma = pollConnection.getHeaderField("Pragma");
+        peerId = (pragma == null) ? 0 : Integer.parseInt(pragma.trim());
+      } catch (SocketTimeoutException e) {
+        // No message within the read timeout, poll again.
+        pollConnection.disconnect();
+        lastResponseTimeMs = 0;
+        continue;
+      } catch (IOException e) {
+        if (pollConnection != null) {
+          pollConnection.disconnect();
+        }
+        String errorMessage = "Long poll " + url + " error: " + e.getMessage();
+        if (++failures < MAX_CONSECUTIVE_FAILURES && backOff(failures, errorMessage)) {
+          lastResponseTimeMs = 0;
+          continue;
+        }
+        if (running) {
+          reportError(errorMessage);
+        }
+        break;
+      } catch (NumberFormatException e) {
+        reportError("Long poll " + url + " bad peer id: " + e.getMessage());
+        break;
+      } finally {
+        connection = null;
+      }
+      lastResponseTimeMs = System.currentTimeMillis();
+      failures = 0;
+      pollCount.incrementAndGet();
+      if (!running) {
+        break;
+      }
+      // The next /wait goes out on the next loop iteration, before this
+      // payload is parsed on the dispatch executor.
+      dispatchExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          events.onLongPollMessage(response, peerId);
+        }
+      });
+    }
+    running = false;
+    Log.d(TAG, "Long poll stopped after " + pollCount.get() + " responses. Idle gap avg: "
+        + getAverageIdleGapMs() + " ms, max: " + getMaxIdleGapMs() + " ms.");
+  }
+
+  // Sleeps before the next attempt. Returns false if the channel was stopped.
+  private boolean backOff(int failures, String errorMessage) {
+    if (!running) {
+      return false;
+    }
+    long delayMs = RetryingHttpRequest.getBackoffDelayMs(failures);
+    Log.w(TAG, errorMessage + ". Retrying in " + delayMs + " ms.");
+    try {
+      Thread.sleep(delayMs);
+    } catch (InterruptedException e) {
+      return false;
+    }
+    return running;
+  }
+
+  private void recordIdleGap(long idleGapMs) {
+    lastIdleGapMs = idleGapMs;
+    idleGapCount.incrementAndGet();
+    totalIdleGapMs.addAndGet(idleGapMs);
+    long max = maxIdleGapMs.get();
+    while (idleGapMs > max && !maxIdleGapMs.compareAndSet(max, idleGapMs)) {
+      max = maxIdleGapMs.get();
+    }
+  }
+
+  private void reportError(final String errorMessage) {
+    Log.e(TAG, errorMessage);
+    dispatchExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        events.onLongPollError(errorMessage);
+      }
+    });
+  }
+}
@@ -14,19 +14,156 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Looper based executor class.
+ *
+ * <p>Tasks are queued in priority lanes, see Priority, and the looper always
+ * runs the oldest task of the highest non-empty lane next, so SDP and ICE
+ * work is not stuck behind stats or data channel messages. Telemetry and
+ * bulk tasks can carry a coalescing key, which replaces a task with the
+ * same key that did not run yet. The telemetry lane is bounded: under
+ * backlog its oldest task is dropped, as a newer stats request supersedes
+ * it. Bulk tasks carry application data and are never dropped unless
+ * setLaneCapacity() bounds their lane. Tasks submitted on the looper thread
+ * itself run at once.
+ *
+ * <p>execute() and executeDelayed() take no lock once the executor runs:
+ * they are called from native WebRTC threads, which would otherwise
+ * contend on the executor monitor before posting. Every posted task
+ * records its queue latency (from when it was due until it ran), its run
+ * time and the queue depth it found, see getQueueLatencyHistogram(),
+ * getRunTimeHistogram() and getQueueDepthHistogram().
  */
 public class LooperExecutor extends Thread implements Executor {
   private static final String TAG = "LooperExecutor";
+  private static final int DEFAULT_TELEMETRY_CAPACITY = 8;
   // Object used to signal that looper thread has started and Handler instance
   // associated with looper thread has been allocated.
   private final Object looperStartedEvent = new Object();
-  private Handler handler = null;
-  private boolean running = false;
-  private long threadId;
+  // Written under the executor lock, read without it on submit.
+  private volatile Handler handler = null;
+  private volatile boolean running = false;
+  private volatile long threadId;
+  private final Lane[] lanes = new Lane[Priority.values().length];
+  // Queued tasks by coalescing key.
+  private final ConcurrentHashMap<String, Task> coalescingTasks =
+      new ConcurrentHashMap<String, Task>();
+  // Set while a pump message is posted to the handler.
+  private final AtomicBoolean pumpPosted = new AtomicBoolean();
+  // Tasks queued and not yet run, dropped or replaced.
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final Histogram queueLatencyHistogram = new Histogram("queue latency", "us");
+  private final Histogram runTimeHistogram = new Histogram("run time", "us");
+  private final Histogram queueDepthHistogram = new Histogram("queue depth", "");
+
+  /**
+   * Task priority classes, highest first.
+   */
+  public enum Priority {
+    // Signaling and ICE: SDP, candidates, connection state, call lifetime.
+    CONTROL,
+    // Capture and track control: camera, video source, remote streams.
+    MEDIA,
+    // Stats and HUD work.
+    TELEMETRY,
+    // Data channel messages and other bulk data. Unbounded by default.
+    BULK
+  }
+
+  /**
+   * Queue of one priority class.
+   */
+  private static class Lane {
+    final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+    // Entries in |tasks|, including replaced ones not polled yet.
+    final AtomicInteger size = new AtomicInteger();
+    final AtomicLong droppedCount = new AtomicLong();
+    final AtomicLong coalescedCount = new AtomicLong();
+    final Histogram queueLatencyHistogram;
+    // Tasks beyond this are dropped oldest first, 0 for no limit.
+    volatile int capacity;
+
+    Lane(Priority priority, int capacity) {
+      this.queueLatencyHistogram = new Histogram(
+          priority.name().toLowerCase() + " queue latency", "us");
+      this.capacity = capacity;
+    }
+  }
+
+  /**
+   * Queued task. Exactly one of running it, dropping it or replacing it
+   * claims it.
+   */
+  private class Task extends AtomicBoolean implements Runnable {
+    private final Runnable runnable;
+    private final Lane lane;
+    private final String coalescingKey;
+    private final long queuedTimeNs = System.nanoTime();
+
+    Task(Runnable runnable, Lane lane, String coalescingKey) {
+      this.runnable = runnable;
+      this.lane = lane;
+      this.coalescingKey = coalescingKey;
+    }
+
+    boolean claim() {
+      if (!compareAndSet(false, true)) {
+        return false;
+      }
+      queueDepth.decrementAndGet();
+      if (coalescingKey != null) {
+        coalescingTasks.remove(coalescingKey, this);
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      long startTimeNs = System.nanoTime();
+      long latencyUs = (startTimeNs - queuedTimeNs) / 1000;
+      queueLatencyHistogram.record(latencyUs);
+      lane.queueLatencyHistogram.record(latencyUs);
+      try {
+        runnable.run();
+      } finally {
+        runTimeHistogram.record((System.nanoTime() - startTimeNs) / 1000);
+      }
+    }
+  }
+
+  // Runs the next task, one per handler message, so each pick sees the
+  // tasks queued in the meantime.
+  private final Runnable pump = new Runnable() {
+    @Override
+    public void run() {
+      pumpPosted.set(false);
+      Task task = pollNextTask();
+      if (queueDepth.get() > 0) {
+        schedulePump(handler);
+      }
+      if (task != null) {
+        task.run();
+      }
+    }
+  };
+
+  public LooperExecutor() {
+    for (Priority priority : Priority.values()) {
+      int capacity = 0;
+      if (priority == Priority.TELEMETRY) {
+        capacity = DEFAULT_TELEMETRY_CAPACITY;
+      }
+      lanes[priority.ordinal()] = new Lane(priority, capacity);
+    }
+  }
 
   @Override
   public void run() {
@@ -79,17 +216,174 @@ public class LooperExecutor extends Thread implements Executor {
     return (Thread.currentThread().getId() == threadId);
   }
 
+  // Runs |runnable| as a CONTROL task.
   @Override
-  public synchronized void execute(final Runnable runnable) {
-    if (!running) {
+  public void execute(final Runnable runnable) {
+    execute(Priority.CONTROL, null, runnable);
+  }
+
+  public void execute(Priority priority, final Runnable runnable) {
+    execute(priority, null, runnable);
+  }
+
+  // Queues |runnable| in the |priority| lane. A task queued earlier with the
+  // same non-null |coalescingKey| that did not run yet is dropped.
+  public void execute(Priority priority, String coalescingKey, final Runnable runnable) {
+    Handler currentHandler = getHandler();
+    if (!running || currentHandler == null) {
       Log.w(TAG, "Running looper executor without calling requestStart()");
       return;
     }
     if (Thread.currentThread().getId() == threadId) {
       runnable.run();
-    } else {
-      handler.post(runnable);
+      return;
+    }
+    enqueue(currentHandler, priority, coalescingKey, runnable);
+  }
+
+  // Queues |runnable| as a CONTROL task after |delayMs| milliseconds.
+  public void executeDelayed(final Runnable runnable, long delayMs) {
+    executeDelayed(Priority.CONTROL, null, runnable, delayMs);
+  }
+
+  // Queues |runnable| in the |priority| lane after |delayMs| milliseconds,
+  // coalesced by |coalescingKey| as in execute(). Unlike execute(), this
+  // queues the task even when called on the looper thread.
+  public void executeDelayed(final Priority priority, final String coalescingKey,
+      final Runnable runnable, long delayMs) {
+    final Handler currentHandler = getHandler();
+    if (!running || currentHandler == null) {
+      Log.w(TAG, "Running looper executor without calling requestStart()");
+      return;
+    }
+    // Delayed tasks enter their lane, and the queue statistics, when due.
+    currentHandler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        enqueue(currentHandler, priority, coalescingKey, runnable);
+      }
+    }, delayMs);
+  }
+
+  // Limits the |priority| lane to |capacity| queued tasks, 0 for no limit.
+  public void setLaneCapacity(Priority priority, int capacity) {
+    lanes[priority.ordinal()].capacity = Math.max(0, capacity);
+  }
+
+  private void enqueue(
+      Handler currentHandler, Priority priority, String coalescingKey, Runnable runnable) {
+    Lane lane = lanes[priority.ordinal()];
+    Task task = new Task(runnable, lane, coalescingKey);
+    queueDepthHistogram.record(queueDepth.getAndIncrement());
+    if (coalescingKey != null) {
+      Task replaced = coalescingTasks.put(coalescingKey, task);
+      if (replaced != null && replaced.claim()) {
+        replaced.lane.coalescedCount.incrementAndGet();
+      }
+    }
+    lane.tasks.add(task);
+    int capacity = lane.capacity;
+    if (lane.size.incrementAndGet() > capacity && capacity > 0) {
+      dropOldest(lane, capacity);
+    }
+    schedulePump(currentHandler);
+  }
+
+  private void dropOldest(Lane lane, int capacity) {
+    while (lane.size.get() > capacity) {
+      Task oldest = lane.tasks.poll();
+      if (oldest == null) {
+        return;
+      }
+      lane.size.decrementAndGet();
+      if (oldest.claim() && lane.droppedCount.incrementAndGet() % 100 == 1) {
+        Log.w(TAG, "Lane full, " + lane.droppedCount.get() + " tasks dropped so far.");
+      }
+    }
+  }
+
+  // Takes the oldest live task of the highest non-empty lane.
+  private Task pollNextTask() {
+    for (Lane lane : lanes) {
+      Task task;
+      while ((task = lane.tasks.poll()) != null) {
+        lane.size.decrementAndGet();
+        if (task.claim()) {
+          return task;
+        }
+      }
+    }
+    return null;
+  }
+
+  private void schedulePump(Handler currentHandler) {
+    if (currentHandler != null && pumpPosted.compareAndSet(false, true)
+        && !currentHandler.post(pump)) {
+      // The looper quit in the meantime, as after requestStop().
+      pumpPosted.set(false);
+    }
+  }
+
+  private Handler getHandler() {
+    Handler currentHandler = handler;
+    if (currentHandler == null) {
+      // Only taken while requestStart() waits for the looper thread.
+      synchronized (this) {
+        currentHandler = handler;
+      }
+    }
+    return currentHandler;
+  }
+
+  // Number of tasks queued and not yet run.
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  // Time from when a task was due until it started, in microseconds.
+  public Histogram getQueueLatencyHistogram() {
+    return queueLatencyHistogram;
+  }
+
+  // As getQueueLatencyHistogram(), for the tasks of one lane.
+  public Histogram getQueueLatencyHistogram(Priority priority) {
+    return lanes[priority.ordinal()].queueLatencyHistogram;
+  }
+
+  // Run time of queued tasks, in microseconds.
+  public Histogram getRunTimeHistogram() {
+    return runTimeHistogram;
+  }
+
+  // Tasks already waiting when another one was queued.
+  public Histogram getQueueDepthHistogram() {
+    return queueDepthHistogram;
+  }
+
+  // Tasks of the |priority| lane dropped because the lane was full.
+  public long getDroppedCount(Priority priority) {
+    return lanes[priority.ordinal()].droppedCount.get();
+  }
+
+  // Tasks of the |priority| lane replaced by a newer one with the same key.
+  public long getCoalescedCount(Priority priority) {
+    return lanes[priority.ordinal()].coalescedCount.get();
+  }
+
+  // Summary of the histograms and lane counters, for logging.
+  public String getStatsString() {
+    StringBuilder stats = new StringBuilder();
+    stats.append(queueLatencyHistogram).append("; ").append(runTimeHistogram)
+        .append("; ").append(queueDepthHistogram);
+    for (Priority priority : Priority.values()) {
+      Lane lane = lanes[priority.ordinal()];
+      stats.append("; ").append(lane.queueLatencyHistogram);
+      if (lane.droppedCount.get() > 0 || lane.coalescedCount.get() > 0) {
+        stats.append(" dropped=").append(lane.droppedCount.get())
+            .append(" coalesced=").append(lane.coalescedCount.get());
+      }
     }
+    return stats.toString();
   }
 
 }
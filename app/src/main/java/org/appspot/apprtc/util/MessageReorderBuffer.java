@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Restores the send order of sequenced signaling messages.
+ *
+ * <p>Every sender stream numbers its messages from 1. Messages arriving
+ * ahead of a gap are held back until the gap is filled, and duplicates of
+ * already seen numbers are dropped. A gap that is not filled within
+ * |maxGapMs|, or while more than |maxBuffered| messages wait behind it, is
+ * skipped, so a lost message cannot stall the stream forever. Gaps are
+ * checked whenever a message is added; a caller that may not receive
+ * another one calls flushExpired() at getGapDeadlineMs().
+ */
+public class MessageReorderBuffer {
+  private static final String TAG = "MessageReorderBuffer";
+  private final int maxBuffered;
+  private final long maxGapMs;
+  private final Map<String, Stream> streams = new HashMap<String, Stream>();
+
+  private static class Stream {
+    final TreeMap<Integer, String> pending = new TreeMap<Integer, String>();
+    int nextSequence = 1;
+    long gapStartMs;
+  }
+
+  public MessageReorderBuffer(int maxBuffered, long maxGapMs) {
+    this.maxBuffered = maxBuffered;
+    this.maxGapMs = maxGapMs;
+  }
+
+  /**
+   * Adds message |sequence| of |streamId| and returns the messages that are
+   * now in order, oldest first. The list is empty if |message| is a
+   * duplicate or waits behind a gap.
+   */
+  public synchronized List<String> add(String streamId, int sequence, String message) {
+    List<String> ready = new ArrayList<String>();
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      stream = new Stream();
+      streams.put(streamId, stream);
+    }
+    if (sequence < stream.nextSequence || stream.pending.containsKey(sequence)) {
+      Log.d(TAG, "Dropping duplicate message " + streamId + "-" + sequence);
+      return ready;
+    }
+    stream.pending.put(sequence, message);
+    drain(streamId, stream, ready);
+    return ready;
+  }
+
+  /**
+   * Skips the gap of |streamId| if it expired, and returns the messages that
+   * are now in order, oldest first.
+   */
+  public synchronized List<String> flushExpired(String streamId) {
+    List<String> ready = new ArrayList<String>();
+    Stream stream = streams.get(streamId);
+    if (stream != null && !stream.pending.isEmpty()) {
+      drain(streamId, stream, ready);
+    }
+    return ready;
+  }
+
+  /**
+   * Returns the time at which the current gap of |streamId| expires, or 0 if
+   * no messages wait behind a gap.
+   */
+  public synchronized long getGapDeadlineMs(String streamId) {
+    Stream stream = streams.get(streamId);
+    if (stream == null || stream.gapStartMs == 0) {
+      return 0;
+    }
+    return stream.gapStartMs + maxGapMs;
+  }
+
+  // Moves the messages of |stream| that are in order to |ready|, skipping
+  // the gap in front of them if it expired. Stream must not be empty.
+  private void drain(String streamId, Stream stream, List<String> ready) {
+    long nowMs = System.currentTimeMillis();
+    int first = stream.pending.firstKey();
+    if (first != stream.nextSequence && stream.gapStartMs > 0
+        && (stream.pending.size() > maxBuffered || nowMs - stream.gapStartMs >= maxGapMs)) {
+      Log.w(TAG, "Skipping messages " + stream.nextSequence + " to " + (first - 1)
+          + " of " + streamId);
+      stream.nextSequence = first;
+    }
+    while (!stream.pending.isEmpty() && stream.pending.firstKey() == stream.nextSequence) {
+      ready.add(stream.pending.remove(stream.nextSequence));
+      stream.nextSequence++;
+    }
+    if (stream.pending.isEmpty()) {
+      stream.gapStartMs = 0;
+    } else if (stream.gapStartMs == 0 || !ready.isEmpty()) {
+      stream.gapStartMs = nowMs;
+    }
+  }
+
+  public synchronized void clear() {
+    streams.clear();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Send queue for the messages to one signaling destination.
+ *
+ * <p>Messages are posted in the order they were queued, with up to
+ * |maxInFlight| requests on the wire at once over the keep-alive pool.
+ * Parallel requests may still reach the server out of order, so callers
+ * number their messages and the receiver restores the order, see
+ * MessageReorderBuffer. Each request is retried by RetryingHttpRequest; a
+ * message that still fails is reported and the queue moves on.
+ */
+public class OrderedSendQueue {
+  private static final String TAG = "OrderedSendQueue";
+  public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+  private final String url;
+  private final int maxInFlight;
+  private final SendQueueEvents events;
+  // Guarded by this.
+  private final LinkedList<PendingMessage> queue = new LinkedList<PendingMessage>();
+  private int inFlight;
+  private boolean closed;
+
+  /**
+   * Send queue callbacks, called on an http thread.
+   */
+  public interface SendQueueEvents {
+    public void onSendError(String errorMessage);
+  }
+
+  private static class PendingMessage {
+    final String message;
+    final int hedgeDelayMs;
+    final Runnable onSent;
+
+    PendingMessage(String message, int hedgeDelayMs, Runnable onSent) {
+      this.message = message;
+      this.hedgeDelayMs = hedgeDelayMs;
+      this.onSent = onSent;
+    }
+  }
+
+  public OrderedSendQueue(String url, int maxInFlight, SendQueueEvents events) {
+    this.url = url;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.events = events;
+  }
+
+  // Queues |message| for posting. |hedgeDelayMs| is passed on to
+  // RetryingHttpRequest.setHedgeDelayMs().
+  public void send(String message, int hedgeDelayMs) {
+    send(message, hedgeDelayMs, null);
+  }
+
+  // As send(), and runs |onSent| on an http thread once the server accepted
+  // the message.
+  public void send(String message, int hedgeDelayMs, Runnable onSent) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      queue.add(new PendingMessage(message, hedgeDelayMs, onSent));
+    }
+    pump();
+  }
+
+  // Number of messages queued or on the wire.
+  public synchronized int getPendingCount() {
+    return queue.size() + inFlight;
+  }
+
+  // Drops queued messages. Requests already on the wire complete silently.
+  public synchronized void close() {
+    closed = true;
+    queue.clear();
+  }
+
+  private void pump() {
+    List<RetryingHttpRequest> requests = new ArrayList<RetryingHttpRequest>();
+    synchronized (this) {
+      while (!closed && inFlight < maxInFlight && !queue.isEmpty()) {
+        final PendingMessage pending = queue.poll();
+        RetryingHttpRequest request = new RetryingHttpRequest(
+            "POST", url, pending.message, new AsyncHttpEvents() {
+              @Override
+              public void onHttpError(String errorMessage) {
+                onRequestDone(errorMessage);
+              }
+
+              @Override
+              public void onHttpComplete(String response, int peerId) {
+                if (pending.onSent != null) {
+                  pending.onSent.run();
+                }
+                onRequestDone(null);
+              }
+            });
+        request.setHedgeDelayMs(pending.hedgeDelayMs);
+        requests.add(request);
+        inFlight++;
+      }
+    }
+    // Sent outside the lock, so no HTTP work is done while holding it.
+    for (RetryingHttpRequest request : requests) {
+      request.send();
+    }
+  }
+
+  private void onRequestDone(String errorMessage) {
+    boolean report;
+    synchronized (this) {
+      inFlight--;
+      report = !closed && errorMessage != null;
+    }
+    if (report) {
+      Log.e(TAG, "Message to " + url + " lost: " + errorMessage);
+      events.onSendError(errorMessage);
+    }
+    pump();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streaming reader for HTTP response bodies.
+ *
+ * <p>Bytes are read into pooled buffers and decoded as UTF-8 chunk by chunk,
+ * so a multi-byte sequence split across reads is carried over to the next
+ * chunk. The result is built in one StringBuilder presized from the
+ * Content-Length, without the regex scan and intermediate copies of
+ * Scanner("\\A").
+ */
+public class ResponseBodyReader {
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_POOLED_BUFFERS = 8;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final ConcurrentLinkedQueue<ByteBuffer> bytePool =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+  private static final ConcurrentLinkedQueue<CharBuffer> charPool =
+      new ConcurrentLinkedQueue<CharBuffer>();
+  private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+  // Decoders are stateful and not thread safe, so keep one per thread.
+  private static final ThreadLocal<CharsetDecoder> decoder =
+      new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+          return UTF_8.newDecoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+      };
+
+  private ResponseBodyReader() {
+  }
+
+  /**
+   * Reads |in| to the end and returns it decoded as UTF-8. |lengthHint| is
+   * the expected body length in bytes, or -1 if unknown. Does not close |in|.
+   */
+  public static String read(InputStream in, int lengthHint) throws IOException {
+    ByteBuffer bytes = acquireByteBuffer();
+    CharBuffer chars = acquireCharBuffer();
+    CharsetDecoder utf8Decoder = decoder.get();
+    utf8Decoder.reset();
+    StringBuilder body = new StringBuilder(lengthHint > 0 ? lengthHint : 256);
+    try {
+      byte[] array = bytes.array();
+      int read;
+      while ((read = in.read(array, bytes.position(), bytes.remaining())) != -1) {
+        bytes.position(bytes.position() + read);
+        bytes.flip();
+        decode(utf8Decoder, bytes, chars, body, false);
+        // Keeps an incomplete trailing sequence for the next read.
+        bytes.compact();
+      }
+      bytes.flip();
+      decode(utf8Decoder, bytes, chars, body, true);
+      CoderResult result;
+      do {
+        result = utf8Decoder.flush(chars);
+        drain(chars, body);
+      } while (result.isOverflow());
+    } finally {
+      releaseByteBuffer(bytes);
+      releaseCharBuffer(chars);
+    }
+    return body.toString();
+  }
+
+  private static void decode(CharsetDecoder utf8Decoder, ByteBuffer bytes,
+      CharBuffer chars, StringBuilder body, boolean endOfInput) {
+    CoderResult result;
+    do {
+      result = utf8Decoder.decode(bytes, chars, endOfInput);
+      drain(chars, body);
+    } while (result.isOverflow());
+  }
+
+  private static void drain(CharBuffer chars, StringBuilder body) {
+    chars.flip();
+    body.append(chars);
+    chars.clear();
+  }
+
+  private static ByteBuffer acquireByteBuffer() {
+    ByteBuffer buffer = bytePool.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+    pooledBuffers.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  private static CharBuffer acquireCharBuffer() {
+    CharBuffer buffer = charPool.poll();
+    if (buffer == null) {
+      return CharBuffer.allocate(BUFFER_SIZE);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  private static void releaseByteBuffer(ByteBuffer buffer) {
+    if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+      bytePool.offer(buffer);
+    } else {
+      pooledBuffers.decrementAndGet();
+    }
+  }
+
+  private static void releaseCharBuffer(CharBuffer buffer) {
+    // Char buffers travel with byte buffers, so the pool stays as bounded.
+    if (charPool.size() < MAX_POOLED_BUFFERS) {
+      charPool.offer(buffer);
+    }
+  }
+}
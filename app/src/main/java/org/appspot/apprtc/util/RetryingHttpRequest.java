@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signaling request with bounded retries and optional hedging.
+ *
+ * <p>An attempt that fails without a response, or with a gateway or
+ * throttling status, is sent again after an exponential backoff with
+ * jitter, up to |maxAttempts| attempts in total. With a hedge delay set, a
+ * duplicate attempt is sent if the first one has not completed within the
+ * delay; the first successful response wins and later ones are dropped.
+ * Every attempt sends the same body, so messages carrying an id can be
+ * deduplicated by the receiver. A request that must not be repeated, like
+ * sign_in, is marked non-idempotent: it is only retried if the failed
+ * attempt never reached the server, and is not hedged.
+ */
+public class RetryingHttpRequest {
+  private static final String TAG = "RetryingHttpRequest";
+  private static final int DEFAULT_MAX_ATTEMPTS = 4;
+  private static final int BACKOFF_BASE_MS = 100;
+  private static final int BACKOFF_MAX_MS = 3000;
+  private static final Random random = new Random();
+  private static final ScheduledThreadPoolExecutor scheduler;
+
+  private final String method;
+  private final String url;
+  private final String message;
+  private final AsyncHttpEvents events;
+  private String contentType;
+  private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  private int hedgeDelayMs;
+  private boolean idempotent = true;
+  // Guarded by this.
+  private int attempts;
+  private int inFlight;
+  private boolean hedged;
+  private boolean done;
+
+  static {
+    scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public RetryingHttpRequest(String method, String url, String message,
+      AsyncHttpEvents events) {
+    this.method = method;
+    this.url = url;
+    this.message = message;
+    this.events = events;
+  }
+
+  public void setContentType(String contentType) {
+    this.contentType = contentType;
+  }
+
+  // Total number of attempts, including the first one and any hedge.
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  // Sends a duplicate if no response arrived within |hedgeDelayMs|. 0, the
+  // default, disables hedging.
+  public void setHedgeDelayMs(int hedgeDelayMs) {
+    this.hedgeDelayMs = hedgeDelayMs;
+  }
+
+  // Marks whether the server may process the request more than once. True,
+  // the default, allows retries after the request was sent, and hedging.
+  public void setIdempotent(boolean idempotent) {
+    this.idempotent = idempotent;
+  }
+
+  public void send() {
+    int number;
+    synchronized (this) {
+      number = reserveAttempt();
+    }
+    startAttempt(number);
+    if (hedgeDelayMs > 0 && idempotent) {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          hedge();
+        }
+      }, hedgeDelayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns the delay before retrying after |failures| consecutive
+   * failures: exponential from BACKOFF_BASE_MS, capped at BACKOFF_MAX_MS,
+   * with the upper half randomized so clients do not retry in lockstep.
+   */
+  public static long getBackoffDelayMs(int failures) {
+    int shift = Math.min(Math.max(failures - 1, 0), 16);
+    long cap = Math.min((long) BACKOFF_MAX_MS, (long) BACKOFF_BASE_MS << shift);
+    synchronized (random) {
+      return cap / 2 + random.nextInt((int) (cap / 2) + 1);
+    }
+  }
+
+  /**
+   * Returns true if a request that got |responseCode| may succeed when sent
+   * again. 0 means no response was received at all.
+   */
+  public static boolean isTransient(int responseCode) {
+    return responseCode == 0 || responseCode == 408 || responseCode == 429
+        || responseCode >= 502;
+  }
+
+  // Counts a new attempt, so the check against |maxAttempts| and the
+  // increment happen under the same lock. Returns the attempt number, or 0
+  // if no attempt may be started. Must be called with this held.
+  private int reserveAttempt() {
+    if (done || attempts >= maxAttempts) {
+      return 0;
+    }
+    inFlight++;
+    return ++attempts;
+  }
+
+  private void startAttempt(int number) {
+    if (number == 0) {
+      return;
+    }
+    synchronized (this) {
+      if (done) {
+        inFlight--;
+        return;
+      }
+    }
+    Attempt attempt = new Attempt(number);
+    attempt.connection = new AsyncHttpURLConnection(method, url, message, attempt);
+    if (contentType != null) {
+      attempt.connection.setContentType(contentType);
+    }
+    attempt.connection.send();
+  }
+
+  private void hedge() {
+    int number;
+    synchronized (this) {
+      if (hedged) {
+        return;
+      }
+      number = reserveAttempt();
+      if (number == 0) {
+        return;
+      }
+      hedged = true;
+    }
+    Log.d(TAG, "No response to " + method + " " + url + " in " + hedgeDelayMs
+        + " ms, sending hedged request.");
+    startAttempt(number);
+  }
+
+  private void onAttemptComplete(String response, int peerId) {
+    synchronized (this) {
+      inFlight--;
+      if (done) {
+        return;
+      }
+      done = true;
+    }
+    events.onHttpComplete(response, peerId);
+  }
+
+  private void onAttemptFailed(Attempt attempt, String errorMessage) {
+    int responseCode = attempt.connection == null ? 0 : attempt.connection.getResponseCode();
+    boolean sent = attempt.connection != null && attempt.connection.isRequestSent();
+    int number = 0;
+    synchronized (this) {
+      inFlight--;
+      if (done) {
+        return;
+      }
+      if (isTransient(responseCode) && (idempotent || !sent)) {
+        number = reserveAttempt();
+      }
+      if (number == 0) {
+        if (inFlight > 0) {
+          // A hedged attempt is still on the wire and may yet succeed.
+          return;
+        }
+        done = true;
+      }
+    }
+    if (number == 0) {
+      events.onHttpError(errorMessage);
+      return;
+    }
+    final int retryNumber = number;
+    long retryDelayMs = getBackoffDelayMs(attempt.number);
+    Log.w(TAG, errorMessage + ". Attempt " + attempt.number + " of " + maxAttempts
+        + ", retrying in " + retryDelayMs + " ms.");
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        startAttempt(retryNumber);
+      }
+    }, retryDelayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private class Attempt implements AsyncHttpEvents {
+    private final int number;
+    private AsyncHttpURLConnection connection;
+
+    Attempt(int number) {
+      this.number = number;
+    }
+
+    @Override
+    public void onHttpError(String errorMessage) {
+      onAttemptFailed(this, errorMessage);
+    }
+
+    @Override
+    public void onHttpComplete(String response, int peerId) {
+      onAttemptComplete(response, peerId);
+    }
+  }
+}
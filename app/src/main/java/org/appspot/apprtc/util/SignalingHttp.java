@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Connection setup shared by all HTTP requests to the signaling server.
+ *
+ * <p>Every request carries the same origin and asks for keep-alive, so
+ * AsyncHttpURLConnection, LongPollChannel and SignalingWarmup share the
+ * platform connection pool. Long polls get a read timeout longer than the
+ * time the server holds /wait open.
+ */
+public class SignalingHttp {
+  public static final int CONNECT_TIMEOUT_MS = 5000;
+  public static final int READ_TIMEOUT_MS = 5000;
+  // The server holds /wait open until a message is available.
+  public static final int LONG_POLL_READ_TIMEOUT_MS = 60000;
+  // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
+  private static final String ORIGIN = "http://123.57.24.8";
+
+  private SignalingHttp() {
+  }
+
+  /**
+   * Opens a connection to |url| for |method| with the signaling headers and
+   * timeouts. Nothing is sent until the caller connects.
+   */
+  public static HttpURLConnection open(String url, String method, boolean longPoll)
+      throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod(method);
+    connection.setUseCaches(false);
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    connection.setReadTimeout(longPoll ? LONG_POLL_READ_TIMEOUT_MS : READ_TIMEOUT_MS);
+    connection.addRequestProperty("origin", ORIGIN);
+    connection.addRequestProperty("connection", "keep-alive");
+    return connection;
+  }
+}
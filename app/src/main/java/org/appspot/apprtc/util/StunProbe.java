@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the round trip time to STUN and TURN servers.
+ *
+ * <p>A STUN binding request (RFC 5389) is sent to every target at once from
+ * one UDP socket. Requests without an answer are retransmitted every
+ * RETRANSMIT_MS, each with a new transaction id, so a late answer to an old
+ * request is not mistaken for a fast one. TURN servers answer binding
+ * requests too, so relays are measured the same way.
+ */
+public class StunProbe {
+  private static final String TAG = "StunProbe";
+  public static final long UNREACHABLE = -1;
+  private static final int BINDING_REQUEST = 0x0001;
+  private static final int BINDING_SUCCESS = 0x0101;
+  private static final int BINDING_ERROR = 0x0111;
+  private static final int MAGIC_COOKIE = 0x2112A442;
+  private static final int HEADER_SIZE = 20;
+  private static final int TRANSACTION_ID_SIZE = 12;
+  private static final int RETRANSMIT_MS = 250;
+  private static final int MAX_PACKET_SIZE = 1500;
+  private static final Random random = new Random();
+
+  /**
+   * Probes |targets| for up to |timeoutMs| and returns their RTTs in ms, in
+   * the order of |targets|. UNREACHABLE marks targets that could not be
+   * resolved or did not answer in time. Blocks the calling thread.
+   */
+  public static long[] probe(List<InetSocketAddress> targets, int timeoutMs)
+      throws IOException {
+    long[] rttMs = new long[targets.size()];
+    Arrays.fill(rttMs, UNREACHABLE);
+    InetSocketAddress[] addresses = new InetSocketAddress[targets.size()];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = resolve(targets.get(i));
+    }
+
+    DatagramSocket socket = new DatagramSocket();
+    try {
+      // Transaction id to target index and send time, for every request sent.
+      Map<String, Integer> pendingTargets = new HashMap<String, Integer>();
+      Map<String, Long> sendTimesNs = new HashMap<String, Long>();
+      byte[] receiveBuffer = new byte[MAX_PACKET_SIZE];
+      long startNs = System.nanoTime();
+      long deadlineNs = startNs + timeoutMs * 1000000L;
+      long nextSendNs = startNs;
+      int remaining = 0;
+      for (InetSocketAddress address : addresses) {
+        if (address != null) {
+          remaining++;
+        }
+      }
+
+      while (remaining > 0) {
+        long nowNs = System.nanoTime();
+        if (nowNs >= deadlineNs) {
+          break;
+        }
+        if (nowNs >= nextSendNs) {
+          for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] == null || rttMs[i] != UNREACHABLE) {
+              continue;
+            }
+            byte[] transactionId = new byte[TRANSACTION_ID_SIZE];
+            random.nextBytes(transactionId);
+            byte[] request = createBindingRequest(transactionId);
+            String key = toKey(transactionId);
+            pendingTargets.put(key, i);
+            sendTimesNs.put(key, System.nanoTime());
+            try {
+              socket.send(new DatagramPacket(request, request.length, addresses[i]));
+            } catch (IOException e) {
+              Log.w(TAG, "Binding request to " + addresses[i] + " failed: " + e.getMessage());
+            }
+          }
+          nextSendNs = nowNs + RETRANSMIT_MS * 1000000L;
+        }
+
+        long waitNs = Math.min(deadlineNs, nextSendNs) - System.nanoTime();
+        socket.setSoTimeout((int) Math.max(1, waitNs / 1000000L));
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        try {
+          socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+          continue;
+        }
+        long receivedNs = System.nanoTime();
+        String key = getResponseTransaction(packet.getData(), packet.getLength());
+        Integer index = key == null ? null : pendingTargets.get(key);
+        if (index == null || rttMs[index] != UNREACHABLE) {
+          continue;
+        }
+        rttMs[index] = Math.max(0, (receivedNs - sendTimesNs.get(key)) / 1000000L);
+        remaining--;
+      }
+    } finally {
+      socket.close();
+    }
+    return rttMs;
+  }
+
+  private static byte[] createBindingRequest(byte[] transactionId) {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+    buffer.putShort((short) BINDING_REQUEST);
+    buffer.putShort((short) 0);
+    buffer.putInt(MAGIC_COOKIE);
+    buffer.put(transactionId);
+    return buffer.array();
+  }
+
+  // Returns the transaction of a binding response, or null if |data| is not
+  // one. Error responses count too: they took a full round trip.
+  private static String getResponseTransaction(byte[] data, int length) {
+    if (length < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+    int type = buffer.getShort() & 0xffff;
+    buffer.getShort();
+    if ((type != BINDING_SUCCESS && type != BINDING_ERROR)
+        || buffer.getInt() != MAGIC_COOKIE) {
+      return null;
+    }
+    byte[] transactionId = new byte[TRANSACTION_ID_SIZE];
+    buffer.get(transactionId);
+    return toKey(transactionId);
+  }
+
+  private static InetSocketAddress resolve(InetSocketAddress target) {
+    if (!target.isUnresolved()) {
+      return target;
+    }
+    try {
+      return new InetSocketAddress(InetAddress.getByName(target.getHostName()), target.getPort());
+    } catch (IOException e) {
+      Log.w(TAG, "Could not resolve " + target.getHostName() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static String toKey(byte[] transactionId) {
+    return Arrays.toString(transactionId);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.appspot.apprtc.server.StunServer;
+import org.appspot.apprtc.util.StunProbe;
+import org.junit.After;
+import org.junit.Test;
+import org.webrtc.PeerConnection;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests StunProbe and IceServerRanker against local StunServer instances.
+ */
+public class IceServerRankerTest {
+  private static final int PROBE_TIMEOUT_MS = 1500;
+  private final List<StunServer> servers = new ArrayList<StunServer>();
+
+  @After
+  public void tearDown() {
+    for (StunServer server : servers) {
+      server.stop();
+    }
+  }
+
+  private String startStunServer(int responseDelayMs) throws Exception {
+    StunServer server = new StunServer(new InetSocketAddress("127.0.0.1", 0));
+    server.setResponseDelayMs(responseDelayMs);
+    server.start();
+    servers.add(server);
+    return "stun:127.0.0.1:" + server.getPort();
+  }
+
+  // Probes |iceServers| like IceServerRanker does and returns the RTTs by
+  // probe target.
+  private static Map<String, Long> probe(List<PeerConnection.IceServer> iceServers)
+      throws Exception {
+    List<String> targets = new ArrayList<String>();
+    List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+    for (PeerConnection.IceServer iceServer : iceServers) {
+      String target = IceServerRanker.getProbeTarget(iceServer.uri);
+      int portStart = target.lastIndexOf(':');
+      targets.add(target);
+      addresses.add(InetSocketAddress.createUnresolved(target.substring(0, portStart),
+          Integer.parseInt(target.substring(portStart + 1))));
+    }
+    long[] rtts = StunProbe.probe(addresses, PROBE_TIMEOUT_MS);
+    Map<String, Long> rttMs = new HashMap<String, Long>();
+    for (int i = 0; i < targets.size(); i++) {
+      rttMs.put(targets.get(i), rtts[i]);
+    }
+    return rttMs;
+  }
+
+  @Test
+  public void testFasterServerRanksFirst() throws Exception {
+    PeerConnection.IceServer slow = new PeerConnection.IceServer(startStunServer(300));
+    PeerConnection.IceServer fast = new PeerConnection.IceServer(startStunServer(0));
+    List<PeerConnection.IceServer> iceServers = Arrays.asList(slow, fast);
+
+    Map<String, Long> rttMs = probe(iceServers);
+    long slowRttMs = rttMs.get(IceServerRanker.getProbeTarget(slow.uri));
+    long fastRttMs = rttMs.get(IceServerRanker.getProbeTarget(fast.uri));
+    assertTrue("slow RTT " + slowRttMs, slowRttMs >= 300);
+    assertTrue("fast RTT " + fastRttMs, fastRttMs != StunProbe.UNREACHABLE);
+    assertTrue(fastRttMs < slowRttMs);
+
+    List<PeerConnection.IceServer> ranked = IceServerRanker.rank(iceServers, rttMs, 0);
+    assertEquals(Arrays.asList(fast, slow), ranked);
+    assertEquals(Arrays.asList(fast), IceServerRanker.rank(iceServers, rttMs, 1));
+  }
+
+  @Test
+  public void testSilentServerIsUnreachable() throws Exception {
+    PeerConnection.IceServer fast = new PeerConnection.IceServer(startStunServer(0));
+    PeerConnection.IceServer silent = new PeerConnection.IceServer(startStunServer(0));
+    servers.get(1).setDropRate(1.0);
+    List<PeerConnection.IceServer> iceServers = Arrays.asList(silent, fast);
+
+    Map<String, Long> rttMs = probe(iceServers);
+    assertEquals(StunProbe.UNREACHABLE,
+        (long) rttMs.get(IceServerRanker.getProbeTarget(silent.uri)));
+    assertEquals(Arrays.asList(fast, silent), IceServerRanker.rank(iceServers, rttMs, 0));
+  }
+
+  @Test
+  public void testCutKeepsRelay() {
+    PeerConnection.IceServer stun1 = new PeerConnection.IceServer("stun:stun1.example.com");
+    PeerConnection.IceServer stun2 = new PeerConnection.IceServer("stun:stun2.example.com");
+    PeerConnection.IceServer turn = new PeerConnection.IceServer(
+        "turn:turn.example.com?transport=udp", "user", "password");
+    Map<String, Long> rttMs = new HashMap<String, Long>();
+    rttMs.put("stun1.example.com:3478", 10L);
+    rttMs.put("stun2.example.com:3478", 20L);
+    rttMs.put("turn.example.com:3478", 80L);
+    List<PeerConnection.IceServer> iceServers = Arrays.asList(turn, stun2, stun1);
+
+    assertEquals(Arrays.asList(stun1, turn), IceServerRanker.rank(iceServers, rttMs, 2));
+    assertEquals(Arrays.asList(turn), IceServerRanker.rank(iceServers, rttMs, 1));
+    assertEquals(Arrays.asList(stun1, stun2, turn), IceServerRanker.rank(iceServers, rttMs, 3));
+  }
+
+  @Test
+  public void testProbeTargets() {
+    assertEquals("stun.example.com:3478",
+        IceServerRanker.getProbeTarget("stun:stun.example.com"));
+    assertEquals("turn.example.com:443",
+        IceServerRanker.getProbeTarget("turn:user@turn.example.com:443?transport=udp"));
+    assertEquals(null, IceServerRanker.getProbeTarget("turn:turn.example.com?transport=tcp"));
+    assertEquals(null, IceServerRanker.getProbeTarget("turns:turn.example.com:443"));
+  }
+}
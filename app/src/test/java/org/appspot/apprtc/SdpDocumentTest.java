@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests SdpDocument parsing, edits and serialization.
+ */
+public class SdpDocumentTest {
+  static final String OFFER =
+      "v=0\r\n"
+      + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\n"
+      + "t=0 0\r\n"
+      + "a=group:BUNDLE audio video\r\n"
+      + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 0 126\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+      + "a=mid:audio\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "a=rtcp-fb:111 transport-cc\r\n"
+      + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+      + "a=rtpmap:103 ISAC/16000\r\n"
+      + "a=rtpmap:126 telephone-event/8000\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 100 101 107 116 117 96 97 99 98\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+      + "a=mid:video\r\n"
+      + "a=rtpmap:100 VP8/90000\r\n"
+      + "a=rtcp-fb:100 ccm fir\r\n"
+      + "a=rtcp-fb:100 nack\r\n"
+      + "a=rtcp-fb:* goog-remb\r\n"
+      + "a=rtpmap:101 VP9/90000\r\n"
+      + "a=rtcp-fb:101 nack\r\n"
+      + "a=rtpmap:107 H264/90000\r\n"
+      + "a=fmtp:107 profile-level-id=42e01f;packetization-mode=1\r\n"
+      + "a=rtpmap:116 red/90000\r\n"
+      + "a=rtpmap:117 ulpfec/90000\r\n"
+      + "a=rtpmap:96 rtx/90000\r\n"
+      + "a=fmtp:96 apt=100\r\n"
+      + "a=rtpmap:97 rtx/90000\r\n"
+      + "a=fmtp:97 apt=101\r\n"
+      + "a=rtpmap:99 rtx/90000\r\n"
+      + "a=fmtp:99 apt=107\r\n"
+      + "a=rtpmap:98 rtx/90000\r\n"
+      + "a=fmtp:98 apt=116\r\n";
+
+  @Test
+  public void testRoundTrip() {
+    assertEquals(OFFER, SdpDocument.parse(OFFER).toString());
+  }
+
+  @Test
+  public void testBareLineFeeds() {
+    assertEquals(OFFER, SdpDocument.parse(OFFER.replace("\r\n", "\n")).toString());
+  }
+
+  @Test
+  public void testIndex() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    assertEquals(2, sdp.getMediaSections().size());
+    SdpDocument.MediaSection audio = sdp.getMediaSection("audio");
+    assertTrue(audio.isAudio());
+    assertEquals(Arrays.asList("111", "103", "0", "126"), audio.getPayloadTypes());
+    assertEquals("opus", audio.getCodecName("111"));
+    assertNull(audio.getCodecName("0"));
+    assertEquals("minptime=10;useinbandfec=1", audio.getFmtp("111"));
+
+    SdpDocument.MediaSection video = sdp.getMediaSection("video");
+    assertEquals("107", video.findPayloadType("h264"));
+    assertEquals(Arrays.asList("96", "97", "99", "98"), video.findPayloadTypes("rtx"));
+    assertEquals(2, video.getRtcpFeedbackCount("100"));
+    assertEquals(0, video.getRtcpFeedbackCount("107"));
+    assertNull(sdp.getMediaSection("application"));
+  }
+
+  @Test
+  public void testPreferPayloadType() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection video = sdp.getMediaSection("video");
+    assertTrue(video.preferPayloadType("107"));
+    assertEquals(false, video.preferPayloadType("127"));
+    assertTrue(sdp.toString().contains(
+        "m=video 9 UDP/TLS/RTP/SAVPF 107 100 101 116 117 96 97 99 98\r\n"));
+  }
+
+  @Test
+  public void testReorderPayloadTypes() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection video = sdp.getMediaSection("video");
+    video.reorderPayloadTypes(Arrays.asList("H264", "VP9", "AV1"));
+    assertEquals(Arrays.asList("107", "101", "100", "116", "117", "96", "97", "99", "98"),
+        video.getPayloadTypes());
+  }
+
+  @Test
+  public void testRemovePayloadType() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection video = sdp.getMediaSection("video");
+    assertTrue(video.removePayloadType("100"));
+    String munged = sdp.toString();
+    assertTrue(munged.contains("m=video 9 UDP/TLS/RTP/SAVPF 101 107 116 117 96 97 99 98\r\n"));
+    assertEquals(false, munged.contains("a=rtpmap:100 "));
+    assertEquals(false, munged.contains("a=rtcp-fb:100 "));
+    assertTrue(munged.contains("a=rtcp-fb:* goog-remb\r\n"));
+  }
+
+  @Test
+  public void testRetainCodecsKeepsRtxOfKeptCodecs() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection video = sdp.getMediaSection("video");
+    video.retainCodecs(Arrays.asList("VP8"), false);
+    assertEquals(Arrays.asList("100", "96"), video.getPayloadTypes());
+    assertEquals("apt=100", video.getFmtp("96"));
+    String munged = sdp.toString();
+    assertEquals(false, munged.contains("a=fmtp:97 "));
+    assertEquals(false, munged.contains("a=rtpmap:116 "));
+    assertTrue(munged.contains("a=rtcp-fb:* goog-remb\r\n"));
+  }
+
+  @Test
+  public void testRetainCodecsWithRedundancy() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection video = sdp.getMediaSection("video");
+    video.retainCodecs(Arrays.asList("H264"), true);
+    assertEquals(Arrays.asList("107", "116", "117", "99", "98"), video.getPayloadTypes());
+  }
+
+  @Test
+  public void testRetainCodecsDropsStaticPayloadTypes() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection audio = sdp.getMediaSection("audio");
+    audio.retainCodecs(Arrays.asList("opus", "telephone-event"), false);
+    assertEquals(Arrays.asList("111", "126"), audio.getPayloadTypes());
+  }
+
+  @Test
+  public void testRetainCodecsKeepsAllIfNoneMatch() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    sdp.getMediaSection("video").retainCodecs(Arrays.asList("AV1"), false);
+    assertEquals(OFFER, sdp.toString());
+  }
+
+  @Test
+  public void testMediaBandwidthFollowsConnectionLine() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection video = sdp.getMediaSection("video");
+    video.setBandwidth(SdpDocument.BANDWIDTH_AS, 500);
+    video.setBandwidth(SdpDocument.BANDWIDTH_TIAS, 500000);
+    assertTrue(sdp.toString().contains("m=video 9 UDP/TLS/RTP/SAVPF 100 101 107 116 117 96 97 99 98\r\n"
+        + "c=IN IP4 0.0.0.0\r\n"
+        + "b=AS:500\r\n"
+        + "b=TIAS:500000\r\n"
+        + "a=rtcp:9 IN IP4 0.0.0.0\r\n"));
+
+    // Setting the same type again replaces the line.
+    video.setBandwidth(SdpDocument.BANDWIDTH_AS, 300);
+    String munged = sdp.toString();
+    assertTrue(munged.contains("b=AS:300\r\nb=TIAS:500000\r\n"));
+    assertEquals(false, munged.contains("b=AS:500"));
+  }
+
+  @Test
+  public void testSessionBandwidthPrecedesTiming() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    sdp.setSessionBandwidth(SdpDocument.BANDWIDTH_AS, 800);
+    sdp.setSessionBandwidth(SdpDocument.BANDWIDTH_TIAS, 800000);
+    assertTrue(sdp.toString().startsWith("v=0\r\n"
+        + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+        + "s=-\r\n"
+        + "b=AS:800\r\n"
+        + "b=TIAS:800000\r\n"
+        + "t=0 0\r\n"));
+  }
+
+  @Test
+  public void testSetFmtpParameter() {
+    SdpDocument sdp = SdpDocument.parse(OFFER);
+    SdpDocument.MediaSection audio = sdp.getMediaSection("audio");
+    audio.setFmtpParameter("111", "useinbandfec", "0");
+    audio.setFmtpParameter("111", "stereo", "1");
+    assertEquals("minptime=10; useinbandfec=0; stereo=1", audio.getFmtp("111"));
+
+    // A missing fmtp line goes right after the rtpmap line.
+    audio.setFmtpParameter("103", "maxplaybackrate", "16000");
+    assertTrue(sdp.toString().contains(
+        "a=rtpmap:103 ISAC/16000\r\na=fmtp:103 maxplaybackrate=16000\r\n"));
+  }
+}
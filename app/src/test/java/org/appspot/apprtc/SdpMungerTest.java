@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests the SdpMunger rule pipeline on a sample offer.
+ */
+public class SdpMungerTest {
+  private static final String OFFER = SdpDocumentTest.OFFER;
+
+  @Test
+  public void testEmptyMungerReturnsInput() {
+    SdpMunger munger = new SdpMunger.Builder().build();
+    assertTrue(munger.isEmpty());
+    assertSame(OFFER, munger.mungeLocalDescription(OFFER));
+    assertSame(OFFER, munger.mungeRemoteDescription(OFFER));
+  }
+
+  @Test
+  public void testLocalAndRemoteRules() {
+    SdpMunger munger = new SdpMunger.Builder()
+        .addLocalRule(SdpMunger.preferCodec(SdpMunger.MEDIA_VIDEO, "VP9"))
+        .addRemoteRule(SdpMunger.preferCodec(SdpMunger.MEDIA_VIDEO, "H264"))
+        .build();
+    assertTrue(munger.mungeLocalDescription(OFFER).contains(
+        "m=video 9 UDP/TLS/RTP/SAVPF 101 100 107 116 117 96 97 99 98\r\n"));
+    assertTrue(munger.mungeRemoteDescription(OFFER).contains(
+        "m=video 9 UDP/TLS/RTP/SAVPF 107 100 101 116 117 96 97 99 98\r\n"));
+  }
+
+  @Test
+  public void testMissingCodecOrMediaIsIgnored() {
+    SdpMunger munger = new SdpMunger.Builder()
+        .addRule(SdpMunger.preferCodec(SdpMunger.MEDIA_VIDEO, "AV1"))
+        .addRule(SdpMunger.preferCodec("application", "VP8"))
+        .addRule(SdpMunger.stripCodec("application", "VP8"))
+        .addRule(SdpMunger.setFmtpParameter(SdpMunger.MEDIA_AUDIO, "G722", "x", "1"))
+        .build();
+    assertEquals(OFFER, munger.mungeLocalDescription(OFFER));
+  }
+
+  @Test
+  public void testRulesRunInOrder() {
+    SdpMunger munger = new SdpMunger.Builder()
+        .addRule(SdpMunger.retainCodecs(SdpMunger.MEDIA_VIDEO,
+            Arrays.asList("VP8", "VP9"), false))
+        .addRule(SdpMunger.preferCodecs(SdpMunger.MEDIA_VIDEO, Arrays.asList("VP9", "VP8")))
+        .addRule(SdpMunger.setMaxBandwidth(SdpMunger.MEDIA_VIDEO, 1000))
+        .addRule(SdpMunger.setMaxBandwidth(SdpMunger.MEDIA_AUDIO, 32))
+        .addRule(SdpMunger.setFmtpParameter(SdpMunger.MEDIA_AUDIO, "opus", "stereo", "1"))
+        .build();
+    String munged = munger.mungeLocalDescription(OFFER);
+    assertTrue(munged.contains("m=video 9 UDP/TLS/RTP/SAVPF 101 100 96 97\r\n"
+        + "c=IN IP4 0.0.0.0\r\n"
+        + "b=AS:1000\r\n"
+        + "b=TIAS:1000000\r\n"));
+    assertTrue(munged.contains("m=audio 9 UDP/TLS/RTP/SAVPF 111 103 0 126\r\n"
+        + "c=IN IP4 0.0.0.0\r\n"
+        + "b=AS:32\r\n"
+        + "b=TIAS:32000\r\n"));
+    assertTrue(munged.contains("a=fmtp:111 minptime=10; useinbandfec=1; stereo=1\r\n"));
+    assertTrue(munged.contains("a=fmtp:96 apt=100\r\na=rtpmap:97 rtx/90000\r\n"
+        + "a=fmtp:97 apt=101\r\n"));
+    assertEquals(false, munged.contains("H264"));
+  }
+
+  @Test
+  public void testSessionBandwidth() {
+    SdpMunger munger = new SdpMunger.Builder()
+        .addLocalRule(SdpMunger.setMaxBandwidth(null, 2000))
+        .build();
+    String munged = munger.mungeLocalDescription(OFFER);
+    assertTrue(munged.contains("s=-\r\nb=AS:2000\r\nb=TIAS:2000000\r\nt=0 0\r\n"));
+    assertEquals(OFFER, munger.mungeRemoteDescription(OFFER));
+  }
+
+  @Test
+  public void testStripCodecRemovesAllPayloadTypes() {
+    SdpMunger munger = new SdpMunger.Builder()
+        .addRule(SdpMunger.stripCodec(SdpMunger.MEDIA_VIDEO, "rtx"))
+        .build();
+    String munged = munger.mungeLocalDescription(OFFER);
+    assertTrue(munged.contains("m=video 9 UDP/TLS/RTP/SAVPF 100 101 107 116 117\r\n"));
+    assertEquals(false, munged.contains("apt="));
+  }
+}
@@ -0,0 +1,650 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless load generator for the hanging-GET signaling protocol.
+ *
+ * <p>Simulates |peerCount| virtual peers on one selector thread. Each peer
+ * signs in, keeps a /wait long poll open on its own keep-alive connection
+ * and posts |messagesPerPeer| messages to the next peer at
+ * |messagesPerSecond| through /message: first an offer-shaped SDP, then
+ * candidate-shaped payloads, as WebSocketRTCClient sends them. Every
+ * payload carries its send time, so delivery latency is measured end to end
+ * through the server. See Report for the collected numbers.
+ *
+ * <p>Sign in, the presence drain and messaging each get their own time
+ * budget. A phase that runs out of it counts as a deadline hit, and every
+ * message not delivered by then counts as an error.
+ *
+ * <p>This is a development tool and lives with the local unit tests, so it
+ * runs on the JVM against the app classes but does not ship in the APK.
+ */
+public class SignalingLoadGenerator {
+  private static final Logger logger =
+      Logger.getLogger(SignalingLoadGenerator.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String TIMESTAMP_KEY = "\"loadgen_ts\":";
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final long SIGN_OUT_TIMEOUT_MS = 5000;
+  private static final String SYNTHETIC_SDP = buildSyntheticSdp();
+
+  private final String host;
+  private final int port;
+  private final int peerCount;
+  private final int messagesPerPeer;
+  private final long sendIntervalNs;
+  private boolean drainPresence = true;
+  private Selector selector;
+  private VirtualPeer[] peers;
+  private final PriorityQueue<VirtualPeer> sendSchedule = new PriorityQueue<VirtualPeer>();
+
+  // Statistics, only touched on the generator thread.
+  private long[] latenciesNs = new long[1024];
+  private int delivered;
+  private int sent;
+  private int signedIn;
+  private int signedOut;
+  private int presenceNotifications;
+  private int errors;
+  private int deadlinesHit;
+  private boolean signingOut;
+
+  /**
+   * Result of one load run.
+   */
+  public static class Report {
+    public final int peers;
+    public final int messagesSent;
+    public final int messagesDelivered;
+    public final int messagesUndelivered;
+    public final int presenceNotifications;
+    public final int deadlinesHit;
+    public final int errors;
+    public final long durationMs;
+    public final double throughputPerSecond;
+    public final double p50LatencyMs;
+    public final double p95LatencyMs;
+    public final double p99LatencyMs;
+    public final double maxLatencyMs;
+
+    Report(int peers, int messagesSent, int messagesDelivered, int messagesUndelivered,
+        int presenceNotifications, int deadlinesHit, int errors, long durationMs,
+        long[] sortedLatenciesNs, int count) {
+      this.peers = peers;
+      this.messagesSent = messagesSent;
+      this.messagesDelivered = messagesDelivered;
+      this.messagesUndelivered = messagesUndelivered;
+      this.presenceNotifications = presenceNotifications;
+      this.deadlinesHit = deadlinesHit;
+      this.errors = errors;
+      this.durationMs = durationMs;
+      this.throughputPerSecond =
+          durationMs == 0 ? 0 : messagesDelivered * 1000.0 / durationMs;
+      this.p50LatencyMs = percentileMs(sortedLatenciesNs, count, 0.50);
+      this.p95LatencyMs = percentileMs(sortedLatenciesNs, count, 0.95);
+      this.p99LatencyMs = percentileMs(sortedLatenciesNs, count, 0.99);
+      this.maxLatencyMs = count == 0 ? 0 : sortedLatenciesNs[count - 1] / 1e6;
+    }
+
+    private static double percentileMs(long[] sorted, int count, double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(quantile * count) - 1;
+      return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "Peers: %d. Messages sent: %d, delivered: %d in %d ms (%.1f msg/s), "
+          + "undelivered: %d. "
+          + "Latency p50: %.2f ms, p95: %.2f ms, p99: %.2f ms, max: %.2f ms. "
+          + "Presence notifications: %d. Deadlines hit: %d. Errors: %d.",
+          peers, messagesSent, messagesDelivered, durationMs, throughputPerSecond,
+          messagesUndelivered, p50LatencyMs, p95LatencyMs, p99LatencyMs, maxLatencyMs,
+          presenceNotifications, deadlinesHit, errors);
+    }
+  }
+
+  /**
+   * HTTP response callback.
+   */
+  private interface ResponseCallback {
+    public void onResponse(int status, int pragmaPeerId, String body);
+  }
+
+  /**
+   * Virtual peer with a long-poll connection and a send connection.
+   */
+  private class VirtualPeer implements Comparable<VirtualPeer> {
+    final int index;
+    final String name;
+    int id;
+    int messagesSent;
+    long nextSendTimeNs;
+    ClientConnection pollConnection;
+    ClientConnection sendConnection;
+
+    VirtualPeer(int index) {
+      this.index = index;
+      this.name = "loadgen-" + index;
+    }
+
+    @Override
+    public int compareTo(VirtualPeer other) {
+      return nextSendTimeNs < other.nextSendTimeNs ? -1
+          : (nextSendTimeNs == other.nextSendTimeNs ? 0 : 1);
+    }
+  }
+
+  /**
+   * Non-blocking keep-alive HTTP/1.1 client connection with pipelining.
+   */
+  private class ClientConnection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    final LinkedList<ResponseCallback> callbacks = new LinkedList<ResponseCallback>();
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    boolean connected;
+    boolean closed;
+
+    ClientConnection() throws IOException {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      connected = channel.connect(new InetSocketAddress(host, port));
+      key = channel.register(selector,
+          connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+    }
+
+    void request(String method, String target, String body, ResponseCallback callback) {
+      if (closed) {
+        errors++;
+        return;
+      }
+      byte[] bodyBytes = body == null ? new byte[0] : body.getBytes(UTF_8);
+      String head = method + " " + target + " HTTP/1.1\r\n"
+          + "Host: " + host + ":" + port + "\r\n"
+          + "Connection: keep-alive\r\n"
+          + "Content-Type: text/plain; charset=utf-8\r\n"
+          + "Content-Length: " + bodyBytes.length + "\r\n\r\n";
+      byte[] headBytes = head.getBytes(UTF_8);
+      ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + bodyBytes.length);
+      buffer.put(headBytes).put(bodyBytes);
+      buffer.flip();
+      writeQueue.add(buffer);
+      callbacks.add(callback);
+      if (connected) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void onConnectable() throws IOException {
+      channel.finishConnect();
+      connected = true;
+      key.interestOps(writeQueue.isEmpty()
+          ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void onWritable() throws IOException {
+      while (!writeQueue.isEmpty()) {
+        ByteBuffer buffer = writeQueue.peek();
+        channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          return;
+        }
+        writeQueue.poll();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void onReadable() throws IOException {
+      if (!readBuffer.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+      }
+      if (channel.read(readBuffer) < 0) {
+        close();
+        return;
+      }
+      while (parseResponse()) {
+      }
+    }
+
+    // Parses one response from the read buffer. Returns false if more data
+    // is needed.
+    private boolean parseResponse() {
+      byte[] array = readBuffer.array();
+      int headerEnd = -1;
+      for (int i = 0; i + 3 < readBuffer.position(); i++) {
+        if (array[i] == '\r' && array[i + 1] == '\n'
+            && array[i + 2] == '\r' && array[i + 3] == '\n') {
+          headerEnd = i;
+          break;
+        }
+      }
+      if (headerEnd < 0) {
+        return false;
+      }
+      String[] lines = new String(array, 0, headerEnd, UTF_8).split("\r\n");
+      String[] statusLine = lines[0].split(" ");
+      int status = statusLine.length > 1 ? parseInt(statusLine[1], -1) : -1;
+      int contentLength = 0;
+      int pragmaPeerId = 0;
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon <= 0) {
+          continue;
+        }
+        String name = lines[i].substring(0, colon).trim();
+        String value = lines[i].substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+          contentLength = parseInt(value, 0);
+        } else if (name.equalsIgnoreCase("Pragma")) {
+          pragmaPeerId = parseInt(value, 0);
+        }
+      }
+      int responseLength = headerEnd + 4 + contentLength;
+      if (responseLength > readBuffer.capacity()) {
+        ByteBuffer larger = ByteBuffer.allocate(responseLength);
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+        return false;
+      }
+      if (readBuffer.position() < responseLength) {
+        return false;
+      }
+      String body = new String(array, headerEnd + 4, contentLength, UTF_8);
+      readBuffer.flip();
+      readBuffer.position(responseLength);
+      readBuffer.compact();
+      ResponseCallback callback = callbacks.poll();
+      if (callback != null) {
+        callback.onResponse(status, pragmaPeerId, body);
+      }
+      return true;
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (!callbacks.isEmpty() && !signingOut) {
+        errors += callbacks.size();
+        callbacks.clear();
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Close error", e);
+      }
+    }
+  }
+
+  /**
+   * Creates a generator for the server at |serverUrl|, e.g.
+   * "http://127.0.0.1:8888". |messagesPerSecond| is per peer.
+   */
+  public SignalingLoadGenerator(String serverUrl, int peerCount,
+      int messagesPerPeer, int messagesPerSecond) throws URISyntaxException {
+    URI uri = new URI(serverUrl);
+    this.host = uri.getHost();
+    this.port = uri.getPort() > 0 ? uri.getPort() : 80;
+    this.peerCount = peerCount;
+    this.messagesPerPeer = messagesPerPeer;
+    this.sendIntervalNs = 1000000000L / Math.max(1, messagesPerSecond);
+  }
+
+  /**
+   * Sets whether run() waits for the presence notifications of the sign in
+   * phase before messaging starts. Defaults to true; without the drain, that
+   * backlog is measured as part of the message latency.
+   */
+  public void setDrainPresence(boolean drainPresence) {
+    this.drainPresence = drainPresence;
+  }
+
+  /**
+   * Runs the load and returns its report. Sign in, the presence drain and
+   * messaging each give up after |timeoutMs|.
+   */
+  public Report run(long timeoutMs) throws IOException {
+    selector = Selector.open();
+    peers = new VirtualPeer[peerCount];
+    try {
+      for (int i = 0; i < peerCount; i++) {
+        final VirtualPeer peer = new VirtualPeer(i);
+        peers[i] = peer;
+        peer.pollConnection = new ClientConnection();
+        peer.sendConnection = new ClientConnection();
+        peer.sendConnection.request("GET", "/sign_in?" + peer.name, null,
+            new ResponseCallback() {
+              @Override
+              public void onResponse(int status, int pragmaPeerId, String body) {
+                onSignedIn(peer, status, pragmaPeerId);
+              }
+            });
+      }
+      long deadlineMs = System.currentTimeMillis() + timeoutMs;
+      while (signedIn + errors < peerCount && System.currentTimeMillis() < deadlineMs) {
+        select(deadlineMs);
+      }
+      if (signedIn + errors < peerCount) {
+        onDeadlineHit("sign in", peerCount - signedIn - errors);
+      }
+      logger.info("Signed in " + signedIn + " peers.");
+      if (drainPresence) {
+        // Every sign in is announced to the peers that signed in before it.
+        // Let that backlog drain, so it does not count as message latency.
+        long expectedPresence = (long) signedIn * (signedIn - 1) / 2;
+        deadlineMs = System.currentTimeMillis() + timeoutMs;
+        while (presenceNotifications < expectedPresence
+            && System.currentTimeMillis() < deadlineMs) {
+          select(deadlineMs);
+        }
+        if (presenceNotifications < expectedPresence) {
+          onDeadlineHit("presence drain", 0);
+        }
+      }
+
+      long startNs = System.nanoTime();
+      long expected = (long) signedIn * messagesPerPeer;
+      for (VirtualPeer peer : peers) {
+        if (peer.id > 0) {
+          peer.nextSendTimeNs = startNs + (sendIntervalNs * peer.index) / peerCount;
+          sendSchedule.add(peer);
+        }
+      }
+      deadlineMs = System.currentTimeMillis() + timeoutMs;
+      while (delivered < expected && System.currentTimeMillis() < deadlineMs) {
+        sendDueMessages();
+        select(deadlineMs);
+      }
+      long durationMs = (System.nanoTime() - startNs) / 1000000;
+      int undelivered = (int) Math.max(0, expected - delivered);
+      if (undelivered > 0) {
+        onDeadlineHit("messaging", undelivered);
+      }
+
+      signOutAll();
+      long[] sorted = Arrays.copyOf(latenciesNs, delivered);
+      Arrays.sort(sorted);
+      return new Report(peerCount, sent, delivered, undelivered, presenceNotifications,
+          deadlinesHit, errors, durationMs, sorted, delivered);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        ((ClientConnection) key.attachment()).close();
+      }
+      selector.close();
+    }
+  }
+
+  // Counts a phase that ran out of time, and its |missing| results as errors.
+  private void onDeadlineHit(String phase, int missing) {
+    logger.warning("Deadline hit in " + phase + " phase, " + missing + " results missing.");
+    deadlinesHit++;
+    errors += missing;
+  }
+
+  private void select(long deadlineMs) throws IOException {
+    long waitMs = deadlineMs - System.currentTimeMillis();
+    VirtualPeer next = sendSchedule.peek();
+    if (next != null) {
+      waitMs = Math.min(waitMs, (next.nextSendTimeNs - System.nanoTime()) / 1000000);
+    }
+    if (waitMs <= 0) {
+      selector.selectNow();
+    } else {
+      selector.select(waitMs);
+    }
+    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+    while (keys.hasNext()) {
+      SelectionKey key = keys.next();
+      keys.remove();
+      ClientConnection connection = (ClientConnection) key.attachment();
+      try {
+        if (key.isValid() && key.isConnectable()) {
+          connection.onConnectable();
+        }
+        if (key.isValid() && key.isReadable()) {
+          connection.onReadable();
+        }
+        if (key.isValid() && key.isWritable()) {
+          connection.onWritable();
+        }
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Connection error", e);
+        if (!signingOut) {
+          errors++;
+        }
+        connection.close();
+      }
+    }
+  }
+
+  private void onSignedIn(VirtualPeer peer, int status, int pragmaPeerId) {
+    if (status != 200 || pragmaPeerId <= 0) {
+      errors++;
+      return;
+    }
+    peer.id = pragmaPeerId;
+    signedIn++;
+    poll(peer);
+  }
+
+  private void poll(final VirtualPeer peer) {
+    peer.pollConnection.request("GET", "/wait?peer_id=" + peer.id, null,
+        new ResponseCallback() {
+          @Override
+          public void onResponse(int status, int pragmaPeerId, String body) {
+            if (status != 200) {
+              if (!signingOut) {
+                errors++;
+              }
+              return;
+            }
+            // Re-arm before handling the payload, as LongPollChannel does.
+            poll(peer);
+            if (pragmaPeerId == peer.id) {
+              presenceNotifications++;
+            } else {
+              onMessageDelivered(body);
+            }
+          }
+        });
+  }
+
+  private void onMessageDelivered(String body) {
+    int start = body.lastIndexOf(TIMESTAMP_KEY);
+    if (start < 0) {
+      errors++;
+      return;
+    }
+    start += TIMESTAMP_KEY.length();
+    int end = start;
+    while (end < body.length() && Character.isDigit(body.charAt(end))) {
+      end++;
+    }
+    long latencyNs = System.nanoTime() - Long.parseLong(body.substring(start, end));
+    if (delivered == latenciesNs.length) {
+      latenciesNs = Arrays.copyOf(latenciesNs, latenciesNs.length * 2);
+    }
+    latenciesNs[delivered++] = latencyNs;
+  }
+
+  private void sendDueMessages() {
+    long nowNs = System.nanoTime();
+    VirtualPeer peer;
+    while ((peer = sendSchedule.peek()) != null && peer.nextSendTimeNs <= nowNs) {
+      sendSchedule.poll();
+      VirtualPeer target = peers[(peer.index + 1) % peerCount];
+      if (target.id > 0) {
+        peer.sendConnection.request("POST",
+            "/message?peer_id=" + peer.id + "&to=" + target.id,
+            buildMessage(peer.messagesSent, nowNs),
+            new ResponseCallback() {
+              @Override
+              public void onResponse(int status, int pragmaPeerId, String body) {
+                if (status != 200) {
+                  errors++;
+                }
+              }
+            });
+        sent++;
+      }
+      peer.messagesSent++;
+      if (peer.messagesSent < messagesPerPeer) {
+        peer.nextSendTimeNs += sendIntervalNs;
+        sendSchedule.add(peer);
+      }
+    }
+  }
+
+  private void signOutAll() throws IOException {
+    signingOut = true;
+    int expected = 0;
+    for (VirtualPeer peer : peers) {
+      if (peer.id <= 0) {
+        continue;
+      }
+      expected++;
+      peer.sendConnection.request("GET", "/sign_out?peer_id=" + peer.id, null,
+          new ResponseCallback() {
+            @Override
+            public void onResponse(int status, int pragmaPeerId, String body) {
+              signedOut++;
+            }
+          });
+    }
+    sendSchedule.clear();
+    long deadlineMs = System.currentTimeMillis() + SIGN_OUT_TIMEOUT_MS;
+    while (signedOut < expected && System.currentTimeMillis() < deadlineMs) {
+      select(deadlineMs);
+    }
+  }
+
+  // The first message is offer-shaped, the rest are candidate-shaped.
+  private static String buildMessage(int sequence, long timestampNs) {
+    if (sequence == 0) {
+      return "{\"sdp\":\"" + SYNTHETIC_SDP + "\",\"type\":\"offer\","
+          + TIMESTAMP_KEY + timestampNs + "}";
+    }
+    return "{\"sdpMLineIndex\":0,\"sdpMid\":\"audio\",\"candidate\":\"candidate:"
+        + sequence + " 1 udp 2122260223 192.168.1." + (sequence % 250 + 1)
+        + " 5" + (1000 + sequence % 9000) + " typ host generation 0\","
+        + TIMESTAMP_KEY + timestampNs + "}";
+  }
+
+  private static String buildSyntheticSdp() {
+    StringBuilder sdp = new StringBuilder();
+    sdp.append("v=0\\r\\no=- 4611731400430051336 2 IN IP4 127.0.0.1\\r\\ns=-\\r\\nt=0 0\\r\\n")
+        .append("a=group:BUNDLE audio video\\r\\n")
+        .append("m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 106 105 13 126\\r\\n")
+        .append("c=IN IP4 0.0.0.0\\r\\na=rtcp:9 IN IP4 0.0.0.0\\r\\n")
+        .append("a=ice-ufrag:loadgen\\r\\na=ice-pwd:loadgenloadgenloadgenlo\\r\\n")
+        .append("a=mid:audio\\r\\na=sendrecv\\r\\na=rtcp-mux\\r\\n")
+        .append("a=rtpmap:111 opus/48000/2\\r\\na=fmtp:111 minptime=10; useinbandfec=1\\r\\n")
+        .append("m=video 9 UDP/TLS/RTP/SAVPF 100 101 116 117 96\\r\\n")
+        .append("c=IN IP4 0.0.0.0\\r\\na=mid:video\\r\\na=sendrecv\\r\\na=rtcp-mux\\r\\n")
+        .append("a=rtpmap:100 VP8/90000\\r\\na=rtcp-fb:100 nack\\r\\na=rtcp-fb:100 nack pli\\r\\n")
+        .append("a=rtpmap:101 VP9/90000\\r\\na=rtpmap:116 red/90000\\r\\n")
+        .append("a=rtpmap:117 ulpfec/90000\\r\\na=rtpmap:96 rtx/90000\\r\\na=fmtp:96 apt=100\\r\\n");
+    return sdp.toString();
+  }
+
+  private static int parseInt(String value, int defaultValue) {
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Usage: SignalingLoadGenerator [--server url] [--peers n] [--messages n]
+   * [--rate msgs_per_sec_per_peer] [--timeout sec_per_phase]
+   * [--presence-drain on|off]. Without --server an in-process
+   * SignalingServer is started on a free port. Exits with status 1 if the
+   * run had errors.
+   */
+  public static void main(String[] args) throws Exception {
+    String serverUrl = null;
+    int peerCount = 100;
+    int messagesPerPeer = 20;
+    int messagesPerSecond = 10;
+    int timeoutSec = 60;
+    boolean drainPresence = true;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("--server")) {
+        serverUrl = args[i + 1];
+      } else if (args[i].equals("--peers")) {
+        peerCount = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("--messages")) {
+        messagesPerPeer = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("--rate")) {
+        messagesPerSecond = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("--timeout")) {
+        timeoutSec = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("--presence-drain")) {
+        drainPresence = !args[i + 1].equals("off");
+      } else {
+        System.err.println("Unknown option: " + args[i]);
+        System.exit(2);
+      }
+    }
+    SignalingServer localServer = null;
+    if (serverUrl == null) {
+      localServer = new SignalingServer(new InetSocketAddress("127.0.0.1", 0));
+      localServer.start();
+      serverUrl = "http://127.0.0.1:" + localServer.getPort();
+    }
+    Report report;
+    try {
+      SignalingLoadGenerator generator = new SignalingLoadGenerator(
+          serverUrl, peerCount, messagesPerPeer, messagesPerSecond);
+      generator.setDrainPresence(drainPresence);
+      report = generator.run(timeoutSec * 1000L);
+      System.out.println(report);
+    } finally {
+      if (localServer != null) {
+        localServer.stop();
+      }
+    }
+    if (report.errors > 0) {
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,1055 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for the peerconnection_server signaling server.
+ *
+ * <p>Implements the hanging-GET protocol used by WebSocketRTCClient:
+ * <ul>
+ * <li>GET /sign_in?name - registers a peer; the response lists all peers as
+ *   "name,id,1" lines, own entry first, with the new id in Pragma.
+ * <li>GET /wait?peer_id=id - long poll; answered with the next queued
+ *   message, or held open until one arrives. Messages carry the sender id
+ *   in Pragma, presence notifications the receiver's own id.
+ * <li>POST /message?peer_id=id&amp;to=id - forwards the body to a peer.
+ * <li>GET /sign_out?peer_id=id - unregisters a peer and notifies the rest.
+ * <li>GET /ws - WebSocket upgrade, see WebSocketChannelClient. A peer sends
+ *   {"cmd": "register", "clientid": id} and gets {"cmd": "registered"}
+ *   back; after that {"cmd": "send", "to": id, "msg": message} forwards a
+ *   message. Messages to a registered peer are pushed to its WebSocket as
+ *   {"from": id, "msg": message} instead of answering its /wait; presence
+ *   notifications always go to /wait. Failures are answered with
+ *   {"error": text}, plus "to" and "msg" if a message was not delivered.
+ * </ul>
+ *
+ * <p>Like peerconnection_server, a member without a pending /wait for
+ * MEMBER_TIMEOUT_MS is signed out and the others are notified, so clients
+ * that die without sign_out do not stay listed. Until then at most
+ * MAX_QUEUED_RESPONSES messages or MAX_QUEUED_BYTES are queued for it;
+ * further messages to it are answered with 503, which senders retry.
+ *
+ * <p>All sockets are served by one selector thread with persistent HTTP/1.1
+ * connections. Only java.nio is used, so the server runs on a plain JVM. It
+ * lives with the local unit tests and does not ship in the APK.
+ */
+public class SignalingServer {
+  private static final Logger logger = Logger.getLogger(SignalingServer.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final int MAX_HEADER_SIZE = 16 * 1024;
+  private static final int MAX_BODY_SIZE = 1024 * 1024;
+  private static final String PATH_SIGN_IN = "/sign_in";
+  private static final String PATH_SIGN_OUT = "/sign_out";
+  private static final String PATH_WAIT = "/wait";
+  private static final String PATH_MESSAGE = "/message";
+  private static final String PATH_WEBSOCKET = "/ws";
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final int OPCODE_CONTINUATION = 0x0;
+  private static final int OPCODE_TEXT = 0x1;
+  private static final int OPCODE_CLOSE = 0x8;
+  private static final int OPCODE_PING = 0x9;
+  private static final int OPCODE_PONG = 0xA;
+  private static final int MEMBER_TIMEOUT_MS = 30000;
+  private static final int SWEEP_INTERVAL_MS = 1000;
+  private static final int MAX_QUEUED_RESPONSES = 256;
+  private static final int MAX_QUEUED_BYTES = 2 * MAX_BODY_SIZE;
+
+  private final InetSocketAddress bindAddress;
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private Thread selectorThread;
+  private volatile boolean running;
+  private int nextPeerId = 1;
+  private volatile int memberTimeoutMs = MEMBER_TIMEOUT_MS;
+  private long lastSweepMs;
+  // Peers by id, in sign in order. Only touched on the selector thread.
+  private final Map<Integer, Member> members = new LinkedHashMap<Integer, Member>();
+
+  /**
+   * Signed in peer with its pending long poll and undelivered messages.
+   */
+  private static class Member {
+    final int id;
+    final String name;
+    Connection waitingConnection;
+    // Registered WebSocket, preferred for peer messages.
+    Connection webSocket;
+    final LinkedList<Response> queuedResponses = new LinkedList<Response>();
+    int queuedBytes;
+    // Since when the member has no pending long poll.
+    long idleSinceMs;
+
+    Member(int id, String name) {
+      this.id = id;
+      this.name = name;
+      idleSinceMs = System.currentTimeMillis();
+    }
+
+    String getEntry(boolean connected) {
+      return name + "," + id + "," + (connected ? 1 : 0) + "\n";
+    }
+  }
+
+  /**
+   * HTTP response waiting to be written.
+   */
+  private static class Response {
+    final String status;
+    final int pragmaPeerId;
+    final byte[] body;
+
+    Response(String status, int pragmaPeerId, byte[] body) {
+      this.status = status;
+      this.pragmaPeerId = pragmaPeerId;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Client socket with its request parser state.
+   */
+  private static class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    boolean closeAfterWrite;
+    // Member whose long poll is parked on this connection, if any.
+    Member waitingMember;
+    // Parsed request head, set while the body is still being read.
+    String method;
+    String path;
+    Map<String, String> query;
+    Map<String, String> headers;
+    int contentLength = -1;
+    // Set once the connection was upgraded to a WebSocket.
+    boolean webSocket;
+    Member webSocketMember;
+    // Payload of a fragmented text message received so far.
+    ByteArrayOutputStream fragments;
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+  }
+
+  public SignalingServer(int port) {
+    this(new InetSocketAddress(port));
+  }
+
+  public SignalingServer(InetSocketAddress bindAddress) {
+    this.bindAddress = bindAddress;
+  }
+
+  /** Binds the listening socket and starts the selector thread. */
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.configureBlocking(false);
+    serverChannel.socket().setReuseAddress(true);
+    serverChannel.socket().bind(bindAddress);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    running = true;
+    selectorThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        selectLoop();
+      }
+    }, "SignalingServer");
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+    logger.info("Signaling server listening on port " + getPort());
+  }
+
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    logger.info("Signaling server stopped.");
+  }
+
+  /**
+   * Signs out members that have had no pending /wait for |timeoutMs|,
+   * MEMBER_TIMEOUT_MS by default.
+   */
+  public void setMemberTimeoutMs(int timeoutMs) {
+    memberTimeoutMs = timeoutMs;
+  }
+
+  /** Returns the bound port, useful when started on port 0. */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  private void selectLoop() {
+    try {
+      while (running) {
+        selector.select(SWEEP_INTERVAL_MS);
+        sweepIdleMembers();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          try {
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                read(connection);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(connection);
+              }
+            }
+          } catch (IOException e) {
+            logger.log(Level.FINE, "Connection error", e);
+            if (key.attachment() != null) {
+              close((Connection) key.attachment());
+            }
+          } catch (CancelledKeyException e) {
+            // Closed while handling an earlier key of this round.
+            logger.log(Level.FINE, "Key cancelled", e);
+          }
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Selector failed", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        closeQuietly(key);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Selector close error", e);
+      }
+      members.clear();
+    }
+  }
+
+  // Signs out members without a pending long poll for memberTimeoutMs.
+  private void sweepIdleMembers() {
+    long nowMs = System.currentTimeMillis();
+    if (nowMs - lastSweepMs < SWEEP_INTERVAL_MS) {
+      return;
+    }
+    lastSweepMs = nowMs;
+    List<Member> idleMembers = new ArrayList<Member>();
+    for (Member member : members.values()) {
+      // A registered WebSocket keeps the member alive as well.
+      if (member.waitingConnection == null && member.webSocket == null
+          && nowMs - member.idleSinceMs > memberTimeoutMs) {
+        idleMembers.add(member);
+      }
+    }
+    for (Member member : idleMembers) {
+      logger.info("Timing out " + member.id + " after "
+          + (nowMs - member.idleSinceMs) + " ms without /wait.");
+      removeMember(member);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      key.attach(new Connection(channel, key));
+    }
+  }
+
+  private void read(Connection connection) throws IOException {
+    int read = connection.channel.read(connection.readBuffer);
+    if (read < 0) {
+      close(connection);
+      return;
+    }
+    // Handle every complete request or frame in the buffer, pipelined ones
+    // included.
+    while (connection.key.isValid()
+        && (connection.webSocket ? parseFrame(connection) : parseRequest(connection))) {
+    }
+  }
+
+  // Parses one request from the read buffer and handles it. Returns false if
+  // more data is needed.
+  private boolean parseRequest(Connection connection) throws IOException {
+    ByteBuffer buffer = connection.readBuffer;
+    if (connection.method == null) {
+      int headerEnd = indexOfHeaderEnd(buffer);
+      if (headerEnd < 0) {
+        if (buffer.position() >= MAX_HEADER_SIZE) {
+          sendError(connection, "431 Request Header Fields Too Large");
+        }
+        return false;
+      }
+      String head = new String(buffer.array(), 0, headerEnd, UTF_8);
+      consume(buffer, headerEnd + 4);
+      if (!parseHead(connection, head)) {
+        sendError(connection, "400 Bad Request");
+        return false;
+      }
+      if (connection.contentLength > MAX_BODY_SIZE) {
+        sendError(connection, "413 Payload Too Large");
+        return false;
+      }
+      if (connection.contentLength > buffer.capacity()) {
+        ByteBuffer larger = ByteBuffer.allocate(connection.contentLength);
+        buffer.flip();
+        larger.put(buffer);
+        connection.readBuffer = larger;
+        buffer = larger;
+      }
+    }
+    int bodyLength = Math.max(connection.contentLength, 0);
+    if (buffer.position() < bodyLength) {
+      return false;
+    }
+    String body = new String(buffer.array(), 0, bodyLength, UTF_8);
+    consume(buffer, bodyLength);
+    String method = connection.method;
+    String path = connection.path;
+    Map<String, String> query = connection.query;
+    Map<String, String> headers = connection.headers;
+    connection.method = null;
+    connection.path = null;
+    connection.query = null;
+    connection.headers = null;
+    connection.contentLength = -1;
+    if (path.equals(PATH_WEBSOCKET)) {
+      handleUpgrade(connection, headers);
+    } else {
+      handleRequest(connection, method, path, query, body);
+    }
+    return true;
+  }
+
+  // Parses one WebSocket frame from the read buffer and handles it. Returns
+  // false if more data is needed.
+  private boolean parseFrame(Connection connection) {
+    ByteBuffer buffer = connection.readBuffer;
+    byte[] array = buffer.array();
+    int available = buffer.position();
+    if (available < 2) {
+      return false;
+    }
+    boolean fin = (array[0] & 0x80) != 0;
+    int opcode = array[0] & 0x0F;
+    boolean masked = (array[1] & 0x80) != 0;
+    long payloadLength = array[1] & 0x7F;
+    int headerLength = 2;
+    if (payloadLength == 126) {
+      headerLength += 2;
+      if (available < headerLength) {
+        return false;
+      }
+      payloadLength = ((array[2] & 0xFF) << 8) | (array[3] & 0xFF);
+    } else if (payloadLength == 127) {
+      headerLength += 8;
+      if (available < headerLength) {
+        return false;
+      }
+      payloadLength = 0;
+      for (int i = 2; i < 10; i++) {
+        payloadLength = (payloadLength << 8) | (array[i] & 0xFF);
+      }
+    }
+    if (!masked) {
+      // Client frames must be masked (RFC 6455, 5.1).
+      closeWebSocket(connection, 1002);
+      return false;
+    }
+    if (payloadLength > MAX_BODY_SIZE) {
+      closeWebSocket(connection, 1009);
+      return false;
+    }
+    headerLength += 4;
+    int frameLength = headerLength + (int) payloadLength;
+    if (frameLength > buffer.capacity()) {
+      ByteBuffer larger = ByteBuffer.allocate(frameLength);
+      buffer.flip();
+      larger.put(buffer);
+      connection.readBuffer = larger;
+      return false;
+    }
+    if (available < frameLength) {
+      return false;
+    }
+    byte[] payload = new byte[(int) payloadLength];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) (array[headerLength + i] ^ array[headerLength - 4 + (i % 4)]);
+    }
+    consume(buffer, frameLength);
+    handleFrame(connection, fin, opcode, payload);
+    return true;
+  }
+
+  private void handleFrame(Connection connection, boolean fin, int opcode, byte[] payload) {
+    switch (opcode) {
+      case OPCODE_TEXT:
+      case OPCODE_CONTINUATION:
+        if (opcode == OPCODE_TEXT) {
+          connection.fragments = new ByteArrayOutputStream();
+        } else if (connection.fragments == null) {
+          closeWebSocket(connection, 1002);
+          return;
+        }
+        connection.fragments.write(payload, 0, payload.length);
+        if (connection.fragments.size() > MAX_BODY_SIZE) {
+          closeWebSocket(connection, 1009);
+          return;
+        }
+        if (fin) {
+          String text = new String(connection.fragments.toByteArray(), UTF_8);
+          connection.fragments = null;
+          handleWebSocketMessage(connection, text);
+        }
+        break;
+      case OPCODE_PING:
+        queueFrame(connection, OPCODE_PONG, payload);
+        break;
+      case OPCODE_PONG:
+        break;
+      case OPCODE_CLOSE:
+        closeWebSocket(connection, 1000);
+        break;
+      default:
+        // Binary frames are not part of the protocol.
+        closeWebSocket(connection, 1003);
+        break;
+    }
+  }
+
+  private static int indexOfHeaderEnd(ByteBuffer buffer) {
+    byte[] array = buffer.array();
+    for (int i = 0; i + 3 < buffer.position(); i++) {
+      if (array[i] == '\r' && array[i + 1] == '\n'
+          && array[i + 2] == '\r' && array[i + 3] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Drops the first |length| bytes of |buffer|, which is in write mode.
+  private static void consume(ByteBuffer buffer, int length) {
+    buffer.flip();
+    buffer.position(length);
+    buffer.compact();
+  }
+
+  private static boolean parseHead(Connection connection, String head) {
+    String[] lines = head.split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+    if (requestLine.length < 2) {
+      return false;
+    }
+    connection.method = requestLine[0];
+    String target = requestLine[1];
+    int queryStart = target.indexOf('?');
+    connection.path = queryStart < 0 ? target : target.substring(0, queryStart);
+    connection.query = parseQuery(queryStart < 0 ? "" : target.substring(queryStart + 1));
+    connection.contentLength = 0;
+    connection.headers = new HashMap<String, String>();
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon <= 0) {
+        continue;
+      }
+      String name = lines[i].substring(0, colon).trim().toLowerCase();
+      String value = lines[i].substring(colon + 1).trim();
+      connection.headers.put(name, value);
+      if (name.equals("content-length")) {
+        try {
+          connection.contentLength = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return connection.contentLength >= 0;
+  }
+
+  // Parses "a=1&b=2". A bare token, as in "sign_in?name", maps to "".
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> params = new HashMap<String, String>();
+    for (String param : query.split("&")) {
+      if (param.length() == 0) {
+        continue;
+      }
+      int equals = param.indexOf('=');
+      try {
+        if (equals < 0) {
+          params.put(URLDecoder.decode(param, "UTF-8"), "");
+        } else {
+          params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+              URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+        }
+      } catch (UnsupportedEncodingException e) {
+        params.put(param, "");
+      } catch (IllegalArgumentException e) {
+        params.put(param, "");
+      }
+    }
+    return params;
+  }
+
+  private void handleRequest(Connection connection, String method, String path,
+      Map<String, String> query, String body) throws IOException {
+    logger.fine(method + " " + path + " " + query);
+    if (method.equals("OPTIONS")) {
+      queueResponse(connection, new Response("200 OK", 0, new byte[0]));
+      return;
+    }
+    if (path.equals(PATH_SIGN_IN)) {
+      handleSignIn(connection, query);
+      return;
+    }
+    Member member = members.get(parsePeerId(query.get("peer_id")));
+    if (member == null) {
+      sendError(connection, "500 Error");
+      return;
+    }
+    if (path.equals(PATH_WAIT)) {
+      handleWait(connection, member);
+    } else if (path.equals(PATH_MESSAGE)) {
+      handleMessage(connection, member, query, body);
+    } else if (path.equals(PATH_SIGN_OUT)) {
+      handleSignOut(connection, member);
+    } else {
+      sendError(connection, "404 Not Found");
+    }
+  }
+
+  private void handleSignIn(Connection connection, Map<String, String> query) {
+    String name = query.isEmpty() ? "" : query.keySet().iterator().next();
+    if (name.length() == 0) {
+      sendError(connection, "400 Bad Request");
+      return;
+    }
+    Member member = new Member(nextPeerId++, name);
+    StringBuilder peerList = new StringBuilder(member.getEntry(true));
+    String entry = member.getEntry(true);
+    for (Member other : members.values()) {
+      peerList.append(other.getEntry(true));
+      // Presence notifications carry the receiver's own id.
+      deliver(other, new Response("200 OK", other.id, entry.getBytes(UTF_8)));
+    }
+    members.put(member.id, member);
+    logger.info("Signed in " + member.name + " as " + member.id
+        + ". Peers: " + members.size());
+    queueResponse(connection,
+        new Response("200 OK", member.id, peerList.toString().getBytes(UTF_8)));
+  }
+
+  private void handleWait(Connection connection, Member member) {
+    if (member.waitingConnection != null && member.waitingConnection != connection) {
+      // A new long poll replaces a stale one.
+      close(member.waitingConnection);
+    }
+    member.waitingConnection = null;
+    Response queued = member.queuedResponses.poll();
+    if (queued != null) {
+      member.queuedBytes -= queued.body.length;
+      member.idleSinceMs = System.currentTimeMillis();
+      queueResponse(connection, queued);
+    } else {
+      member.waitingConnection = connection;
+      connection.waitingMember = member;
+    }
+  }
+
+  private void handleMessage(Connection connection, Member member,
+      Map<String, String> query, String body) {
+    Member target = members.get(parsePeerId(query.get("to")));
+    if (target == null) {
+      sendError(connection, "500 Error", "Peer most likely gone.");
+      return;
+    }
+    if (!deliverMessage(target, member.id, body)) {
+      sendError(connection, "503 Service Unavailable", "Peer queue full.");
+      return;
+    }
+    queueResponse(connection, new Response("200 OK", member.id, new byte[0]));
+  }
+
+  // Switches |connection| to the WebSocket protocol (RFC 6455, 4.2.2).
+  private void handleUpgrade(Connection connection, Map<String, String> headers) {
+    String key = headers.get("sec-websocket-key");
+    String upgrade = headers.get("upgrade");
+    if (key == null || upgrade == null || !upgrade.equalsIgnoreCase("websocket")) {
+      sendError(connection, "400 Bad Request");
+      return;
+    }
+    String accept;
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      accept = base64(sha1.digest((key + WEBSOCKET_GUID).getBytes(UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      sendError(connection, "500 Error");
+      return;
+    }
+    String head = "HTTP/1.1 101 Switching Protocols\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+    connection.webSocket = true;
+    queueBytes(connection, ByteBuffer.wrap(head.getBytes(UTF_8)));
+  }
+
+  private void handleWebSocketMessage(Connection connection, String text) {
+    logger.fine("WS " + text);
+    Map<String, String> json = parseJsonObject(text);
+    String cmd = json == null ? null : json.get("cmd");
+    if ("register".equals(cmd)) {
+      handleRegister(connection, json);
+    } else if ("send".equals(cmd)) {
+      handleWebSocketSend(connection, json);
+    } else {
+      sendWebSocketError(connection, "Unknown command.", null, null);
+    }
+  }
+
+  private void handleRegister(Connection connection, Map<String, String> json) {
+    Member member = members.get(parsePeerId(json.get("clientid")));
+    if (member == null) {
+      sendWebSocketError(connection, "Unknown peer id.", null, null);
+      return;
+    }
+    if (member.webSocket != null && member.webSocket != connection) {
+      // A new registration replaces a stale one.
+      closeWebSocket(member.webSocket, 1000);
+    }
+    member.webSocket = connection;
+    connection.webSocketMember = member;
+    logger.info("Registered WebSocket of " + member.id);
+    queueText(connection, "{\"cmd\":\"registered\",\"clientid\":"
+        + quote(String.valueOf(member.id)) + "}");
+  }
+
+  private void handleWebSocketSend(Connection connection, Map<String, String> json) {
+    String to = json.get("to");
+    String msg = json.get("msg");
+    Member member = connection.webSocketMember;
+    if (msg == null) {
+      sendWebSocketError(connection, "Missing msg.", null, null);
+    } else if (member == null || !members.containsKey(member.id)) {
+      sendWebSocketError(connection, "Not registered.", to, msg);
+    } else {
+      Member target = members.get(parsePeerId(to));
+      if (target == null) {
+        sendWebSocketError(connection, "Peer most likely gone.", to, msg);
+      } else if (!deliverMessage(target, member.id, msg)) {
+        sendWebSocketError(connection, "Peer queue full.", to, msg);
+      }
+    }
+  }
+
+  // Answers with an error, returning |msg| to its sender if it was not
+  // delivered to |to|.
+  private void sendWebSocketError(Connection connection, String error, String to, String msg) {
+    StringBuilder json = new StringBuilder("{\"error\":").append(quote(error));
+    if (to != null && msg != null) {
+      json.append(",\"to\":").append(quote(to)).append(",\"msg\":").append(quote(msg));
+    }
+    queueText(connection, json.append('}').toString());
+  }
+
+  private void handleSignOut(Connection connection, Member member) {
+    removeMember(member);
+    queueResponse(connection, new Response("200 OK", member.id, new byte[0]));
+  }
+
+  private void removeMember(Member member) {
+    members.remove(member.id);
+    if (member.webSocket != null) {
+      Connection webSocket = member.webSocket;
+      member.webSocket = null;
+      closeWebSocket(webSocket, 1000);
+    }
+    if (member.waitingConnection != null) {
+      Connection waiting = member.waitingConnection;
+      member.waitingConnection = null;
+      close(waiting);
+    }
+    byte[] entry = member.getEntry(false).getBytes(UTF_8);
+    for (Member other : members.values()) {
+      deliver(other, new Response("200 OK", other.id, entry));
+    }
+    logger.info("Signed out " + member.id + ". Peers: " + members.size());
+  }
+
+  // Delivers peer message |body| from |fromId| to |member|, over its
+  // WebSocket if it registered one. Returns false if it was dropped.
+  private boolean deliverMessage(Member member, int fromId, String body) {
+    Connection webSocket = member.webSocket;
+    if (webSocket != null && webSocket.key.isValid()) {
+      member.idleSinceMs = System.currentTimeMillis();
+      queueText(webSocket, "{\"from\":" + quote(String.valueOf(fromId))
+          + ",\"msg\":" + quote(body) + "}");
+      return true;
+    }
+    return deliver(member, new Response("200 OK", fromId, body.getBytes(UTF_8)));
+  }
+
+  // Answers the member's pending long poll, or queues for the next one.
+  // Returns false, dropping |response|, if the member's queue is full.
+  private boolean deliver(Member member, Response response) {
+    Connection waiting = member.waitingConnection;
+    if (waiting != null && waiting.key.isValid()) {
+      member.waitingConnection = null;
+      member.idleSinceMs = System.currentTimeMillis();
+      waiting.waitingMember = null;
+      queueResponse(waiting, response);
+      return true;
+    }
+    member.waitingConnection = null;
+    if (member.queuedResponses.size() >= MAX_QUEUED_RESPONSES
+        || member.queuedBytes + response.body.length > MAX_QUEUED_BYTES) {
+      logger.warning("Queue of " + member.id + " full, dropping message from "
+          + response.pragmaPeerId);
+      return false;
+    }
+    member.queuedResponses.add(response);
+    member.queuedBytes += response.body.length;
+    return true;
+  }
+
+  private static int parsePeerId(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void sendError(Connection connection, String status) {
+    sendError(connection, status, "");
+  }
+
+  private void sendError(Connection connection, String status, String message) {
+    // Server side errors keep the connection, client errors close it.
+    connection.closeAfterWrite = status.startsWith("4");
+    queueResponse(connection, new Response(status, 0, message.getBytes(UTF_8)));
+  }
+
+  private void queueResponse(Connection connection, Response response) {
+    if (!connection.key.isValid()) {
+      return;
+    }
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(response.status).append("\r\n")
+        .append("Server: SignalingServer\r\n")
+        .append("Cache-Control: no-cache\r\n")
+        .append("Connection: ").append(connection.closeAfterWrite ? "close" : "keep-alive")
+        .append("\r\n")
+        .append("Content-Type: text/plain\r\n")
+        .append("Content-Length: ").append(response.body.length).append("\r\n")
+        .append("Access-Control-Allow-Origin: *\r\n")
+        .append("Access-Control-Allow-Credentials: true\r\n")
+        .append("Access-Control-Allow-Methods: POST, GET, OPTIONS\r\n")
+        .append("Access-Control-Allow-Headers: Content-Type, Content-Length, Connection, Cache-Control\r\n")
+        .append("Access-Control-Expose-Headers: Content-Length, X-Peer-Id\r\n");
+    if (response.pragmaPeerId > 0) {
+      head.append("Pragma: ").append(response.pragmaPeerId).append("\r\n");
+    }
+    head.append("\r\n");
+    byte[] headBytes = head.toString().getBytes(UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + response.body.length);
+    buffer.put(headBytes).put(response.body);
+    buffer.flip();
+    queueBytes(connection, buffer);
+  }
+
+  private void queueText(Connection connection, String text) {
+    queueFrame(connection, OPCODE_TEXT, text.getBytes(UTF_8));
+  }
+
+  // Queues a single unmasked frame, as servers send them.
+  private void queueFrame(Connection connection, int opcode, byte[] payload) {
+    int headerLength = payload.length < 126 ? 2 : (payload.length <= 0xFFFF ? 4 : 10);
+    ByteBuffer buffer = ByteBuffer.allocate(headerLength + payload.length);
+    buffer.put((byte) (0x80 | opcode));
+    if (payload.length < 126) {
+      buffer.put((byte) payload.length);
+    } else if (payload.length <= 0xFFFF) {
+      buffer.put((byte) 126).putShort((short) payload.length);
+    } else {
+      buffer.put((byte) 127).putLong(payload.length);
+    }
+    buffer.put(payload);
+    buffer.flip();
+    queueBytes(connection, buffer);
+  }
+
+  // Sends a close frame with |statusCode| and closes |connection| after it.
+  private void closeWebSocket(Connection connection, int statusCode) {
+    if (!connection.key.isValid()) {
+      return;
+    }
+    connection.closeAfterWrite = true;
+    queueFrame(connection, OPCODE_CLOSE,
+        new byte[] {(byte) (statusCode >> 8), (byte) statusCode});
+  }
+
+  private void queueBytes(Connection connection, ByteBuffer buffer) {
+    if (!connection.key.isValid()) {
+      return;
+    }
+    connection.writeQueue.add(buffer);
+    try {
+      write(connection);
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Write error", e);
+      close(connection);
+    }
+  }
+
+  private void write(Connection connection) throws IOException {
+    while (!connection.writeQueue.isEmpty()) {
+      ByteBuffer buffer = connection.writeQueue.peek();
+      connection.channel.write(buffer);
+      if (buffer.hasRemaining()) {
+        connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+      connection.writeQueue.poll();
+    }
+    if (connection.closeAfterWrite) {
+      close(connection);
+      return;
+    }
+    connection.key.interestOps(SelectionKey.OP_READ);
+  }
+
+  private void close(Connection connection) {
+    Member member = connection.waitingMember;
+    if (member != null && member.waitingConnection == connection) {
+      member.waitingConnection = null;
+      member.idleSinceMs = System.currentTimeMillis();
+    }
+    connection.waitingMember = null;
+    Member webSocketMember = connection.webSocketMember;
+    if (webSocketMember != null && webSocketMember.webSocket == connection) {
+      webSocketMember.webSocket = null;
+      webSocketMember.idleSinceMs = System.currentTimeMillis();
+    }
+    connection.webSocketMember = null;
+    closeQuietly(connection.key);
+  }
+
+  private static void closeQuietly(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Close error", e);
+    }
+  }
+
+  // Parses a flat JSON object with string, number, boolean or null values.
+  // Returns null for anything else, nested objects and arrays included.
+  static Map<String, String> parseJsonObject(String text) {
+    Map<String, String> values = new HashMap<String, String>();
+    int[] position = new int[] {skipWhitespace(text, 0)};
+    if (!consumeChar(text, position, '{')) {
+      return null;
+    }
+    if (consumeChar(text, position, '}')) {
+      return values;
+    }
+    do {
+      String name = parseJsonString(text, position);
+      if (name == null || !consumeChar(text, position, ':')) {
+        return null;
+      }
+      String value;
+      if (position[0] < text.length() && text.charAt(position[0]) == '"') {
+        value = parseJsonString(text, position);
+      } else {
+        int start = position[0];
+        while (position[0] < text.length()
+            && ",} \t\r\n".indexOf(text.charAt(position[0])) < 0) {
+          position[0]++;
+        }
+        value = text.substring(start, position[0]);
+        if (value.length() == 0 || "{[".indexOf(value.charAt(0)) >= 0) {
+          return null;
+        }
+        position[0] = skipWhitespace(text, position[0]);
+      }
+      if (value == null) {
+        return null;
+      }
+      values.put(name, value);
+    } while (consumeChar(text, position, ','));
+    if (!consumeChar(text, position, '}') || position[0] != text.length()) {
+      return null;
+    }
+    return values;
+  }
+
+  // Parses the string at |position|, which is advanced past it. Returns null
+  // if there is no valid string.
+  private static String parseJsonString(String text, int[] position) {
+    int i = position[0];
+    if (i >= text.length() || text.charAt(i) != '"') {
+      return null;
+    }
+    StringBuilder value = new StringBuilder();
+    for (i++; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"') {
+        position[0] = skipWhitespace(text, i + 1);
+        return value.toString();
+      }
+      if (c != '\\') {
+        value.append(c);
+        continue;
+      }
+      if (++i >= text.length()) {
+        return null;
+      }
+      c = text.charAt(i);
+      switch (c) {
+        case 'b': value.append('\b'); break;
+        case 'f': value.append('\f'); break;
+        case 'n': value.append('\n'); break;
+        case 'r': value.append('\r'); break;
+        case 't': value.append('\t'); break;
+        case 'u':
+          if (i + 4 >= text.length()) {
+            return null;
+          }
+          try {
+            value.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+          } catch (NumberFormatException e) {
+            return null;
+          }
+          i += 4;
+          break;
+        default:
+          // \", \\ and \/.
+          value.append(c);
+          break;
+      }
+    }
+    return null;
+  }
+
+  private static boolean consumeChar(String text, int[] position, char c) {
+    if (position[0] < text.length() && text.charAt(position[0]) == c) {
+      position[0] = skipWhitespace(text, position[0] + 1);
+      return true;
+    }
+    return false;
+  }
+
+  private static int skipWhitespace(String text, int i) {
+    while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  // Returns |value| as a JSON string literal.
+  static String quote(String value) {
+    StringBuilder quoted = new StringBuilder(value.length() + 16).append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c == '\n') {
+        quoted.append("\\n");
+      } else if (c == '\r') {
+        quoted.append("\\r");
+      } else if (c == '\t') {
+        quoted.append("\\t");
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  private static String base64(byte[] data) {
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+    for (int i = 0; i < data.length; i += 3) {
+      int b = (data[i] & 0xFF) << 16;
+      if (i + 1 < data.length) {
+        b |= (data[i + 1] & 0xFF) << 8;
+      }
+      if (i + 2 < data.length) {
+        b |= data[i + 2] & 0xFF;
+      }
+      encoded.append(alphabet.charAt((b >> 18) & 0x3F));
+      encoded.append(alphabet.charAt((b >> 12) & 0x3F));
+      encoded.append(i + 1 < data.length ? alphabet.charAt((b >> 6) & 0x3F) : '=');
+      encoded.append(i + 2 < data.length ? alphabet.charAt(b & 0x3F) : '=');
+    }
+    return encoded.toString();
+  }
+
+  /** Runs a standalone server: SignalingServer [port], default 8888. */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
+    SignalingServer server = new SignalingServer(port);
+    server.start();
+    Thread.currentThread().join();
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Tests the /ws endpoint of SignalingServer together with the hanging-GET
+ * endpoints.
+ */
+public class SignalingServerTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int TIMEOUT_MS = 5000;
+  private SignalingServer server;
+  private String baseUrl;
+
+  /**
+   * Minimal blocking WebSocket client: masked frames out, one frame in.
+   */
+  private static class TestWebSocket {
+    final Socket socket = new Socket();
+    DataInputStream in;
+    OutputStream out;
+    int lastOpcode;
+
+    void connect(int port) throws IOException {
+      socket.connect(new InetSocketAddress("127.0.0.1", port), TIMEOUT_MS);
+      socket.setSoTimeout(TIMEOUT_MS);
+      in = new DataInputStream(socket.getInputStream());
+      out = socket.getOutputStream();
+      // Sample key and accept value from RFC 6455, 1.3.
+      out.write(("GET /ws HTTP/1.1\r\n"
+          + "Host: 127.0.0.1:" + port + "\r\n"
+          + "Upgrade: websocket\r\n"
+          + "Connection: Upgrade\r\n"
+          + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+          + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(UTF_8));
+      String head = readHead(in);
+      assertTrue(head, head.startsWith("HTTP/1.1 101 "));
+      assertTrue(head, head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+    }
+
+    void send(String text) throws IOException {
+      byte[] payload = text.getBytes(UTF_8);
+      byte[] mask = new byte[] {0x12, 0x34, 0x56, 0x78};
+      ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      frame.write(0x81);
+      if (payload.length < 126) {
+        frame.write(0x80 | payload.length);
+      } else {
+        frame.write(0x80 | 126);
+        frame.write(payload.length >> 8);
+        frame.write(payload.length);
+      }
+      frame.write(mask, 0, mask.length);
+      for (int i = 0; i < payload.length; i++) {
+        frame.write(payload[i] ^ mask[i % 4]);
+      }
+      out.write(frame.toByteArray());
+    }
+
+    // Reads one frame and returns its payload as text.
+    String receive() throws IOException {
+      lastOpcode = in.readUnsignedByte() & 0x0F;
+      int length = in.readUnsignedByte() & 0x7F;
+      if (length == 126) {
+        length = in.readUnsignedShort();
+      } else if (length == 127) {
+        length = (int) in.readLong();
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      return new String(payload, UTF_8);
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    server = new SignalingServer(new InetSocketAddress("127.0.0.1", 0));
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getPort();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  private static String readHead(InputStream in) throws IOException {
+    StringBuilder head = new StringBuilder();
+    while (!head.toString().endsWith("\r\n\r\n")) {
+      int c = in.read();
+      if (c < 0) {
+        throw new IOException("Connection closed in head: " + head);
+      }
+      head.append((char) c);
+    }
+    return head.toString();
+  }
+
+  // Runs a request and returns "<Pragma>|<body>".
+  private String request(String method, String path, String body) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(baseUrl + path).openConnection();
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(TIMEOUT_MS);
+    connection.setReadTimeout(TIMEOUT_MS);
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.getOutputStream().write(body.getBytes(UTF_8));
+    }
+    assertEquals(200, connection.getResponseCode());
+    InputStream in = connection.getInputStream();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      response.write(buffer, 0, read);
+    }
+    in.close();
+    return connection.getHeaderField("Pragma") + "|" + new String(response.toByteArray(), UTF_8);
+  }
+
+  private int signIn(String name) throws IOException {
+    String response = request("GET", "/sign_in?" + name, null);
+    return Integer.parseInt(response.substring(0, response.indexOf('|')));
+  }
+
+  private TestWebSocket register(int peerId) throws IOException {
+    TestWebSocket webSocket = new TestWebSocket();
+    webSocket.connect(server.getPort());
+    webSocket.send("{\"cmd\": \"register\", \"clientid\": \"" + peerId + "\"}");
+    assertEquals("{\"cmd\":\"registered\",\"clientid\":\"" + peerId + "\"}",
+        webSocket.receive());
+    return webSocket;
+  }
+
+  @Test
+  public void testMessagesBetweenWebSocketAndHttpPeers() throws IOException {
+    int alice = signIn("alice");
+    int bob = signIn("bob");
+    TestWebSocket aliceSocket = register(alice);
+
+    // Bob posts over HTTP, the server pushes to Alice's WebSocket.
+    request("POST", "/message?peer_id=" + bob + "&to=" + alice, "{\"type\":\"offer\"}");
+    Map<String, String> pushed = SignalingServer.parseJsonObject(aliceSocket.receive());
+    assertEquals(String.valueOf(bob), pushed.get("from"));
+    assertEquals("{\"type\":\"offer\"}", pushed.get("msg"));
+
+    // Alice sends over the WebSocket, Bob gets it on /wait from Alice.
+    aliceSocket.send("{\"cmd\":\"send\",\"to\":\"" + bob + "\",\"msg\":\"{\\\"type\\\":\\\"answer\\\"}\"}");
+    assertEquals(alice + "|{\"type\":\"answer\"}",
+        request("GET", "/wait?peer_id=" + bob, null));
+    aliceSocket.close();
+  }
+
+  @Test
+  public void testRegisterUnknownPeer() throws IOException {
+    TestWebSocket webSocket = new TestWebSocket();
+    webSocket.connect(server.getPort());
+    webSocket.send("{\"cmd\":\"register\",\"clientid\":\"42\"}");
+    assertEquals("{\"error\":\"Unknown peer id.\"}", webSocket.receive());
+    webSocket.close();
+  }
+
+  @Test
+  public void testUndeliveredMessageIsReturned() throws IOException {
+    int alice = signIn("alice");
+    TestWebSocket aliceSocket = register(alice);
+    aliceSocket.send("{\"cmd\":\"send\",\"to\":\"42\",\"msg\":\"hi\"}");
+    Map<String, String> error = SignalingServer.parseJsonObject(aliceSocket.receive());
+    assertEquals("Peer most likely gone.", error.get("error"));
+    assertEquals("42", error.get("to"));
+    assertEquals("hi", error.get("msg"));
+    aliceSocket.close();
+  }
+
+  @Test
+  public void testSignOutClosesWebSocket() throws IOException {
+    int alice = signIn("alice");
+    TestWebSocket aliceSocket = register(alice);
+    request("GET", "/sign_out?peer_id=" + alice, null);
+    aliceSocket.receive();
+    assertEquals(0x8, aliceSocket.lastOpcode);
+    aliceSocket.close();
+  }
+
+  @Test
+  public void testPingIsAnswered() throws IOException {
+    TestWebSocket webSocket = new TestWebSocket();
+    webSocket.connect(server.getPort());
+    webSocket.out.write(new byte[] {(byte) 0x89, (byte) 0x80, 1, 2, 3, 4});
+    webSocket.receive();
+    assertEquals(0xA, webSocket.lastOpcode);
+    webSocket.close();
+  }
+
+  @Test
+  public void testJson() {
+    String text = "line\n\"quoted\" \\ tab\t\u0001";
+    Map<String, String> json = SignalingServer.parseJsonObject(
+        "{ \"msg\" : " + SignalingServer.quote(text) + ", \"to\": 7, \"x\": null }");
+    assertEquals(text, json.get("msg"));
+    assertEquals("7", json.get("to"));
+    assertEquals("null", json.get("x"));
+    assertEquals("\u00e9", SignalingServer.parseJsonObject("{\"a\":\"\\u00e9\"}").get("a"));
+    assertNull(SignalingServer.parseJsonObject("{\"a\":{\"b\":1}}"));
+    assertNull(SignalingServer.parseJsonObject("[1]"));
+    assertNull(SignalingServer.parseJsonObject("{\"a\":\"b\"} trailing"));
+  }
+}
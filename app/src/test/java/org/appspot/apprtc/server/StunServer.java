@@ -0,0 +1,210 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for a STUN server.
+ *
+ * <p>Answers STUN binding requests (RFC 5389) with a binding success
+ * response carrying the sender's XOR-MAPPED-ADDRESS; everything else is
+ * ignored. An artificial response delay and drop rate make it possible to
+ * stand in for near, far and lossy servers on one machine. Only java.net is
+ * used, so the server runs on a plain JVM. It lives with the local unit
+ * tests and does not ship in the APK.
+ */
+public class StunServer {
+  private static final Logger logger = Logger.getLogger(StunServer.class.getName());
+  private static final int BINDING_REQUEST = 0x0001;
+  private static final int BINDING_SUCCESS = 0x0101;
+  private static final int XOR_MAPPED_ADDRESS = 0x0020;
+  private static final int MAGIC_COOKIE = 0x2112A442;
+  private static final int HEADER_SIZE = 20;
+  private static final int MAX_PACKET_SIZE = 1500;
+
+  private final InetSocketAddress bindAddress;
+  private DatagramSocket socket;
+  private Thread receiveThread;
+  private ScheduledThreadPoolExecutor delayExecutor;
+  private volatile boolean running;
+  private volatile int responseDelayMs;
+  private volatile double dropRate;
+  private volatile int requestCount;
+
+  public StunServer(int port) {
+    this(new InetSocketAddress(port));
+  }
+
+  public StunServer(InetSocketAddress bindAddress) {
+    this.bindAddress = bindAddress;
+  }
+
+  /** Delays every response by |delayMs|, simulating a longer path. */
+  public void setResponseDelayMs(int delayMs) {
+    responseDelayMs = delayMs;
+  }
+
+  /** Drops this fraction of the requests, between 0 and 1. */
+  public void setDropRate(double rate) {
+    dropRate = rate;
+  }
+
+  /** Number of binding requests received so far. */
+  public int getRequestCount() {
+    return requestCount;
+  }
+
+  /** Binds the socket and starts the receive thread. */
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    socket = new DatagramSocket(bindAddress);
+    delayExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "StunServerDelay");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    running = true;
+    receiveThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receiveLoop();
+      }
+    }, "StunServer");
+    receiveThread.setDaemon(true);
+    receiveThread.start();
+    logger.info("STUN server listening on port " + getPort());
+  }
+
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    socket.close();
+    try {
+      receiveThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    delayExecutor.shutdownNow();
+    logger.info("STUN server stopped.");
+  }
+
+  /** Returns the bound port, useful when started on port 0. */
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  private void receiveLoop() {
+    byte[] buffer = new byte[MAX_PACKET_SIZE];
+    while (running) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch (SocketException e) {
+        // Closed by stop().
+        break;
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Receive failed", e);
+        continue;
+      }
+      final DatagramPacket response = createResponse(packet);
+      if (response == null) {
+        continue;
+      }
+      requestCount++;
+      if (dropRate > 0 && Math.random() < dropRate) {
+        continue;
+      }
+      int delayMs = responseDelayMs;
+      if (delayMs <= 0) {
+        send(response);
+        continue;
+      }
+      delayExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          send(response);
+        }
+      }, delayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void send(DatagramPacket response) {
+    try {
+      socket.send(response);
+    } catch (IOException e) {
+      if (running) {
+        logger.log(Level.WARNING, "Send failed", e);
+      }
+    }
+  }
+
+  // Returns the binding success response to |request|, or null if it is not
+  // a binding request.
+  private static DatagramPacket createResponse(DatagramPacket request) {
+    if (request.getLength() < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer in = ByteBuffer.wrap(request.getData(), request.getOffset(), request.getLength());
+    int type = in.getShort() & 0xffff;
+    in.getShort();
+    if (type != BINDING_REQUEST || in.getInt() != MAGIC_COOKIE) {
+      return null;
+    }
+    byte[] transactionId = new byte[12];
+    in.get(transactionId);
+
+    byte[] address = request.getAddress().getAddress();
+    ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 8 + address.length);
+    out.putShort((short) BINDING_SUCCESS);
+    out.putShort((short) (4 + 4 + address.length));
+    out.putInt(MAGIC_COOKIE);
+    out.put(transactionId);
+    out.putShort((short) XOR_MAPPED_ADDRESS);
+    out.putShort((short) (4 + address.length));
+    out.put((byte) 0);
+    out.put((byte) (address.length == 4 ? 0x01 : 0x02));
+    out.putShort((short) (request.getPort() ^ (MAGIC_COOKIE >>> 16)));
+    // The address is XORed with the magic cookie followed by the
+    // transaction id.
+    byte[] mask = ByteBuffer.allocate(16).putInt(MAGIC_COOKIE).put(transactionId).array();
+    for (int i = 0; i < address.length; i++) {
+      out.put((byte) (address[i] ^ mask[i]));
+    }
+    byte[] response = out.array();
+    return new DatagramPacket(response, response.length, request.getSocketAddress());
+  }
+
+  /** Runs a standalone server: StunServer [port], default 3478. */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 3478;
+    StunServer server = new StunServer(port);
+    server.start();
+    Thread.currentThread().join();
+  }
+}
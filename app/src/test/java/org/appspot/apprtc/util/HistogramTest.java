@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests Histogram statistics and bucket bounds.
+ */
+public class HistogramTest {
+  @Test
+  public void testEmpty() {
+    Histogram histogram = new Histogram("rtt", "ms");
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMean());
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void testStatistics() {
+    Histogram histogram = new Histogram("rtt", "ms");
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    histogram.record(-5);
+    assertEquals(101, histogram.getCount());
+    assertEquals(50, histogram.getMean());
+    assertEquals(100, histogram.getMax());
+    // The 51st value is 50, in bucket [32, 64).
+    assertEquals(63, histogram.getPercentile(50));
+    // The 96th value is 95, in bucket [64, 128), capped at the maximum.
+    assertEquals(100, histogram.getPercentile(95));
+  }
+
+  @Test
+  public void testZerosAndLargeValues() {
+    Histogram histogram = new Histogram("bytes", "B");
+    histogram.record(0);
+    histogram.record(0);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testReset() {
+    Histogram histogram = new Histogram("rtt", "ms");
+    histogram.record(42);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals("rtt: n=0 mean=0ms p50=0ms p95=0ms p99=0ms max=0ms", histogram.toString());
+  }
+}
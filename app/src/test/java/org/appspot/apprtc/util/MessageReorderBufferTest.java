@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests gap, duplicate and expiry handling of MessageReorderBuffer.
+ */
+public class MessageReorderBufferTest {
+  private static final List<String> NONE = Collections.emptyList();
+
+  @Test
+  public void testInOrder() {
+    MessageReorderBuffer buffer = new MessageReorderBuffer(16, 10000);
+    assertEquals(Arrays.asList("a"), buffer.add("s", 1, "a"));
+    assertEquals(Arrays.asList("b"), buffer.add("s", 2, "b"));
+    assertEquals(0, buffer.getGapDeadlineMs("s"));
+  }
+
+  @Test
+  public void testGapIsFilled() {
+    MessageReorderBuffer buffer = new MessageReorderBuffer(16, 10000);
+    assertEquals(NONE, buffer.add("s", 3, "c"));
+    assertEquals(NONE, buffer.add("s", 2, "b"));
+    assertTrue(buffer.getGapDeadlineMs("s") > 0);
+    assertEquals(Arrays.asList("a", "b", "c"), buffer.add("s", 1, "a"));
+    assertEquals(0, buffer.getGapDeadlineMs("s"));
+  }
+
+  @Test
+  public void testDuplicatesAreDropped() {
+    MessageReorderBuffer buffer = new MessageReorderBuffer(16, 10000);
+    assertEquals(Arrays.asList("a"), buffer.add("s", 1, "a"));
+    assertEquals(NONE, buffer.add("s", 1, "a"));
+    assertEquals(NONE, buffer.add("s", 3, "c"));
+    assertEquals(NONE, buffer.add("s", 3, "c"));
+    assertEquals(Arrays.asList("b", "c"), buffer.add("s", 2, "b"));
+    assertEquals(NONE, buffer.add("s", 2, "b"));
+  }
+
+  @Test
+  public void testStreamsAreIndependent() {
+    MessageReorderBuffer buffer = new MessageReorderBuffer(16, 10000);
+    assertEquals(NONE, buffer.add("s1", 2, "b"));
+    assertEquals(Arrays.asList("x"), buffer.add("s2", 1, "x"));
+    assertEquals(0, buffer.getGapDeadlineMs("s2"));
+    assertEquals(Arrays.asList("a", "b"), buffer.add("s1", 1, "a"));
+  }
+
+  @Test
+  public void testExpiredGapIsSkipped() throws Exception {
+    MessageReorderBuffer buffer = new MessageReorderBuffer(16, 50);
+    assertEquals(NONE, buffer.add("s", 2, "b"));
+    long deadlineMs = buffer.getGapDeadlineMs("s");
+    assertTrue(deadlineMs > 0);
+    assertEquals(NONE, buffer.flushExpired("s"));
+
+    Thread.sleep(Math.max(deadlineMs - System.currentTimeMillis(), 0) + 10);
+    assertEquals(Arrays.asList("b"), buffer.flushExpired("s"));
+    assertEquals(0, buffer.getGapDeadlineMs("s"));
+    // The skipped message is late now and counts as a duplicate.
+    assertEquals(NONE, buffer.add("s", 1, "a"));
+    assertEquals(Arrays.asList("c"), buffer.add("s", 3, "c"));
+  }
+
+  @Test
+  public void testFullBufferSkipsGap() {
+    MessageReorderBuffer buffer = new MessageReorderBuffer(2, 10000);
+    assertEquals(NONE, buffer.add("s", 2, "b"));
+    assertEquals(NONE, buffer.add("s", 3, "c"));
+    assertEquals(Arrays.asList("b", "c", "d"), buffer.add("s", 4, "d"));
+  }
+
+  @Test
+  public void testClear() {
+    MessageReorderBuffer buffer = new MessageReorderBuffer(16, 10000);
+    assertEquals(Arrays.asList("a"), buffer.add("s", 1, "a"));
+    buffer.clear();
+    assertEquals(Arrays.asList("a"), buffer.add("s", 1, "a"));
+    assertEquals(NONE, buffer.flushExpired("unknown"));
+  }
+}
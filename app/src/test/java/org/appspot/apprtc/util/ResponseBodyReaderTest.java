@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests ResponseBodyReader on whole, chunked and large bodies.
+ */
+public class ResponseBodyReaderTest {
+  // Returns at most one byte per read, so every multi-byte sequence is split.
+  private static class TrickleInputStream extends FilterInputStream {
+    TrickleInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      return super.read(buffer, offset, Math.min(length, 1));
+    }
+  }
+
+  private static InputStream stream(String text) throws IOException {
+    return new ByteArrayInputStream(text.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testEmptyBody() throws IOException {
+    assertEquals("", ResponseBodyReader.read(stream(""), -1));
+  }
+
+  @Test
+  public void testAscii() throws IOException {
+    String body = "{\"result\": \"SUCCESS\"}";
+    assertEquals(body, ResponseBodyReader.read(stream(body), body.length()));
+  }
+
+  @Test
+  public void testSplitMultiByteSequences() throws IOException {
+    String body = "h\u00e9llo \u4e16\u754c \ud83d\ude00";
+    assertEquals(body, ResponseBodyReader.read(new TrickleInputStream(stream(body)), -1));
+  }
+
+  @Test
+  public void testBodyLargerThanBuffer() throws IOException {
+    StringBuilder body = new StringBuilder();
+    while (body.length() < 40000) {
+      body.append("a=candidate:\u00e9\u4e16 ");
+    }
+    String expected = body.toString();
+    assertEquals(expected, ResponseBodyReader.read(stream(expected), -1));
+    // Pooled buffers are reused by the next read.
+    assertEquals(expected, ResponseBodyReader.read(stream(expected), 10));
+  }
+
+  @Test
+  public void testMalformedInputIsReplaced() throws IOException {
+    byte[] bytes = new byte[] {'o', 'k', (byte) 0xc3};
+    assertEquals("ok\ufffd", ResponseBodyReader.read(new ByteArrayInputStream(bytes), -1));
+  }
+}
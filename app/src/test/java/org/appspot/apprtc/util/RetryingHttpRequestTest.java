@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the backoff and error classification of RetryingHttpRequest.
+ */
+public class RetryingHttpRequestTest {
+  private static final int SAMPLES = 200;
+
+  private static void assertBackoffBounds(int failures, long cap) {
+    for (int i = 0; i < SAMPLES; i++) {
+      long delayMs = RetryingHttpRequest.getBackoffDelayMs(failures);
+      assertTrue(failures + " failures: " + delayMs + " ms",
+          delayMs >= cap / 2 && delayMs <= cap);
+    }
+  }
+
+  @Test
+  public void testBackoffGrowsExponentially() {
+    assertBackoffBounds(1, 100);
+    assertBackoffBounds(2, 200);
+    assertBackoffBounds(3, 400);
+    assertBackoffBounds(5, 1600);
+  }
+
+  @Test
+  public void testBackoffIsCapped() {
+    assertBackoffBounds(6, 3000);
+    assertBackoffBounds(20, 3000);
+    assertBackoffBounds(Integer.MAX_VALUE, 3000);
+  }
+
+  @Test
+  public void testBackoffWithoutFailures() {
+    assertBackoffBounds(0, 100);
+    assertBackoffBounds(-1, 100);
+  }
+
+  @Test
+  public void testTransientResponses() {
+    assertTrue(RetryingHttpRequest.isTransient(0));
+    assertTrue(RetryingHttpRequest.isTransient(408));
+    assertTrue(RetryingHttpRequest.isTransient(429));
+    assertTrue(RetryingHttpRequest.isTransient(503));
+    assertEquals(false, RetryingHttpRequest.isTransient(200));
+    assertEquals(false, RetryingHttpRequest.isTransient(404));
+    assertEquals(false, RetryingHttpRequest.isTransient(500));
+  }
+}